@@ -52,7 +52,9 @@ class GormCouchdbGrailsPlugin {
 
 			'grails-app/conf/couchdb/views/**',
 			'src/groovy/org/acme/**',
-			'src/java/org/acme/**'
+			'src/java/org/acme/**',
+
+			'scripts/CouchBenchmark.groovy'
 	]
 
 	def artefacts = [CouchDomainClassArtefactHandler]
@@ -76,11 +78,10 @@ class GormCouchdbGrailsPlugin {
 	def onChange = {event ->
 
 		if (event.source instanceof Resource) {
-			log.debug("CouchDB view ${event.source} changed. Updating views...")
+			log.debug("CouchDB view ${event.source} changed. Updating its design document...")
 
-			// update the couch views...
-			//  todo: update just the specific view
-			CouchDBPluginSupport.updateCouchViews(application)
+			// update just the design document of the changed view, once the edits have settled
+			event.ctx.getBean("couchdbViewReloader").changed(event.source.file)
 
 		}
 	}
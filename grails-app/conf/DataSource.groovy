@@ -19,6 +19,108 @@ couchdb {
 	port = "5984"
 	username = ""
 	password = ""
+
+	// the format dates are stored in: "default" (yyyy/MM/dd HH:mm:ss Z), "iso8601" or "epoch" (millis)
+	dateFormat = "default"
+
+	// shared http connection pool (per host/port); may also be set per db id, e.g. couchdb { myDb { pool { ... } } }
+	pool {
+		maxTotal = 25
+		maxPerRoute = 10
+		keepAlive = 30000       // ms
+		idleTimeout = 60000     // ms
+		connectTimeout = 5000   // ms
+		socketTimeout = 30000   // ms
+	}
+
+	// transport compression: JSON responses are requested gzipped (and decompressed as they're read) and JSON request
+	// bodies of at least minSize bytes are sent gzipped (unless the server rejects them); may also be set per db id
+	compression {
+		enabled = false
+		requests = true
+		minSize = 8192          // bytes
+		level = 6               // 1 (fastest) - 9 (smallest)
+	}
+
+	// bounded thread pool used for parallel requests, e.g. the chunks of Foo.getAll(ids)
+	executor {
+		poolSize = 4
+		queueCapacity = 100
+	}
+
+	// thread pool for the ...Async methods (saveAsync, getAsync, queryViewAsync, ...); poolSize bounds the requests in flight
+	async {
+		poolSize = 8
+		queueCapacity = 1000
+	}
+
+	// bulkSave / bulkDelete send the documents in chunks of at most chunkSize documents and chunkLength bytes of
+	// (UTF-8) JSON, up to parallelism at a time (on the executor pool); conflicts are merged and retried up to retries
+	// times when a merge closure is given, e.g. Foo.bulkSave(documents, [merge: {current, doc -> ...}])
+	bulk {
+		chunkSize = 1000
+		chunkLength = 4194304   // bytes
+		parallelism = 2
+		retries = 3
+	}
+
+	// per domain class / operation / view latency, errors and rows and per database http traffic, registered as
+	// MBeans under jmxDomain (also available from the couchdbMetrics bean)
+	metrics {
+		enabled = false
+		jmx = true
+		jmxDomain = "gorm-couchdb"
+	}
+
+	// changes to the files under grails-app/conf/couchdb/views update their design document once no
+	// further changes have been made for reloadDelay ms
+	views {
+		reloadDelay = 500       // ms
+	}
+
+	// dynamic finders are registered as static methods the first time they're called; preRegister registers
+	// the finders for every view under grails-app/conf/couchdb/views/<designName> at startup instead;
+	// stale ("ok" or "update_after") makes them read the view index without waiting for it to be updated
+	finders {
+		preRegister = false
+		stale = null
+	}
+
+	// queries the views of each design document in the background (after it's updated, writeDelay ms after writes
+	// to its database and every interval ms) so that reads, especially with finders.stale, don't wait for the index
+	warmer {
+		enabled = false
+		parallelism = 2
+		writeDelay = 1000       // ms
+		interval = 0            // ms, 0 for none
+	}
+
+	// attachments added with addInlineAttachment() are written (base64) with the document by save() / bulkSave()
+	attachments {
+		inlineMaxSize = 65536   // bytes
+	}
+
+	// document cache for Foo.get(id); may also be set per domain class by property name, e.g. cache { project { ... } }
+	cache {
+		enabled = false
+		maxSize = 1000
+		ttl = 60000             // ms, after which cached documents are revalidated
+
+		noType {
+			enabled = true
+			ttl = 500
+		}
+	}
+
+	// view result cache (per database) for queryView, queryViewByKeys and the finders; when it isn't enabled only
+	// queries with the cache: true option use it.  Results are kept until the database's update_seq moves, which
+	// is checked at most every ttl ms (writes through the plugin clear it right away)
+	viewCache {
+		enabled = false
+		maxSize = 500           // results
+		maxRows = 50000         // rows of all results
+		ttl = 1000              // ms
+	}
 }
 
 // environment specific settings
@@ -0,0 +1,12 @@
+function(doc, req) {
+    if (!doc || doc.meta != 'project-task') {
+        return [null, {code: 404, body: 'task not found'}];
+    }
+
+    doc.completionDate = req.query.date;
+    if (req.query.actualHours) {
+        doc.actualHours = parseInt(req.query.actualHours, 10);
+    }
+
+    return [doc, 'completed'];
+}
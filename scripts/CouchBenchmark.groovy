@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Runs the benchmarks under test/benchmark against canned CouchDB responses, e.g.
+ *
+ *   grails couch-benchmark --filter=json --iterations=10 --time=2000 --out=target/benchmark-results.json
+ *
+ * @author Cory Hacking
+ */
+includeTargets << grailsScript("_GrailsCompile")
+
+target(couchBenchmark: "Runs the gorm-couchdb benchmarks") {
+    depends(compile)
+
+    def benchmarkClassesDir = new File(grailsSettings.projectWorkDir, "benchmark-classes")
+    ant.mkdir(dir: benchmarkClassesDir)
+
+    ant.groovyc(destdir: benchmarkClassesDir,
+            classpathref: "grails.compile.classpath",
+            encoding: "UTF-8") {
+        classpath(path: classesDirPath)
+        src(path: "${basedir}/test/benchmark")
+    }
+
+    classLoader.addURL(new File(classesDirPath).toURI().toURL())
+    classLoader.addURL(benchmarkClassesDir.toURI().toURL())
+
+    def benchmarks = classLoader.loadClass("org.codehaus.groovy.grails.plugins.couchdb.benchmark.CouchBenchmarks")
+    benchmarks.run([
+            warmup: argsMap.warmup,
+            iterations: argsMap.iterations,
+            time: argsMap.time,
+            filter: argsMap.filter,
+            out: argsMap.out ?: "${basedir}/target/benchmark-results.json"
+    ])
+}
+
+setDefaultTarget(couchBenchmark)
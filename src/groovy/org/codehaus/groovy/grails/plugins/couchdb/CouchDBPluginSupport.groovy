@@ -16,42 +16,71 @@
 package org.codehaus.groovy.grails.plugins.couchdb
 
 import grails.validation.ValidationException
-import org.apache.commons.lang.StringUtils
 import org.apache.commons.logging.Log
 import org.apache.commons.logging.LogFactory
-import org.apache.http.auth.AuthScope
-import org.apache.http.auth.UsernamePasswordCredentials
 import org.codehaus.groovy.grails.commons.GrailsApplication
 import org.codehaus.groovy.grails.commons.GrailsClassUtils
 import org.codehaus.groovy.grails.commons.GrailsDomainClass
-import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty
 import org.codehaus.groovy.grails.plugins.DomainClassPluginSupport
+import org.codehaus.groovy.grails.plugins.couchdb.async.CouchFuture
+import org.codehaus.groovy.grails.plugins.couchdb.attachment.CouchAttachmentReader
+import org.codehaus.groovy.grails.plugins.couchdb.attachment.CouchAttachmentWriter
+import org.codehaus.groovy.grails.plugins.couchdb.cache.CouchDocumentCache
+import org.codehaus.groovy.grails.plugins.couchdb.cache.CouchViewCache
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchChangesHandler
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchChangesListener
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchCheckpointStore
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchLocalCheckpointStore
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchMemoryCheckpointStore
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchBatchSession
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchBulkResult
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchBulkWriter
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchDatabaseRegistry
 import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClass
 import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClassArtefactHandler
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchPersistencePlan
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchConnectionManager
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchEntityCodec
 import org.codehaus.groovy.grails.plugins.couchdb.json.CouchDomainTypeMapper
 import org.codehaus.groovy.grails.plugins.couchdb.json.JsonConverterUtils
-import org.codehaus.groovy.grails.plugins.couchdb.json.JsonDateConverter
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchMetrics
+import org.codehaus.groovy.grails.plugins.couchdb.util.CouchViewReloader
+import org.codehaus.groovy.grails.plugins.couchdb.util.CouchViewWarmer
 import org.codehaus.groovy.grails.plugins.couchdb.util.GrailsCouchDBUpdater
+import org.codehaus.groovy.grails.plugins.couchdb.view.CouchRowProjection
+import org.codehaus.groovy.grails.plugins.couchdb.view.CouchViewIterator
+import org.codehaus.groovy.grails.plugins.couchdb.view.CouchViewPage
 import org.codehaus.groovy.grails.support.SoftThreadLocalMap
 import org.codehaus.groovy.grails.validation.GrailsDomainClassValidator
 import org.codehaus.groovy.grails.web.binding.DataBindingLazyMetaPropertyMap
 import org.codehaus.groovy.grails.web.binding.DataBindingUtils
 import org.jcouchdb.db.Database
 import org.jcouchdb.db.Options
+import org.jcouchdb.db.Response
+import org.jcouchdb.document.AbstractViewResult
 import org.jcouchdb.document.Attachment
 import org.jcouchdb.document.DesignDocument
+import org.jcouchdb.document.DocumentInfo
 import org.jcouchdb.document.ValueRow
+import org.jcouchdb.document.ViewResult
+import org.jcouchdb.exception.DataAccessException
 import org.jcouchdb.exception.NotFoundException
 import org.springframework.beans.BeanUtils
 import org.springframework.beans.factory.config.MethodInvokingFactoryBean
 import org.springframework.context.ApplicationContext
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
 import org.springframework.validation.BeanPropertyBindingResult
 import org.springframework.validation.Errors
 import org.svenson.JSON
-import org.svenson.JSONConfig
 import org.svenson.JSONParser
-import org.svenson.converter.DefaultTypeConverterRepository
 import org.jcouchdb.document.ValueAndDocumentRow
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.regex.Pattern
 
 /**
  *
@@ -67,6 +96,11 @@ public class CouchDBPluginSupport {
 
 	static final PROPERTY_INSTANCE_MAP = new SoftThreadLocalMap()
 
+	static final int DEFAULT_GET_ALL_CHUNK_SIZE = 100
+
+	private static final Pattern FINDER_PATTERN = ~/^(find|list|count|each)(\w*)$/
+	private static final Pattern UPDATE_PATTERN = ~/^update(\w+)$/
+
 	static def doWithSpring = {ApplicationContext ctx ->
 
 		// extend the jcouchdb ValueRow class to automatically look up properties of the internal value object
@@ -88,7 +122,7 @@ public class CouchDBPluginSupport {
 				// look for a property of the same name in our domain class
 				Object value = map.get(name)
 				if (value) {
-					Class type = map.get('__domainClass')?.getPropertyByName(name)?.type
+					Class type = map.get(CouchViewIterator.DOMAIN_CLASS_KEY)?.getPropertyByName(name)?.type
 					if (type && !(type instanceof String) && !value.getClass().isAssignableFrom(type)) {
 						value = JsonConverterUtils.fromJSON(type, value)
 						map.put(name, value)
@@ -106,6 +140,76 @@ public class CouchDBPluginSupport {
 			}
 		}
 
+		// the format that dates are stored in (and encoded in view keys)
+		JsonConverterUtils.setDateFormat(application.config.couchdb?.dateFormat ?: "default")
+
+		// the shared (pooled) http connection manager used by every couchdb database
+		couchdbConnectionManager(CouchConnectionManager) { bean ->
+			bean.destroyMethod = "shutdown"
+		}
+
+		// per domain class / operation / view latency, error and row counts and per database http traffic,
+		// registered as MBeans; when disabled the instrumented methods only check the enabled flag
+		def metricsConfig = application.config.couchdb?.metrics
+		couchdbMetrics(CouchMetrics) { bean ->
+			bean.destroyMethod = "destroy"
+			enabled = (metricsConfig?.enabled ?: false) as Boolean
+			jmx = (metricsConfig?.jmx instanceof Boolean) ? metricsConfig.jmx : true
+			jmxDomain = metricsConfig?.jmxDomain ?: "gorm-couchdb"
+		}
+
+		// one database (and json config) per host/port/database, shared by the domain classes
+		couchdbDatabaseRegistry(CouchDatabaseRegistry) {bean ->
+			bean.destroyMethod = "shutdown"
+			grailsApplication = ref("grailsApplication", true)
+			couchdbConnectionManager = ref("couchdbConnectionManager")
+			couchdbMetrics = ref("couchdbMetrics")
+			couchdbViewWarmer = ref("couchdbViewWarmer")
+		}
+
+		// a bounded thread pool for requests that are sent in parallel (e.g. getAll chunks); when
+		// the queue is full the caller runs the request itself
+		def executorConfig = application.config.couchdb?.executor
+		couchdbTaskExecutor(ThreadPoolTaskExecutor) {
+			corePoolSize = (executorConfig?.poolSize ?: 4) as Integer
+			maxPoolSize = (executorConfig?.poolSize ?: 4) as Integer
+			queueCapacity = (executorConfig?.queueCapacity ?: 100) as Integer
+			threadNamePrefix = "gorm-couchdb-"
+			daemon = true
+			rejectedExecutionHandler = new ThreadPoolExecutor.CallerRunsPolicy()
+		}
+
+		// the thread pool that runs the ...Async methods (saveAsync, getAsync, queryViewAsync, ...); the pool size
+		// bounds the number of requests in flight, and when the queue is full the caller runs the request itself
+		def asyncConfig = application.config.couchdb?.async
+		couchdbAsyncExecutor(ThreadPoolTaskExecutor) {
+			corePoolSize = (asyncConfig?.poolSize ?: 8) as Integer
+			maxPoolSize = (asyncConfig?.poolSize ?: 8) as Integer
+			queueCapacity = (asyncConfig?.queueCapacity ?: 1000) as Integer
+			threadNamePrefix = "gorm-couchdb-async-"
+			daemon = true
+			rejectedExecutionHandler = new ThreadPoolExecutor.CallerRunsPolicy()
+		}
+
+		// applies changes to the view files to their design document (used by the plugin's onChange)
+		couchdbViewReloader(CouchViewReloader) { bean ->
+			bean.destroyMethod = "shutdown"
+			grailsApplication = ref("grailsApplication", true)
+			delay = (application.config.couchdb?.views?.reloadDelay ?: 500) as Long
+		}
+
+		// queries the views of the design documents in the background (after design document updates, writes
+		// and on a schedule) so that their indexes are up to date before they're read
+		def warmerConfig = application.config.couchdb?.warmer
+		couchdbViewWarmer(CouchViewWarmer) { bean ->
+			bean.initMethod = "start"
+			bean.destroyMethod = "shutdown"
+			enabled = (warmerConfig?.enabled ?: false) as Boolean
+			parallelism = (warmerConfig?.parallelism ?: 2) as Integer
+			writeDelay = (warmerConfig?.writeDelay ?: 1000) as Long
+			interval = (warmerConfig?.interval ?: 0) as Long
+		}
+
 		// register our CouchDomainClass artefacts that weren't already picked up by grails
 		application.domainClasses.each {GrailsDomainClass dc ->
 			if (CouchDomainClassArtefactHandler.isCouchDomainClass(dc.clazz)) {
@@ -147,8 +251,10 @@ public class CouchDBPluginSupport {
 
 	static enhanceDomainClasses(GrailsApplication application, ApplicationContext ctx) {
 
+		CouchDatabaseRegistry registry = ctx.getBean("couchdbDatabaseRegistry")
+
 		application.CouchDomainClasses.each {CouchDomainClass domainClass ->
-			Database db = getCouchDatabase(application, domainClass, true)
+			Database db = registry.getDatabase(domainClass, true)
 
 			addInstanceMethods(application, domainClass, ctx, db)
 			addStaticMethods(application, domainClass, ctx, db)
@@ -160,13 +266,21 @@ public class CouchDBPluginSupport {
 		}
 
 		// update the related document view(s)
-		updateCouchViews(application)
+		updateCouchViews(application, ctx)
 	}
 
-	static updateCouchViews(GrailsApplication application) {
+	/**
+	 * Updates the design documents of the domain classes from the view files.
+	 *
+	 * @param designNames only update these design documents (null for all)
+	 */
+	static updateCouchViews(GrailsApplication application, ApplicationContext ctx = application.mainContext, Collection<String> designNames = null) {
+
+		CouchDatabaseRegistry registry = ctx.getBean("couchdbDatabaseRegistry")
+		CouchViewWarmer warmer = ctx.getBean("couchdbViewWarmer")
 
 		// the base path...
-		def viewsPath = ((application.warDeployed) ? application.parentContext.servletContext.getRealPath("/WEB-INF") + "/grails-app/couchdb/views/" : "./grails-app/conf/couchdb/views/")
+		def viewsPath = getViewsPath(application)
 		def views = new File(viewsPath)
 
 		// make sure the views directory exists...
@@ -175,75 +289,251 @@ public class CouchDBPluginSupport {
 			return
 		}
 
-		// update the appropriate view for each domain class
+		// update the design document of each domain class in parallel; design documents that are shared
+		// by several domain classes are only updated once
+		def executor = ctx.getBean("couchdbTaskExecutor")
+		Map<String, Future> updates = new LinkedHashMap<String, Future>()
+		Map<String, Database> databases = new HashMap<String, Database>()
+
 		application.CouchDomainClasses.each {CouchDomainClass domainClass ->
 
+			if (designNames != null && !designNames.contains(domainClass.designName)) {
+				return
+			}
+
 			def view = new File(views, domainClass.designName)
 			if (view.exists() && view.isDirectory()) {
+				Database db = registry.getDatabase(domainClass, false)
+
+				String key = "${System.identityHashCode(db)}/${domainClass.designName}"
+				if (updates.containsKey(key)) {
+					return
+				}
+				databases.put(key, db)
+				warmer.register(db, domainClass.designName)
 
 				// Note that by design any map / reduce functions that are in couchdb but NOT here get
-				// removed when updating.
+				// removed when updating.  Unchanged design documents (by content hash) aren't written.
 				GrailsCouchDBUpdater updater = new GrailsCouchDBUpdater()
-				updater.setDatabase(getCouchDatabase(application, domainClass, false))
+				updater.setDatabase(db)
 				updater.setCreateDatabase(false)
 				updater.setDesignDocumentDir(views)
 				updater.setDesignName(domainClass.designName)
-				updater.updateDesignDocuments()
 
+				updates.put(key, CouchFuture.submit(executor, {-> updater.updateDesignDocuments()} as Callable))
+			}
+		}
+
+		// rebuild the indexes of the updated design documents in the background
+		updates.each {String key, Future update ->
+			try {
+				if (update.get()) {
+					warmer.warm(databases.get(key), key.substring(key.indexOf('/') + 1))
+				}
+			} catch (ExecutionException e) {
+				throw e.cause
 			}
 		}
 	}
 
+	static String getViewsPath(GrailsApplication application) {
+		return ((application.warDeployed) ? application.parentContext.servletContext.getRealPath("/WEB-INF") + "/grails-app/couchdb/views/" : "./grails-app/conf/couchdb/views/")
+	}
+
 	private static addInstanceMethods(GrailsApplication application, CouchDomainClass dc, ApplicationContext ctx, Database db) {
 		MetaClass metaClass = dc.metaClass
 		CouchDomainClass domainClass = dc
 		Database couchdb = db
+		CouchDatabaseRegistry registry = ctx.getBean("couchdbDatabaseRegistry")
+		CouchAttachmentReader attachmentReader = new CouchAttachmentReader(db)
+		CouchAttachmentWriter attachmentWriter = new CouchAttachmentWriter(db)
+		def asyncExecutor = ctx.getBean("couchdbAsyncExecutor")
+		CouchMetrics metrics = ctx.getBean("couchdbMetrics")
+		int inlineMaxSize = (application.config.couchdb?.attachments?.inlineMaxSize ?: CouchAttachmentWriter.DEFAULT_INLINE_MAX_SIZE) as int
 
 		metaClass.save = {Map args = [:] ->
 
 			boolean valid = (shouldValidate(args, domainClass)) ? validate() : true
 			if (!valid) {
+				return validationFailed(domainClass, delegate, args)
+			}
 
-				boolean shouldFail = dc.shouldFailOnError
-				if (args != null && args.containsKey(ARGUMENT_FAIL_ON_ERROR)) {
-					shouldFail = GrailsClassUtils.getBooleanFromMap(ARGUMENT_FAIL_ON_ERROR, args)
-				}
-				if (shouldFail) {
-					throw new ValidationException("Validation Error(s) occurred during save()", delegate.errors)
+			autoTimeStamp(domainClass.persistencePlan, delegate)
+
+			// queue the document if we're in a batch, otherwise write it now
+			def domain = delegate
+			timed(metrics, domainClass, couchdb, "save", null) {
+				CouchBatchSession session = CouchBatchSession.getCurrentSession(couchdb)
+				if (session) {
+					session.save(domain, domainClass)
+				} else {
+					couchdb.createOrUpdateDocument domain
 				}
-				return null
+				return domain
 			}
 
-			couchdb.createOrUpdateDocument autoTimeStamp(application, delegate)
+			registry.evictDocument couchdb, getDocumentId(domainClass, delegate)
 
 			return delegate
 		}
 
+		// p.saveAsync() validates on the calling thread and writes the document on the couchdbAsyncExecutor; the
+		// future's get() returns (or throws) what save() would have
+		metaClass.saveAsync = {Map args = [:] ->
+			def domain = delegate
+
+			boolean valid = (shouldValidate(args, domainClass)) ? validate() : true
+			if (!valid) {
+				return CouchFuture.call({-> validationFailed(domainClass, domain, args)} as Callable)
+			}
+
+			Map saveArgs = new HashMap(args ?: [:])
+			saveArgs.validate = false
+
+			// documents queued in a batch are written by the batch
+			if (CouchBatchSession.getCurrentSession(couchdb)) {
+				return CouchFuture.call({-> domain.save(saveArgs)} as Callable)
+			}
+
+			return CouchFuture.submit(asyncExecutor, {-> domain.save(saveArgs)} as Callable)
+		}
+
 		metaClass.delete = {->
 			delete(null)
 		}
 
 		metaClass.delete = {Map args = [:] ->
-			couchdb.delete getDocumentId(domainClass, delegate), getDocumentVersion(domainClass, delegate)
+			def domain = delegate
+			timed(metrics, domainClass, couchdb, "delete", null) {
+				CouchBatchSession session = CouchBatchSession.getCurrentSession(couchdb)
+				if (session) {
+					session.delete(domain, domainClass)
+				} else {
+					couchdb.delete getDocumentId(domainClass, domain), getDocumentVersion(domainClass, domain)
+				}
+				return domain
+			}
+
+			registry.evictDocument couchdb, getDocumentId(domainClass, delegate)
 		}
 
 		metaClass.readAttachment = {Serializable attachmentId ->
-			return couchdb.getAttachment(getDocumentId(domainClass, delegate), attachmentId.toString())
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "readAttachment", null) {
+				couchdb.getAttachment(docId, attachmentId.toString())
+			}
+		}
+
+		// streaming (and ranged) reads for large attachments; the returned stream must be closed
+		metaClass.openAttachmentStream = {Serializable attachmentId ->
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "openAttachmentStream", null) {
+				attachmentReader.openStream(docId, attachmentId.toString())
+			}
+		}
+
+		metaClass.openAttachmentStream = {Serializable attachmentId, long offset, long length = -1 ->
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "openAttachmentStream", null) {
+				attachmentReader.openStream(docId, attachmentId.toString(), offset, length)
+			}
+		}
+
+		metaClass.transferAttachmentTo = {Serializable attachmentId, OutputStream out, long offset = 0 ->
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "transferAttachmentTo", null) {
+				attachmentReader.transferTo(docId, attachmentId.toString(), out, offset)
+			}
+		}
+
+		metaClass.transferAttachmentTo = {Serializable attachmentId, WritableByteChannel channel, long offset = 0 ->
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "transferAttachmentTo", null) {
+				attachmentReader.transferTo(docId, attachmentId.toString(), channel, offset)
+			}
+		}
+
+		metaClass.getAttachmentInfo = {Serializable attachmentId ->
+			def docId = getDocumentId(domainClass, delegate)
+			return timed(metrics, domainClass, couchdb, "getAttachmentInfo", null) {
+				attachmentReader.getInfo(docId, attachmentId.toString())
+			}
 		}
 
 		metaClass.saveAttachment = {Serializable attachmentId, String contentType, byte[] data ->
-			couchdb.createAttachment(getDocumentId(domainClass, delegate), getDocumentVersion(domainClass, delegate), attachmentId.toString(), contentType, data)
-			return domainClass.getClazz().get(getDocumentId(domainClass, delegate))
+			def docId = getDocumentId(domainClass, delegate)
+			def version = getDocumentVersion(domainClass, delegate)
+			timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				couchdb.createAttachment(docId, version, attachmentId.toString(), contentType, data)
+			}
+			registry.evictDocument couchdb, docId
+			return domainClass.getClazz().get(docId)
 		}
 
 		metaClass.saveAttachment = {Serializable attachmentId, String contentType, InputStream is, long length ->
-			couchdb.createAttachment(getDocumentId(domainClass, delegate), getDocumentVersion(domainClass, delegate), attachmentId.toString(), contentType, is, length)
-			return domainClass.getClazz().get(getDocumentId(domainClass, delegate))
+			def docId = getDocumentId(domainClass, delegate)
+			def version = getDocumentVersion(domainClass, delegate)
+			timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				couchdb.createAttachment(docId, version, attachmentId.toString(), contentType, is, length)
+			}
+			registry.evictDocument couchdb, docId
+			return domainClass.getClazz().get(docId)
+		}
+
+		// p.saveAttachment("report.pdf", "application/pdf", file) sends the file through its FileChannel, and a stream
+		// without a length is sent chunked; with [reload: false] the instance's version and attachments are updated
+		// from the response and returned instead of reading the document back
+		metaClass.saveAttachment = {Serializable attachmentId, String contentType, File file ->
+			return saveAttachment([:], attachmentId, contentType, file)
+		}
+
+		metaClass.saveAttachment = {Map args, Serializable attachmentId, String contentType, File file ->
+			def docId = getDocumentId(domainClass, delegate)
+			def version = getDocumentVersion(domainClass, delegate)
+			def rev = timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				attachmentWriter.save(docId, version, attachmentId.toString(), contentType, file)
+			}
+
+			return attachmentSaved(domainClass, delegate, args, registry, couchdb, attachmentId.toString(), contentType, file.length(), rev)
+		}
+
+		metaClass.saveAttachment = {Serializable attachmentId, String contentType, InputStream is ->
+			return saveAttachment([:], attachmentId, contentType, is, -1L)
+		}
+
+		metaClass.saveAttachment = {Map args, Serializable attachmentId, String contentType, InputStream is, long length = -1 ->
+			def docId = getDocumentId(domainClass, delegate)
+			def version = getDocumentVersion(domainClass, delegate)
+			def rev = timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				attachmentWriter.save(docId, version, attachmentId.toString(), contentType, is, length)
+			}
+
+			return attachmentSaved(domainClass, delegate, args, registry, couchdb, attachmentId.toString(), contentType, length, rev)
+		}
+
+		metaClass.saveAttachment = {Map args, Serializable attachmentId, String contentType, byte[] data ->
+			return saveAttachment(args, attachmentId, contentType, new ByteArrayInputStream(data), (long) data.length)
+		}
+
+		// small attachments can be written inline (base64) with the document by save() or bulkSave()
+		metaClass.addInlineAttachment = {Serializable attachmentId, String contentType, byte[] data ->
+			putDocumentAttachment(domainClass, delegate, attachmentId.toString(), CouchAttachmentWriter.createInlineAttachment(contentType, data, inlineMaxSize))
+			return delegate
+		}
+
+		metaClass.addInlineAttachment = {Serializable attachmentId, String contentType, File file ->
+			putDocumentAttachment(domainClass, delegate, attachmentId.toString(), CouchAttachmentWriter.createInlineAttachment(contentType, file, inlineMaxSize))
+			return delegate
 		}
 
 		metaClass.deleteAttachment = {Serializable attachmentId ->
-			couchdb.deleteAttachment(getDocumentId(domainClass, delegate), getDocumentVersion(domainClass, delegate), attachmentId.toString())
-			return domainClass.getClazz().get(getDocumentId(domainClass, delegate))
+			def docId = getDocumentId(domainClass, delegate)
+			def version = getDocumentVersion(domainClass, delegate)
+			timed(metrics, domainClass, couchdb, "deleteAttachment", null) {
+				couchdb.deleteAttachment(docId, version, attachmentId.toString())
+			}
+			registry.evictDocument couchdb, docId
+			return domainClass.getClazz().get(docId)
 		}
 
 		metaClass.toJSON = {->
@@ -255,6 +545,26 @@ public class CouchDBPluginSupport {
 		MetaClass metaClass = dc.metaClass
 		CouchDomainClass domainClass = dc
 		Database couchdb = db
+		CouchDatabaseRegistry registry = ctx.getBean("couchdbDatabaseRegistry")
+
+		// the (optional) read cache for get()
+		CouchDocumentCache documentCache = registry.getDocumentCache(domainClass)
+
+		// the database's view result cache, used by queryView / queryViewByKeys (and so the finders)
+		CouchViewCache viewCache = registry.getViewCache(db)
+
+		// the default chunk size / length, parallelism and retries of bulkSave and bulkDelete
+		Map bulkConfig = application.config.couchdb?.bulk ?: [:]
+
+		CouchAttachmentReader attachmentReader = new CouchAttachmentReader(db)
+
+		// used for the requests that are sent in parallel
+		def executor = ctx.getBean("couchdbTaskExecutor")
+
+		// used for the ...Async methods
+		def asyncExecutor = ctx.getBean("couchdbAsyncExecutor")
+
+		CouchMetrics metrics = ctx.getBean("couchdbMetrics")
 
 		JSONParser readParser = null
 		JSONParser queryParser = null
@@ -264,20 +574,117 @@ public class CouchDBPluginSupport {
 		readParser = new JSONParser(db.getJsonConfig().jsonParser)
 		queryParser = new JSONParser(db.getJsonConfig().jsonParser)
 
+		// row parsers for the streaming eachRow / rowIterator queries, which parse one row at a time
+		JSONParser rowParser = new JSONParser(db.getJsonConfig().jsonParser)
+		rowParser.addTypeHint ".value", Map.class
+
+		JSONParser rowDocumentParser = new JSONParser(db.getJsonConfig().jsonParser)
+		rowDocumentParser.addTypeHint ".value", Map.class
+		rowDocumentParser.addTypeHint ".doc", domainClass.clazz
+
 		if (domainClass.hasSubClasses()) {
 			setDocTypeMapper domainClass, readParser
 			setQueryDocTypeMapper domainClass, queryParser
+			setRowDocTypeMapper domainClass, rowDocumentParser
+		}
+
+		// use the JSON methods generated by the CouchEntityJSONASTTransformation (if they're usable) instead of
+		// svenson's bean introspection; documents are then parsed into maps and read by the codec
+		CouchEntityCodec codec = registry.getEntityCodec(db)
+		Map<String, Class> subClassTypes = [:]
+		domainClass.getSubClassTypes().each {type, subClass ->
+			subClassTypes.put(type, subClass.clazz)
+		}
+
+		boolean generatedJSON = codec ? codec.register(domainClass.clazz, domainClass.typeFieldName ?: null, subClassTypes) : false
+
+		// reads an include_docs document that was read as a Map (as the view cache keeps them) into an instance
+		def readDocument = {Map json ->
+			if (generatedJSON) {
+				return codec.read(domainClass.clazz, json)
+			}
+
+			return readParser.parse(domainClass.clazz, JSON.defaultJSON().forValue(json))
 		}
 
 		metaClass.static.get = {Serializable docId ->
-			try {
-				return couchdb.getDocument(domainClass.clazz, docId.toString(), null, readParser)
+			return timed(metrics, domainClass, couchdb, "get", null) {
+				if (documentCache) {
+					return documentCache.getDocument(domainClass.clazz, docId.toString(), readParser)
+				}
 
-			} catch (NotFoundException e) {
-				// fall through to return null
+				try {
+					if (generatedJSON) {
+						return codec.read(domainClass.clazz, couchdb.getDocument(Map.class, docId.toString(), null, codec.parser))
+					}
+
+					return couchdb.getDocument(domainClass.clazz, docId.toString(), null, readParser)
+
+				} catch (NotFoundException e) {
+					// fall through to return null
+				}
+
+				return null
 			}
+		}
 
-			return null
+		// Foo.getAll(["a", "b", "c"]) reads the documents with _all_docs; the results are in the same
+		// order as the ids with nulls for missing or deleted documents
+		metaClass.static.getAll = {List ids ->
+			return getAll(ids, [:])
+		}
+
+		metaClass.static.getAll = {List ids, Map o ->
+			int chunkSize = (o.chunkSize ?: DEFAULT_GET_ALL_CHUNK_SIZE) as int
+			return timed(metrics, domainClass, couchdb, "getAll", null) {
+				getAllDocuments(couchdb, domainClass, ids, queryParser, generatedJSON ? codec : null, executor, chunkSize)
+			}
+		}
+
+		// Foo.getAllAsMap(["a", "b", "c"]) returns [id: instance] for the documents that were found
+		metaClass.static.getAllAsMap = {List ids, Map o = [:] ->
+			Map documents = new LinkedHashMap()
+
+			def results = getAll(ids, o)
+			ids.eachWithIndex {id, i ->
+				if (results[i] != null) {
+					documents.put(id, results[i])
+				}
+			}
+
+			return documents
+		}
+
+		// Foo.getAsync(id), Foo.getAllAsync(ids), Foo.queryViewAsync(name, o) and Foo.bulkSaveAsync(documents) run the
+		// blocking methods on the couchdbAsyncExecutor so that independent requests can be in flight at the same time
+		metaClass.static.getAsync = {Serializable docId ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.get(docId)} as Callable)
+		}
+
+		metaClass.static.getAllAsync = {List ids, Map o = [:] ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.getAll(ids, o)} as Callable)
+		}
+
+		metaClass.static.queryViewAsync = {String viewName, Map o = [:] ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.queryView(viewName, o)} as Callable)
+		}
+
+		metaClass.static.queryViewByKeysAsync = {String viewName, List keys, Map o = [:] ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.queryViewByKeys(viewName, keys, o)} as Callable)
+		}
+
+		metaClass.static.bulkSaveAsync = {List documents, Boolean allOrNothing = false ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.bulkSave(documents, allOrNothing)} as Callable)
+		}
+
+		metaClass.static.bulkSaveAsync = {List documents, Map o ->
+			def clazz = domainClass.clazz
+			return CouchFuture.submit(asyncExecutor, {-> clazz.bulkSave(documents, o)} as Callable)
 		}
 
 		// Foo.exists(1)
@@ -286,69 +693,251 @@ public class CouchDBPluginSupport {
 		}
 
 		metaClass.static.delete = {Serializable docId, String version ->
-			couchdb.delete docId.toString(), version
+			timed(metrics, domainClass, couchdb, "delete", null) {
+				couchdb.delete docId.toString(), version
+				return docId
+			}
+			registry.evictDocument couchdb, docId.toString()
 		}
 
+		// Foo.bulkSave(documents, [chunkSize: 500, parallelism: 4, merge: {current, doc -> ...}]) sends the documents
+		// in chunks (see CouchBulkWriter; the defaults are in couchdb.bulk) and copies the new ids and revisions back
+		// to the instances.  A merged document is saved over the current revision.
 		metaClass.static.bulkSave = {List documents ->
-			return bulkSave(documents, false)
+			return bulkSave(documents, [:])
 		}
 
 		metaClass.static.bulkSave = {List documents, Boolean allOrNothing ->
+			return bulkSave(documents, [allOrNothing: allOrNothing])
+		}
+
+		metaClass.static.bulkSave = {List documents, Map o ->
 			documents.each {doc ->
-				autoTimeStamp(application, doc)
+				autoTimeStamp(getPersistencePlan(application, domainClass, doc), doc)
+			}
+
+			CouchBulkWriter writer = new CouchBulkWriter(couchdb, executor, o, bulkConfig)
+			writer.documentId = {doc ->
+				getBulkDocumentId(application, domainClass, doc)
 			}
+			// the documents can be of other domain classes, so each is read as its own class (and others as Maps)
+			writer.fetch = {List ids, List conflicted ->
+				Map<Class, List<Integer>> groups = new LinkedHashMap()
+				conflicted.eachWithIndex {doc, int i ->
+					Class docClass = getPersistencePlan(application, domainClass, doc) ? doc.getClass() : Map.class
+					groups.get(docClass, []) << i
+				}
 
-			return couchdb.bulkCreateDocuments(documents, allOrNothing)
+				List current = [null] * ids.size()
+				groups.each {Class docClass, List<Integer> indexes ->
+					List keys = indexes.collect {int i -> ids[i]}
+					List found
+					if (docClass == Map.class) {
+						found = couchdb.queryDocumentsByKeys(Map.class, Map.class, keys, null, couchdb.jsonConfig.jsonParser).rows*.document
+					} else {
+						found = docClass.getAll(keys)
+					}
+					indexes.eachWithIndex {int i, int j ->
+						current[i] = found[j]
+					}
+				}
+
+				return current
+			}
+			if (writer.merge) {
+				Closure merge = writer.merge
+				writer.merge = {current, document ->
+					def merged = merge.call(current, document)
+					CouchPersistencePlan mergedPlan = getPersistencePlan(application, domainClass, merged)
+					CouchPersistencePlan currentPlan = getPersistencePlan(application, domainClass, current)
+					if (merged != null && current != null && mergedPlan && currentPlan) {
+						mergedPlan.setVersion(merged, currentPlan.getVersion(current))
+					}
+					return merged
+				}
+			}
+
+			CouchBulkResult result = timed(metrics, domainClass, couchdb, "bulkSave", null) {
+				writer.save(documents)
+			}
+			recordChunks(metrics, domainClass, couchdb, "bulkSave", result)
+
+			registry.evictDocuments couchdb, result*.id
+
+			// the inline attachments have been written, so they become stubs of the new revision; the documents
+			// can be of other domain classes (e.g. Project.bulkSave([project] + tasks)), so each uses its own plan
+			result.documents.eachWithIndex {doc, i ->
+				def info = result[i]
+				CouchPersistencePlan plan = getPersistencePlan(application, domainClass, doc)
+				if (info?.revision && !info.error && plan) {
+					plan.getAttachments(doc)?.values()?.each {Attachment attachment ->
+						CouchAttachmentWriter.toStub(attachment)
+					}
+					if (plan.getId(doc) == null) {
+						plan.setId(doc, info.id)
+					}
+					plan.setVersion(doc, info.revision)
+				}
+			}
+
+			return result
+		}
+
+		// Foo.withBatch(size: 500) { ... } queues save() / delete() calls and writes them with _bulk_docs; if the
+		// closure throws, the writes that were already flushed stay written and the queued ones are discarded
+		metaClass.static.withBatch = {Closure closure ->
+			return withBatch([:], closure)
+		}
+
+		metaClass.static.withBatch = {Map args, Closure closure ->
+			return timed(metrics, domainClass, couchdb, "withBatch", null) {
+				// the documents are evicted as they're flushed, so the ones written before an exception are too
+				CouchBatchSession.withBatch(couchdb, args, closure) {List<DocumentInfo> infos ->
+					registry.evictDocuments couchdb, infos*.id
+				}
+			}
 		}
 
 		metaClass.static.bulkDelete = {List documents ->
-			return bulkDelete(documents, false)
+			return bulkDelete(documents, [:])
 		}
 
 		metaClass.static.bulkDelete = {List documents, boolean allOrNothing ->
-			return couchdb.bulkDeleteDocuments(documents, allOrNothing)
+			return bulkDelete(documents, [allOrNothing: allOrNothing])
+		}
+
+		metaClass.static.bulkDelete = {List documents, Map o ->
+			CouchBulkWriter writer = new CouchBulkWriter(couchdb, executor, o, bulkConfig)
+			writer.documentId = {doc ->
+				getBulkDocumentId(application, domainClass, doc)
+			}
+
+			CouchBulkResult result = timed(metrics, domainClass, couchdb, "bulkDelete", null) {
+				writer.delete(documents)
+			}
+			recordChunks(metrics, domainClass, couchdb, "bulkDelete", result)
+
+			registry.evictDocuments couchdb, result*.id
+
+			return result
 		}
 
 		metaClass.static.readAttachment = {Serializable docId, String attachmentId ->
-			return couchdb.getAttachment(docId.toString(), attachmentId)
+			return timed(metrics, domainClass, couchdb, "readAttachment", null) {
+				couchdb.getAttachment(docId.toString(), attachmentId)
+			}
+		}
+
+		// Foo.openAttachmentStream(id, "report.pdf") reads the attachment straight from the connection;
+		// the stream must be closed
+		metaClass.static.openAttachmentStream = {Serializable docId, String attachmentId ->
+			return timed(metrics, domainClass, couchdb, "openAttachmentStream", null) {
+				attachmentReader.openStream(docId.toString(), attachmentId)
+			}
+		}
+
+		// Foo.openAttachmentStream(id, "report.pdf", 1024, 4096) reads part of the attachment with a Range request
+		metaClass.static.openAttachmentStream = {Serializable docId, String attachmentId, long offset, long length = -1 ->
+			return timed(metrics, domainClass, couchdb, "openAttachmentStream", null) {
+				attachmentReader.openStream(docId.toString(), attachmentId, offset, length)
+			}
+		}
+
+		// Foo.transferAttachmentTo(id, "report.pdf", response.outputStream) copies with a fixed size buffer
+		metaClass.static.transferAttachmentTo = {Serializable docId, String attachmentId, OutputStream out, long offset = 0 ->
+			return timed(metrics, domainClass, couchdb, "transferAttachmentTo", null) {
+				attachmentReader.transferTo(docId.toString(), attachmentId, out, offset)
+			}
+		}
+
+		metaClass.static.transferAttachmentTo = {Serializable docId, String attachmentId, WritableByteChannel channel, long offset = 0 ->
+			return timed(metrics, domainClass, couchdb, "transferAttachmentTo", null) {
+				attachmentReader.transferTo(docId.toString(), attachmentId, channel, offset)
+			}
+		}
+
+		// Foo.getAttachmentInfo(id, "report.pdf") returns the content type, length and digest (with a HEAD request)
+		metaClass.static.getAttachmentInfo = {Serializable docId, String attachmentId ->
+			return timed(metrics, domainClass, couchdb, "getAttachmentInfo", null) {
+				attachmentReader.getInfo(docId.toString(), attachmentId)
+			}
 		}
 
 		metaClass.static.saveAttachment = {Serializable docId, String version, String attachmentId, String contentType, byte[] data ->
-			return couchdb.createAttachment(docId.toString(), version, attachmentId, contentType, data)
+			def result = timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				couchdb.createAttachment(docId.toString(), version, attachmentId, contentType, data)
+			}
+			registry.evictDocument couchdb, docId.toString()
+
+			return result
 		}
 
 		metaClass.static.saveAttachment = {Serializable docId, String version, String attachmentId, String contentType, InputStream is, long length ->
-			return couchdb.createAttachment(docId.toString(), version, attachmentId, contentType, is, length)
+			def result = timed(metrics, domainClass, couchdb, "saveAttachment", null) {
+				couchdb.createAttachment(docId.toString(), version, attachmentId, contentType, is, length)
+			}
+			registry.evictDocument couchdb, docId.toString()
+
+			return result
 		}
 
 		metaClass.static.deleteAttachment = {Serializable docId, String version, String attachmentId ->
-			return couchdb.deleteAttachment(docId.toString(), version, attachmentId)
+			def result = timed(metrics, domainClass, couchdb, "deleteAttachment", null) {
+				couchdb.deleteAttachment(docId.toString(), version, attachmentId)
+			}
+			registry.evictDocument couchdb, docId.toString()
+
+			return result
 		}
 
 		metaClass.static.findAll = {Map o = [:] ->
-			return couchdb.listDocuments(getOptions(o), null).getRows()
+			return timed(metrics, domainClass, couchdb, "findAll", null) {
+				couchdb.listDocuments(getOptions(o), null).getRows()
+			}
 		}
 
+		// Foo.queryView("openTasks", [as: TaskSummary]) maps each row into a TaskSummary instead of returning the rows
+		//
+		// with a max (or limit) the rows are returned as a CouchViewPage; its nextCursor is passed back as the
+		// cursor option to read the next page, e.g. Foo.queryView("openTasks", [max: 50, cursor: page.nextCursor])
 		metaClass.static.queryView = {String viewName, Map o = [:] ->
 			def view = viewName
 			if (!view.contains("/")) {
 				view = domainClass.designName + "/" + view
 			}
 
-			def result
-			if (isDocumentQuery(o)) {
-				result = couchdb.queryViewAndDocuments(view, Map.class, domainClass.clazz, getOptions(o), queryParser)
-			} else {
-				result = couchdb.queryView(view, Map.class, getOptions(o), null)
-			}
+			int pageSize = getPageSize(o)
+			Map query = (pageSize > 0) ? getPageQuery(o, pageSize) : o
+
+			def result = timed(metrics, domainClass, couchdb, "queryView", view) {
+				cachedQuery(viewCache, domainClass, view, null, query, readDocument) {boolean shared ->
+					if (isDocumentQuery(query)) {
+						if (generatedJSON || shared) {
+							def documents = couchdb.queryViewAndDocuments(view, Map.class, Map.class, getOptions(query), generatedJSON ? codec.parser : null)
+							if (!shared) {
+								documents.getRows().each {row ->
+									row.document = readDocument(row.document)
+								}
+							}
+							return withDomainClass(documents, dc)
+						}
+
+						return withDomainClass(couchdb.queryViewAndDocuments(view, Map.class, domainClass.clazz, getOptions(query), queryParser), dc)
+					}
 
-			result.getRows().each {row ->
-				if (row.value instanceof Map) {
-					row.value?.put('__domainClass', dc)
+					return withDomainClass(couchdb.queryView(view, Map.class, getOptions(query), null), dc)
 				}
 			}
 
-			return result.getRows()
+			List rows = result.getRows()
+			CouchViewPage page = (pageSize > 0) ? CouchViewPage.forRows(rows, pageSize) : null
+
+			if (o.as) {
+				def projected = CouchRowProjection.forClass(o.as).project(page != null ? page : rows)
+				return (page != null) ? new CouchViewPage(projected, pageSize, page.nextCursor) : projected
+			}
+
+			return (page != null) ? page : rows
 		}
 
 		metaClass.static.queryViewByKeys = {String viewName, List keys, Map o = [:] ->
@@ -357,22 +946,152 @@ public class CouchDBPluginSupport {
 				view = domainClass.designName + "/" + view
 			}
 
-			def result
-			if (isDocumentQuery(o)) {
-				result = couchdb.queryViewAndDocumentsByKeys(view, Map.class, domainClass.clazz, convertKeys(keys), getOptions(o), queryParser)
-			} else {
-				result = couchdb.queryViewByKeys(view, Map.class, convertKeys(keys), getOptions(o), null)
+			// CouchDB doesn't apply a startkey to a query by keys
+			if (o.cursor) {
+				throw new IllegalArgumentException("The cursor option can't be used with a query by keys (view [${view}]); use queryView() with a key range instead.")
 			}
 
-			result.getRows().each {row ->
-				if (row.value instanceof Map) {
-					row.value?.put('__domainClass', dc)
+			def result = timed(metrics, domainClass, couchdb, "queryViewByKeys", view) {
+				cachedQuery(viewCache, domainClass, view, keys, o, readDocument) {boolean shared ->
+					if (isDocumentQuery(o)) {
+						if (generatedJSON || shared) {
+							def documents = couchdb.queryViewAndDocumentsByKeys(view, Map.class, Map.class, convertKeys(keys), getOptions(o), generatedJSON ? codec.parser : null)
+							if (!shared) {
+								documents.getRows().each {row ->
+									row.document = readDocument(row.document)
+								}
+							}
+							return withDomainClass(documents, dc)
+						}
+
+						return withDomainClass(couchdb.queryViewAndDocumentsByKeys(view, Map.class, domainClass.clazz, convertKeys(keys), getOptions(o), queryParser), dc)
+					}
+
+					return withDomainClass(couchdb.queryViewByKeys(view, Map.class, convertKeys(keys), getOptions(o), null), dc)
 				}
 			}
 
+			if (o.as) {
+				return CouchRowProjection.forClass(o.as).project(result.getRows())
+			}
+
 			return result.getRows()
 		}
 
+		// Foo.eachRow("openTasks", [pageSize: 1000]) {row -> ... } streams the view one row at a time; as with
+		// queryView, [as: TaskSummary] passes each row as an instance of the given class instead
+		metaClass.static.eachRow = {String viewName, Closure closure ->
+			eachRow(viewName, [:], closure)
+		}
+
+		metaClass.static.eachRow = {String viewName, Map o, Closure closure ->
+			def clazz = domainClass.clazz
+			// the rows are streamed, so the row count is the number of rows passed to the closure
+			timed(metrics, domainClass, couchdb, "eachRow", viewName, {long count -> count}) {
+				def rows = clazz.rowIterator(viewName, o)
+				def projection = o.as ? CouchRowProjection.forClass(o.as) : null
+				long count = 0
+				try {
+					while (rows.hasNext()) {
+						closure.call(projection ? projection.project(rows.next()) : rows.next())
+						count++
+					}
+				} finally {
+					rows.close()
+				}
+				return count
+			}
+		}
+
+		metaClass.static.eachRowByKeys = {String viewName, List keys, Closure closure ->
+			eachRowByKeys(viewName, keys, [:], closure)
+		}
+
+		metaClass.static.eachRowByKeys = {String viewName, List keys, Map o, Closure closure ->
+			def clazz = domainClass.clazz
+			// the rows are streamed, so the row count is the number of rows passed to the closure
+			timed(metrics, domainClass, couchdb, "eachRowByKeys", viewName, {long count -> count}) {
+				def rows = clazz.rowIteratorByKeys(viewName, keys, o)
+				def projection = o.as ? CouchRowProjection.forClass(o.as) : null
+				long count = 0
+				try {
+					while (rows.hasNext()) {
+						closure.call(projection ? projection.project(rows.next()) : rows.next())
+						count++
+					}
+				} finally {
+					rows.close()
+				}
+				return count
+			}
+		}
+
+		// the iterator must be read to the end or closed
+		metaClass.static.rowIterator = {String viewName, Map o = [:] ->
+			return createRowIterator(couchdb, domainClass, viewName, null, o, isDocumentQuery(o) ? rowDocumentParser : rowParser)
+		}
+
+		metaClass.static.rowIteratorByKeys = {String viewName, List keys, Map o = [:] ->
+			return createRowIterator(couchdb, domainClass, viewName, convertKeys(keys), o, isDocumentQuery(o) ? rowDocumentParser : rowParser)
+		}
+
+		// Foo.onChanges(null, null, 100) {List changes -> ... } follows the _changes feed for this class' documents
+		metaClass.static.onChanges = {Closure handler ->
+			return onChanges([:], handler)
+		}
+
+		metaClass.static.onChanges = {String filter, Object since, int batchSize, Closure handler ->
+			return onChanges([filter: filter, since: since, batchSize: batchSize], handler)
+		}
+
+		metaClass.static.onChanges = {Map o, Closure handler ->
+			String id = o.id ?: "gorm-couchdb-${domainClass.fullName}${o.filter ? '-' + o.filter : ''}"
+
+			def listener = new CouchChangesListener(couchdb, id, handler as CouchChangesHandler)
+
+			listener.feed = o.feed ?: CouchChangesListener.FEED_LONGPOLL
+			listener.filter = o.filter ?: null
+			listener.since = o.since
+			if (o.batchSize) {
+				listener.batchSize = o.batchSize as int
+			}
+			if (o.queueSize) {
+				listener.queueSize = o.queueSize as int
+			}
+			if (o.heartbeat) {
+				listener.heartbeat = o.heartbeat as long
+			}
+			if (o.minBackoff) {
+				listener.minBackoff = o.minBackoff as long
+			}
+			if (o.maxBackoff) {
+				listener.maxBackoff = o.maxBackoff as long
+			}
+
+			// checkpoints are kept in a _local document unless told otherwise
+			if (o.checkpointStore instanceof CouchCheckpointStore) {
+				listener.checkpointStore = o.checkpointStore
+			} else if (o.checkpointStore == "memory") {
+				listener.checkpointStore = new CouchMemoryCheckpointStore()
+			} else {
+				listener.checkpointStore = new CouchLocalCheckpointStore(couchdb)
+			}
+
+			// only deliver changes to documents of this class (and its subclasses)
+			if (domainClass.typeFieldName && domainClass.documentType) {
+				listener.typeFieldName = domainClass.typeFieldName
+				listener.documentTypes = ([domainClass.documentType] + domainClass.subClassTypes.keySet()) as Set
+			}
+
+			listener.documentClass = domainClass.clazz
+			listener.documentParser = readParser
+
+			registry.registerChangesListener listener
+			listener.start()
+
+			return listener
+		}
+
 		metaClass.static.getDesignDocument = {String id ->
 			try {
 				def view = id
@@ -399,7 +1118,23 @@ public class CouchDBPluginSupport {
 			return couchdb.delete(doc)
 		}
 
+		// Foo.update(id, "complete", [date: new Date()]) calls the update handler in .../views/<designName>/updates/complete.js,
+		// which changes the document on the server in a single request; the params are passed as the query string
+		// (req.query) and the body (a map is sent as JSON) as req.body.  Without an id the handler creates the document.
+		metaClass.static.update = {Serializable docId, String handler, Map params = [:], Object body = null ->
+			DocumentInfo info = timed(metrics, domainClass, couchdb, "update", handler) {
+				callUpdateHandler(couchdb, domainClass, docId?.toString(), handler, params, body)
+			}
+			registry.evictDocument couchdb, info.id
+
+			return info
+		}
+
 		metaClass.static.parse = {json ->
+			if (generatedJSON) {
+				return codec.read(domainClass.clazz, codec.parser.parse(Map.class, json as String))
+			}
+
 			return readParser.parse(dc.clazz, json as String)
 		}
 
@@ -414,57 +1149,167 @@ public class CouchDBPluginSupport {
 		metaClass.static.getQueryParser = {
 			return queryParser
 		}
+
+		metaClass.static.getDocumentCache = {
+			return documentCache
+		}
+
+		metaClass.static.getCacheStatistics = {
+			return documentCache?.statistics
+		}
+
+		metaClass.static.getViewCacheStatistics = {
+			return viewCache.statistics
+		}
 	}
 
 	private static addDynamicFinderSupport(GrailsApplication application, CouchDomainClass dc, ApplicationContext ctx, Database db) {
-		def metaClass = dc.metaClass
+		def mc = dc.metaClass
 		def domainClass = dc
 		def couchdb = db
+		CouchMetrics metrics = ctx.getBean("couchdbMetrics")
+		CouchViewCache viewCache = ctx.getBean("couchdbDatabaseRegistry").getViewCache(db)
+
+		// finders can read the (warmed) view indexes without waiting for them to be updated
+		String stale = application.config.couchdb?.finders?.stale ?: null
+
+		// finder method names are resolved once; names that aren't finders are remembered too so that
+		// they don't keep paying for the pattern match
+		Map<String, List> finders = new ConcurrentHashMap<String, List>()
+		Map<String, Boolean> misses = new ConcurrentHashMap<String, Boolean>()
+
+		// registers a real static method for the finder so that later calls don't go through methodMissing
+		// (unless the name is already taken by another method, e.g. list(Map) and the list view)
+		def registerFinder = {String methodName, String method, String view ->
+			finders.put(methodName, [method, view])
+
+			if (!mc.respondsTo(domainClass.clazz, methodName)) {
+				mc.static."${methodName}" = {Object[] args ->
+					return invokeFinder(domainClass, couchdb, metrics, viewCache, stale, methodName, method, view, args)
+				}
+			}
+		}
 
 		// This adds basic dynamic finder support.
-		metaClass.static.methodMissing = {String methodName, args ->
-
-			// find methods (can have search keys)
-			def matcher = (methodName =~ /^(find)((\w+)?)$/)
-			if (!matcher.matches()) {
-
-				// list methods (can have search keys)
-				matcher = (methodName =~ /^(list)((\w+)?)$/)
-				matcher.reset()
-				if (!matcher.matches()) {
-
-					// count methods (only options)
-					matcher = (methodName =~ /^(count)((\w+)?)$/)
-					matcher.reset()
-					if (!matcher.matches()) {
-						throw new MissingMethodException(methodName, delegate, args, true)
+		mc.static.methodMissing = {String methodName, args ->
+
+			def finder = finders.get(methodName)
+			if (finder == null) {
+				if (misses.containsKey(methodName)) {
+					throw new MissingMethodException(methodName, domainClass.clazz, args, true)
+				}
+
+				// Foo.updateComplete(id, [date: new Date()]) is Foo.update(id, "complete", [date: new Date()])
+				def update = (methodName =~ UPDATE_PATTERN)
+				if (update.matches() && args) {
+					def handler = update.group(1).substring(0, 1).toLowerCase() + update.group(1).substring(1)
+					def clazz = domainClass.clazz
+
+					mc.static."${methodName}" = {Serializable docId, Map params = [:], Object body = null ->
+						return clazz.update(docId, handler, params, body)
 					}
+
+					return clazz."${methodName}"(*args)
 				}
-			}
 
-			// set the view to everything after the method type (change first char to lowerCase).
-			def method = matcher.group(1)
-			def view = matcher.group(2) ?: method
-			view = domainClass.designName + "/" + view.substring(0, 1).toLowerCase() + view.substring(1)
+				// find, list and each methods can have search keys, count methods only options; each methods
+				// need a view name (the last argument is the closure)
+				def matcher = (methodName =~ FINDER_PATTERN)
+				if (!matcher.matches() || (matcher.group(1) == "each" && !matcher.group(2))) {
+					misses.put(methodName, Boolean.TRUE)
+					throw new MissingMethodException(methodName, domainClass.clazz, args, true)
+				}
 
-			// named arguments are placed first
-			args = args.toList()
-			def options = (args.size() > 0 && args[0] instanceof Map) ? args.remove(0) : [:]
+				// set the view to everything after the method type (change first char to lowerCase).
+				def method = matcher.group(1)
+				def view = matcher.group(2) ?: method
+				view = domainClass.designName + "/" + view.substring(0, 1).toLowerCase() + view.substring(1)
 
-			// call the appropriate query and return the results
-			if (method == "find" || method == "list") {
+				registerFinder(methodName, method, view)
+				finder = [method, view]
+			}
 
-				// assume that the list of keys (if any) is everything else
-				def keys = (args ?: [])
-				if (keys) {
-					return queryViewByKeys(view, keys, options)
-				} else {
-					return queryView(view, options)
+			return invokeFinder(domainClass, couchdb, metrics, viewCache, stale, methodName, finder[0], finder[1], args as Object[])
+		}
+
+		// optionally register the finders of every view up front
+		if (application.config.couchdb?.finders?.preRegister) {
+			def views = new File(getViewsPath(application), domainClass.designName)
+			if (views.isDirectory()) {
+				views.listFiles().findAll {it.isFile() && it.name.endsWith(".map.js")}.each {File file ->
+					def view = file.name - ".map.js"
+					def suffix = view.substring(0, 1).toUpperCase() + view.substring(1)
+
+					def methods = ["find", "list", "each"]
+					if (new File(views, view + ".reduce.js").exists()) {
+						methods << "count"
+					}
+
+					methods.each {method ->
+						registerFinder(method + suffix, method, domainClass.designName + "/" + view)
+					}
+					if (view in methods && view != "each") {
+						registerFinder(view, view, domainClass.designName + "/" + view)
+					}
 				}
+
+				log.debug "Registered ${finders.size()} finders for ${domainClass.fullName}"
+			}
+		}
+	}
+
+	/**
+	 * The find, list and each finders are recorded by the queryView / eachRow methods they call (tagged with
+	 * the view); count finders are recorded (and use the view cache) here.
+	 *
+	 * @param stale the default stale option ("ok" or "update_after", null to wait for the index)
+	 */
+	private static Object invokeFinder(CouchDomainClass domainClass, Database couchdb, CouchMetrics metrics, CouchViewCache viewCache, String stale, String methodName, String method, String view, Object[] args) {
+		def clazz = domainClass.clazz
+
+		// named arguments are placed first
+		def list = args.toList()
+		def options = (list.size() > 0 && list[0] instanceof Map) ? list.remove(0) : [:]
+		if (stale && !options.containsKey("stale")) {
+			options = new LinkedHashMap(options)
+			options.stale = stale
+		}
+
+		// call the appropriate query and return the results
+		if (method == "each") {
+			def closure = (list && list[-1] instanceof Closure) ? list.remove(list.size() - 1) : null
+			if (!closure) {
+				throw new MissingMethodException(methodName, clazz, args, true)
+			}
+
+			def keys = (list ?: [])
+			if (keys) {
+				clazz.eachRowByKeys(view, keys, options, closure)
 			} else {
-				def count = couchdb.queryView(view, Map.class, getOptions(options), null).getRows()
-				return (count ? count[0].value : 0) as Long
+				clazz.eachRow(view, options, closure)
 			}
+			return null
+		} else if (method == "find" || method == "list") {
+
+			// assume that the list of keys (if any) is everything else; a page of a single key is read as a
+			// key query so that it can have a cursor
+			def keys = (list ?: [])
+			if (keys.size() == 1 && getPageSize(options) > 0) {
+				options = new LinkedHashMap(options)
+				options.key = keys[0]
+				return clazz.queryView(view, options)
+			} else if (keys) {
+				return clazz.queryViewByKeys(view, keys, options)
+			} else {
+				return clazz.queryView(view, options)
+			}
+		} else {
+			def count = timed(metrics, domainClass, couchdb, "count", view) {
+				cachedQuery(viewCache, domainClass, view, null, options, null) {boolean shared ->
+					couchdb.queryView(view, Map.class, getOptions(options), null)
+				}.getRows()
+			}
+			return (count ? count[0].value : 0) as Long
 		}
 	}
 
@@ -474,6 +1319,47 @@ public class CouchDBPluginSupport {
 
 		registerConstraintsProperty(metaClass, domainClass)
 
+		CouchPersistencePlan plan = domainClass.persistencePlan
+
+		// instances of classes with the errors slot (see CouchEntityASTTransformation) hold their own errors,
+		// which are only created when they're asked for
+		if (plan.hasErrorsSlot()) {
+			metaClass.hasErrors = {-> plan.getErrors(delegate)?.hasErrors() ?: false }
+			metaClass.getErrors = {->
+				Errors errors = plan.getErrors(delegate)
+				if (errors == null) {
+					errors = new BeanPropertyBindingResult(delegate, domainClass.fullName)
+					plan.setErrors(delegate, errors)
+				}
+				errors
+			}
+			metaClass.setErrors = {Errors errors ->
+				plan.setErrors(delegate, errors)
+			}
+			metaClass.clearErrors = {->
+				plan.setErrors(delegate, null)
+			}
+		} else {
+			addRequestErrorsMethods(application, metaClass)
+		}
+
+		if (!domainClass.hasMetaMethod("validate")) {
+			metaClass.validate = {->
+
+				// clear the errors list before performing the validation
+				clearErrors()
+
+				// validate this instance
+				DomainClassPluginSupport.validateInstance(delegate, ctx)
+			}
+		}
+	}
+
+	/**
+	 * Keeps the errors of instances without the errors slot in the request (or thread local) attributes.
+	 */
+	private static addRequestErrorsMethods(GrailsApplication application, MetaClass metaClass) {
+
 		metaClass.hasErrors = {-> delegate.errors?.hasErrors() }
 
 		def get
@@ -517,16 +1403,6 @@ public class CouchDBPluginSupport {
 		metaClass.clearErrors = {->
 			delegate.setErrors(new BeanPropertyBindingResult(delegate, delegate.getClass().getName()))
 		}
-		if (!domainClass.hasMetaMethod("validate")) {
-			metaClass.validate = {->
-
-				// clear the errors list before performing the validation
-				clearErrors()
-
-				// validate this instance
-				DomainClassPluginSupport.validateInstance(delegate, ctx)
-			}
-		}
 	}
 
 	private static addPropertiesSupport(GrailsApplication application, CouchDomainClass dc, ApplicationContext ctx) {
@@ -555,124 +1431,211 @@ public class CouchDBPluginSupport {
 		metaClass.getConstraints = {-> domainClass.constrainedProperties }
 	}
 
-	private static Object autoTimeStamp(GrailsApplication application, Object domain) {
+	private static Object autoTimeStamp(CouchPersistencePlan plan, Object domain) {
+		if (plan?.isTimestamped()) {
+			plan.timestamp(domain, System.currentTimeMillis())
+		}
 
-		CouchDomainClass dc = (CouchDomainClass) application.getArtefact(CouchDomainClassArtefactHandler.TYPE, domain.getClass().getName())
-		if (dc) {
-			def metaClass = dc.metaClass
+		return domain
+	}
 
-			MetaProperty property = metaClass.hasProperty(dc, GrailsDomainClassProperty.DATE_CREATED)
-			def time = System.currentTimeMillis()
-			if (property && domain[property.name] == null && getDocumentVersion(dc, domain) == null) {
-				def now = property.getType().newInstance([time] as Object[])
-				domain[property.name] = now
-			}
+	/**
+	 * @return the plan of the domain's class (which may be a sub class of dc), or null if it isn't a domain class
+	 */
+	private static CouchPersistencePlan getPersistencePlan(GrailsApplication application, CouchDomainClass dc, Object domain) {
+		if (domain?.getClass() == dc.clazz) {
+			return dc.persistencePlan
+		}
 
-			property = metaClass.hasProperty(dc, GrailsDomainClassProperty.LAST_UPDATED)
-			if (property) {
-				def now = property.getType().newInstance([time] as Object[])
-				domain[property.name] = now
-			}
+		CouchDomainClass domainClass = (CouchDomainClass) application.getArtefact(CouchDomainClassArtefactHandler.TYPE, domain?.getClass()?.getName())
+		return domainClass?.persistencePlan
+	}
+
+	/**
+	 * @return the id of a bulk document, which can be of another domain class (e.g. a Task in Project.bulkSave) or a Map
+	 */
+	private static String getBulkDocumentId(GrailsApplication application, CouchDomainClass dc, Object doc) {
+		CouchPersistencePlan plan = getPersistencePlan(application, dc, doc)
+		if (plan) {
+			return plan.getId(doc)
 		}
 
-		return domain
+		return (doc instanceof Map) ? doc._id : null
 	}
 
 	private static String getDocumentId(CouchDomainClass dc, Object domain) {
-		def id = dc.getIdentifier()
-		if (id) {
-			domain[id.name]
-		}
+		return dc.persistencePlan.getId(domain)
 	}
 
 	private static String getDocumentVersion(CouchDomainClass dc, Object domain) {
-		def version = dc.getVersion()
-		if (version) {
-			domain[version.name]
-		}
+		return dc.persistencePlan.getVersion(domain)
 	}
 
 	private static void setDocumentVersion(CouchDomainClass dc, Object domain, String newVersion) {
-		def version = dc.getVersion()
-		if (version) {
-			domain[version.name] = newVersion
-		}
+		dc.persistencePlan.setVersion(domain, newVersion)
 	}
 
 	private static Map<String, Attachment> getDocumentAttachments(CouchDomainClass dc, Object domain) {
-		def att = dc.getAttachments()
-		if (att) {
-			domain[att.name]
-		}
+		return dc.persistencePlan.getAttachments(domain)
 	}
 
-	private static Database getCouchDatabase(GrailsApplication application, CouchDomainClass domainClass, boolean createDatabase) {
-		def ds = application.config.couchdb
-		def dbId = domainClass.databaseId
+	/**
+	 * Calls the body, recording its duration, row count (the size of a collection result or 1 for any other
+	 * result, so a count is one row) and whether it failed when the metrics are enabled.
+	 */
+	private static Object timed(CouchMetrics metrics, CouchDomainClass dc, Database db, String operation, String view, Closure body) {
+		return timed(metrics, dc, db, operation, view, null, body)
+	}
 
-		String host = ds?.host ?: "localhost"
-		Integer port = (ds?.port ?: 5984) as Integer
-		String database = ds?.database ?: (dbId ?: application.metadata["app.name"])
-		String username = ds?.username ?: ""
-		String password = ds?.password ?: ""
+	/**
+	 * @param rowCount returns the row count of the result, <code>{result -> rows}</code>
+	 */
+	private static Object timed(CouchMetrics metrics, CouchDomainClass dc, Database db, String operation, String view, Closure rowCount, Closure body) {
+		if (metrics == null || !metrics.enabled) {
+			return body.call()
+		}
 
-		String realm = ds?.realm ?: null
-		String scheme = ds?.scheme ?: null
+		long start = System.nanoTime()
+		boolean error = true
+		def result = null
+		try {
+			result = body.call()
+			error = false
+
+			return result
+		} finally {
+			long rows = 0
+			if (rowCount != null) {
+				rows = (!error) ? rowCount.call(result) as long : 0
+			} else if (result instanceof Collection) {
+				rows = result.size()
+			} else if (result instanceof ViewResult) {
+				rows = result.rows?.size() ?: 0
+			} else if (result != null) {
+				rows = 1
+			}
 
-		// get the datasource configuration for this specific db (if any)
-		if (dbId && ds[dbId]) {
-			ds = ds[dbId]
+			metrics.record(db.name, dc.fullName, operation, view, System.nanoTime() - start, rows, error)
+		}
+	}
 
-			host = ds.host ?: host
-			port = ds.port ?: port
-			database = ds.database ?: database
-			username = ds.username ?: username
-			password = ds.password ?: password
-			realm = ds.realm ?: realm
-			scheme = ds.scheme ?: scheme
+	/**
+	 * Calls the update handler (PUT with a document id, POST without one).
+	 *
+	 * @return the document info with the document's new revision (from the X-Couch-Update-NewRev header)
+	 */
+	private static DocumentInfo callUpdateHandler(Database couchdb, CouchDomainClass dc, String docId, String handler, Map params, Object body) {
+		def name = handler.contains("/") ? handler : dc.designName + "/" + handler
+		def slash = name.indexOf("/")
+
+		StringBuilder uri = new StringBuilder("/").append(couchdb.name)
+		uri.append("/_design/").append(name.substring(0, slash)).append("/_update/").append(name.substring(slash + 1))
+		if (docId != null) {
+			uri.append("/").append(CouchAttachmentReader.encodeId(docId))
 		}
 
-		Database db = new Database(host, port, database)
+		String separator = "?"
+		params?.each {key, value ->
+			uri.append(separator).append(URLEncoder.encode(key.toString(), "UTF-8")).append("=")
+			if (value != null) {
+				uri.append(URLEncoder.encode(JsonConverterUtils.toJSON(value).toString(), "UTF-8"))
+			}
+			separator = "&"
+		}
 
-		// check to see if there are any user credentials and set them
-		if (StringUtils.isNotEmpty(username)) {
-			def credentials = new UsernamePasswordCredentials(username, password)
-			def authScope = new AuthScope(host, port)
+		String content = ""
+		if (body != null) {
+			content = (body instanceof String) ? body : couchdb.jsonConfig.jsonGenerator.forValue(body)
+		}
 
-			// set the realm and scheme if they are set
-			if (StringUtils.isNotEmpty(realm) || StringUtils.isNotEmpty(scheme)) {
-				authScope = new AuthScope(host, port, realm, scheme)
+		Response resp = null
+		try {
+			resp = (docId != null) ? couchdb.server.put(uri.toString(), content) : couchdb.server.post(uri.toString(), content)
+			if (!resp.isOk()) {
+				throw new DataAccessException("error calling update handler " + name + ": ", resp)
 			}
 
-			db.server.setCredentials(authScope, credentials)
+			DocumentInfo info = new DocumentInfo()
+			info.id = getHeader(resp, "X-Couch-Id") ?: docId
+			info.revision = getHeader(resp, "X-Couch-Update-NewRev")
+			info.ok = true
+
+			return info
+		} finally {
+			resp?.destroy()
 		}
+	}
 
-		if (createDatabase) {
-			if (db.getServer().createDatabase(db.getName())) {
-				log.info("Database [${db.getName()}] created.")
-			}
+	private static String getHeader(Response resp, String name) {
+		return resp.responseHeaders?.find {it.name.equalsIgnoreCase(name)}?.value
+	}
+
+	/**
+	 * Records the duration of each of the bulk operation's requests as "&lt;operation&gt;.chunk".
+	 */
+	private static void recordChunks(CouchMetrics metrics, CouchDomainClass dc, Database db, String operation, CouchBulkResult result) {
+		if (metrics == null || !metrics.enabled) {
+			return
+		}
+
+		result.chunks.each {Map chunk ->
+			metrics.record(db.name, dc.fullName, operation + ".chunk", null, chunk.nanos ?: 0L, chunk.documents, chunk.error != null)
+		}
+	}
+
+	/**
+	 * Returns null, or throws a ValidationException if the save should fail on errors.
+	 */
+	private static Object validationFailed(CouchDomainClass dc, Object domain, Map args) {
+		boolean shouldFail = dc.shouldFailOnError
+		if (args != null && args.containsKey(ARGUMENT_FAIL_ON_ERROR)) {
+			shouldFail = GrailsClassUtils.getBooleanFromMap(ARGUMENT_FAIL_ON_ERROR, args)
+		}
+		if (shouldFail) {
+			throw new ValidationException("Validation Error(s) occurred during save()", domain.errors)
 		}
 
-		DefaultTypeConverterRepository typeConverterRepository = new DefaultTypeConverterRepository()
-		JsonDateConverter dateConverter = new JsonDateConverter()
-		typeConverterRepository.addTypeConverter(dateConverter)
+		return null
+	}
 
-		JSON generator = new JSON()
-		generator.setIgnoredProperties(Arrays.asList("metaClass"))
-		generator.setTypeConverterRepository(typeConverterRepository)
-		generator.registerTypeConversion(java.util.Date.class, dateConverter)
-		generator.registerTypeConversion(java.sql.Date.class, dateConverter)
-		generator.registerTypeConversion(java.sql.Timestamp.class, dateConverter)
+	private static Object attachmentSaved(CouchDomainClass dc, Object domain, Map args, CouchDatabaseRegistry registry, Database couchdb, String attachmentId, String contentType, long length, String rev) {
+		def docId = getDocumentId(dc, domain)
+		registry.evictDocument couchdb, docId
 
-		JSONParser parser = new JSONParser()
-		parser.setTypeConverterRepository(typeConverterRepository)
-		parser.registerTypeConversion(java.util.Date.class, dateConverter)
-		parser.registerTypeConversion(java.sql.Date.class, dateConverter)
-		parser.registerTypeConversion(java.sql.Timestamp.class, dateConverter)
+		if (args?.reload == false) {
+			setDocumentVersion(dc, domain, rev)
 
-		db.jsonConfig = new JSONConfig(generator, parser)
+			if (dc.getAttachments()) {
+				def attachment = new Attachment()
+				attachment.contentType = contentType
+				attachment.stub = true
 
-		return db
+				// the length of a chunked upload isn't known until the document is read back
+				if (length >= 0) {
+					attachment.length = length
+				}
+
+				putDocumentAttachment(dc, domain, attachmentId, attachment)
+			}
+
+			return domain
+		}
+
+		return dc.getClazz().get(docId)
+	}
+
+	private static void putDocumentAttachment(CouchDomainClass dc, Object domain, String attachmentId, Attachment attachment) {
+		CouchPersistencePlan plan = dc.persistencePlan
+		if (!plan.hasAttachments()) {
+			throw new IllegalStateException("Class [${dc.fullName}] doesn't have an attachments property.")
+		}
+
+		Map attachments = plan.getAttachments(domain)
+		if (attachments == null) {
+			attachments = [:]
+			plan.setAttachments(domain, attachments)
+		}
+		attachments.put(attachmentId, attachment)
 	}
 
 	private static void setDocTypeMapper(CouchDomainClass domainClass, JSONParser parser) {
@@ -699,8 +1662,89 @@ public class CouchDBPluginSupport {
 		parser.setTypeMapper mapper
 	}
 
+	private static void setRowDocTypeMapper(CouchDomainClass domainClass, JSONParser parser) {
+		CouchDomainTypeMapper mapper = new CouchDomainTypeMapper()
+
+		mapper.setParsePathInfo ".doc"
+
+		domainClass.getSubClassTypes().each {type, dc ->
+			mapper.addFieldValueMapping(type, dc.clazz)
+		}
+
+		parser.setTypeMapper mapper
+	}
+
+	private static List getAllDocuments(Database couchdb, CouchDomainClass dc, List ids, JSONParser parser, CouchEntityCodec codec, executor, int chunkSize) {
+		List keys = ids.collect { it?.toString() }
+
+		List chunks = []
+		List uniqueKeys = (keys.findAll { it != null } as LinkedHashSet) as List
+		for (int i = 0; i < uniqueKeys.size(); i += chunkSize) {
+			chunks << uniqueKeys.subList(i, Math.min(i + chunkSize, uniqueKeys.size()))
+		}
+
+		def fetch = {List chunk ->
+			Map documents = [:]
+
+			// missing documents come back with an error and deleted ones without a document
+			if (codec) {
+				couchdb.queryDocumentsByKeys(Map.class, Map.class, chunk, null, codec.parser).rows.each {row ->
+					if (row.document != null) {
+						documents.put(row.key, codec.read(dc.clazz, row.document))
+					}
+				}
+			} else {
+				couchdb.queryDocumentsByKeys(Map.class, dc.clazz, chunk, null, parser).rows.each {row ->
+					if (row.document != null) {
+						documents.put(row.key, row.document)
+					}
+				}
+			}
+
+			return documents
+		}
+
+		Map documents = [:]
+		if (chunks.size() == 1 || !executor) {
+			chunks.each {List chunk ->
+				documents.putAll(fetch(chunk))
+			}
+		} else {
+			List<Future> futures = chunks.collect {List chunk ->
+				executor.submit({-> fetch(chunk)} as Callable)
+			}
+
+			try {
+				futures.each {Future future ->
+					documents.putAll(future.get())
+				}
+			} catch (ExecutionException e) {
+				futures*.cancel(true)
+				throw e.cause
+			}
+		}
+
+		return keys.collect { it != null ? documents.get(it) : null }
+	}
+
+	private static CouchViewIterator createRowIterator(Database couchdb, CouchDomainClass dc, String viewName, List keys, Map o, JSONParser parser) {
+		def viewURI = viewName
+		if (viewName != "_all_docs") {
+			def view = viewName.contains("/") ? viewName : dc.designName + "/" + viewName
+			def slash = view.indexOf("/")
+
+			viewURI = "_design/" + view.substring(0, slash) + "/_view/" + view.substring(slash + 1)
+		}
+
+		def rowClass = isDocumentQuery(o) ? ValueAndDocumentRow.class : ValueRow.class
+		def pageSize = (o.pageSize ?: 0) as int
+
+		return new CouchViewIterator(couchdb, viewURI, getOptions(o), keys, parser, rowClass, dc, pageSize)
+	}
+
 	private static Options getOptions(Map o) {
 		def options = new Options()
+		def cursor = null
 
 		if (o) {
 			o.each {String key, Object value ->
@@ -728,6 +1772,10 @@ public class CouchDBPluginSupport {
 						options.descending((value == "desc"))
 						break
 
+					case "cursor":
+						cursor = value
+						break
+
 					case "update":
 					case "group":
 					case "stale":
@@ -743,9 +1791,139 @@ public class CouchDBPluginSupport {
 			}
 		}
 
+		// the cursor's row (the first row of the page) replaces any startkey and skip
+		if (cursor) {
+			Object[] start = CouchViewPage.decodeCursor(cursor.toString())
+			options.put("startkey", start[0])
+			if (start[1] != null) {
+				options.put("startkey_docid", start[1])
+			}
+			options.put("skip", 0)
+		}
+
 		return options
 	}
 
+	/**
+	 * @return the max (or limit) option, or 0 if the query isn't paged
+	 */
+	private static int getPageSize(Map o) {
+		def size = (o?.max != null) ? o.max : o?.limit
+		return (size != null) ? Math.max(size as int, 0) : 0
+	}
+
+	/**
+	 * @return the options with a limit of one more row than the page size, whose key and id are the next cursor
+	 */
+	private static Map getPageQuery(Map o, int pageSize) {
+		Map query = new LinkedHashMap(o)
+		query.remove("max")
+		query.limit = pageSize + 1
+
+		return query
+	}
+
+	/**
+	 * Returns the view cache's result for the query, or runs the query and caches its result, if the query
+	 * uses the cache: with the <code>cache: true</code> option, or unless it has <code>cache: false</code>
+	 * when the cache is enabled.
+	 */
+	private static Object cachedQuery(CouchViewCache viewCache, CouchDomainClass dc, String view, List keys, Map o, Closure readDocument, Closure query) {
+		boolean cached = (o?.containsKey("cache")) ? (o.cache as Boolean) : viewCache?.enabled
+		if (!viewCache || !cached) {
+			return query(false)
+		}
+
+		String key = getViewCacheKey(dc, view, keys, o)
+
+		long generation = viewCache.validate()
+		def result = viewCache.get(key)
+		if (result == null) {
+			result = query(true)
+
+			def rows = (result instanceof AbstractViewResult) ? result.rows : null
+			viewCache.put(key, generation, result, rows ? rows.size() : 1)
+		}
+
+		return copyViewResult(result, readDocument)
+	}
+
+	/**
+	 * Adds the domain class to the (Map) values of the rows, so that their properties are converted to the
+	 * types of the domain class's properties when they're read (see doWithSpring).
+	 */
+	private static Object withDomainClass(AbstractViewResult result, CouchDomainClass dc) {
+		result.rows.each {row ->
+			if (row.value instanceof Map) {
+				row.value.put(CouchViewIterator.DOMAIN_CLASS_KEY, dc)
+			}
+		}
+
+		return result
+	}
+
+	/**
+	 * Copies a cached view result for a caller: the rows (and their values) are converted in place as
+	 * they're read, so every caller gets its own, and include_docs documents, which are cached as they
+	 * were read (Maps), are read into new instances with readDocument.
+	 */
+	private static Object copyViewResult(AbstractViewResult result, Closure readDocument) {
+		AbstractViewResult copy = result.getClass().newInstance()
+		copy.totalRows = result.totalRows
+		copy.offset = result.offset
+
+		copy.rows = result.rows.collect {row ->
+			def rowCopy = row.getClass().newInstance()
+			rowCopy.id = row.id
+			rowCopy.key = copyValue(row.key)
+			rowCopy.value = copyValue(row.value)
+			row.propertyNames().each {String name ->
+				rowCopy.setProperty(name, copyValue(row.getProperty(name)))
+			}
+
+			if (row instanceof ValueAndDocumentRow) {
+				def document = row.document
+				rowCopy.document = (readDocument && document instanceof Map) ? readDocument(copyValue(document)) : document
+			}
+
+			return rowCopy
+		}
+
+		return copy
+	}
+
+	private static Object copyValue(Object value) {
+		if (value instanceof Map) {
+			Map copy = new LinkedHashMap()
+			value.each {k, v ->
+				copy.put(k, copyValue(v))
+			}
+			return copy
+		} else if (value instanceof List) {
+			return value.collect {copyValue(it)}
+		}
+
+		return value
+	}
+
+	/**
+	 * The view cache key: the domain class (which include_docs documents are read as), view, query options
+	 * (as they're sent, in name order) and keys.
+	 */
+	private static String getViewCacheKey(CouchDomainClass dc, String view, List keys, Map o) {
+		Options options = getOptions(o)
+
+		StringBuilder key = new StringBuilder(dc.fullName).append(':').append(view)
+		new TreeSet<String>(options.keys()).each {String name ->
+			key.append(':').append(name).append('=').append(options.get(name))
+		}
+		if (keys != null) {
+			key.append(':keys=').append(JSON.defaultJSON().forValue(convertKeys(keys)))
+		}
+
+		return key.toString()
+	}
+
 	private static boolean isDocumentQuery(Map o) {
 
 		if (o['include_docs']) {
@@ -50,11 +50,13 @@ import org.codehaus.groovy.control.CompilePhase
 import org.codehaus.groovy.control.SourceUnit
 import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty
 import org.codehaus.groovy.grails.compiler.injection.GrailsASTUtils
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchErrorsHolder
 import org.codehaus.groovy.syntax.Token
 import org.codehaus.groovy.syntax.Types
 import org.codehaus.groovy.transform.ASTTransformation
 import org.codehaus.groovy.transform.GroovyASTTransformation
 import org.jcouchdb.document.Attachment
+import org.springframework.validation.Errors
 import org.svenson.JSONProperty
 import org.svenson.JSONTypeHint
 import org.svenson.converter.JSONConverter
@@ -71,6 +73,8 @@ class CouchEntityASTTransformation implements ASTTransformation {
 	private static final String IDENTITY = GrailsDomainClassProperty.IDENTITY
 	private static final String VERSION = GrailsDomainClassProperty.VERSION
 	private static final String ATTACHMENTS = "attachments"
+	private static final String ERRORS_FIELD = '$couchErrors'
+	private static final String ERRORS_METHOD = "couchErrors"
 
 	private static final ClassNode COUCH_ENTITY = new ClassNode(CouchEntity)
 
@@ -86,6 +90,9 @@ class CouchEntityASTTransformation implements ASTTransformation {
 	private static final ClassNode JSON_TYPE_HINT = new ClassNode(JSONTypeHint)
 	private static final ClassNode JSON_CONVERTER = new ClassNode(JSONConverter)
 
+	private static final ClassNode ERRORS_HOLDER = new ClassNode(CouchErrorsHolder)
+	private static final ClassNode ERRORS_TYPE = new ClassNode(Errors)
+
 	private static final ClassNode STRING_TYPE = new ClassNode(String)
 	private static final ClassNode BOOLEAN_TYPE = new ClassNode(boolean)
 
@@ -103,6 +110,7 @@ class CouchEntityASTTransformation implements ASTTransformation {
 		injectIdProperty(owner)
 		injectVersionProperty(owner)
 		injectAttachmentsProperty(owner)
+		injectErrorsHolder(owner)
 
 		injectJSONPropertyAnnotations(owner)
 	}
@@ -267,6 +275,43 @@ class CouchEntityASTTransformation implements ASTTransformation {
 		}
 	}
 
+	private void injectErrorsHolder(ClassNode classNode) {
+
+		// don't inject if we inherit the errors slot
+		if (classNode.implementsInterface(ERRORS_HOLDER)) {
+			return
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Adding errors slot [" + ERRORS_FIELD + "] to class [" + classNode.getName() + "]")
+		}
+
+		// a private transient field (not a property) so that it's neither a domain class property nor serialized
+		FieldNode field = classNode.addField(ERRORS_FIELD, Modifier.PRIVATE | Modifier.TRANSIENT, ERRORS_TYPE, null)
+
+		classNode.addMethod(new MethodNode(ERRORS_METHOD,
+			Modifier.PUBLIC,
+			ERRORS_TYPE,
+			Parameter.EMPTY_ARRAY,
+			null,
+			new ReturnStatement(
+				new FieldExpression(field)
+			)))
+
+		classNode.addMethod(new MethodNode(ERRORS_METHOD,
+			Modifier.PUBLIC,
+			ClassHelper.VOID_TYPE,
+			new Parameter(ERRORS_TYPE, "errors") as Parameter[],
+			null,
+			new ExpressionStatement(
+				new BinaryExpression(
+					new FieldExpression(field),
+					Token.newSymbol(Types.EQUAL, -1, -1),
+					new VariableExpression("errors")))))
+
+		classNode.addInterface(ERRORS_HOLDER)
+	}
+
 	private void injectJSONPropertyAnnotations(ClassNode classNode) {
 
 		// build the list of transients from the static transients statement (if any)
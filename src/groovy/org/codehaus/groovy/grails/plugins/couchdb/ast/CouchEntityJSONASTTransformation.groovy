@@ -0,0 +1,361 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.ast
+
+import java.beans.Introspector
+import java.lang.reflect.Modifier
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.codehaus.groovy.ast.ASTNode
+import org.codehaus.groovy.ast.AnnotatedNode
+import org.codehaus.groovy.ast.AnnotationNode
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.MethodNode
+import org.codehaus.groovy.ast.Parameter
+import org.codehaus.groovy.ast.PropertyNode
+import org.codehaus.groovy.ast.expr.ArgumentListExpression
+import org.codehaus.groovy.ast.expr.BinaryExpression
+import org.codehaus.groovy.ast.expr.BooleanExpression
+import org.codehaus.groovy.ast.expr.CastExpression
+import org.codehaus.groovy.ast.expr.ClassExpression
+import org.codehaus.groovy.ast.expr.ConstantExpression
+import org.codehaus.groovy.ast.expr.Expression
+import org.codehaus.groovy.ast.expr.FieldExpression
+import org.codehaus.groovy.ast.expr.ListExpression
+import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.VariableExpression
+import org.codehaus.groovy.ast.stmt.BlockStatement
+import org.codehaus.groovy.ast.stmt.EmptyStatement
+import org.codehaus.groovy.ast.stmt.ExpressionStatement
+import org.codehaus.groovy.ast.stmt.IfStatement
+import org.codehaus.groovy.ast.stmt.ReturnStatement
+import org.codehaus.groovy.ast.stmt.Statement
+import org.codehaus.groovy.classgen.Verifier
+import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.SourceUnit
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchEntityCodec
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchJSONEntity
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchJSONWriter
+import org.codehaus.groovy.syntax.Token
+import org.codehaus.groovy.syntax.Types
+import org.codehaus.groovy.transform.ASTTransformation
+import org.codehaus.groovy.transform.GroovyASTTransformation
+import org.svenson.JSONProperty
+import org.svenson.JSONTypeHint
+import org.svenson.converter.JSONConverter
+
+/**
+ * Generates the {@link CouchJSONEntity} methods of a <code>@CouchEntity</code> class so that it can be
+ * written and read without svenson's bean introspection.
+ * <p/>
+ * This runs after {@link CouchEntityASTTransformation} (and every other canonicalization transform) has
+ * moved the svenson annotations onto the getters and setters, and mirrors what svenson does at runtime:
+ * the bean properties are written in name order using their <code>@JSONProperty</code> names, skipping
+ * ignored (and ignoreIfNull) properties and applying any <code>@JSONConverter</code>, and the writable,
+ * non readOnly properties are read back using their <code>@JSONTypeHint</code>.  Classes that extend a
+ * class that isn't part of the same compilation are left to svenson.
+ *
+ * @author Cory Hacking
+ */
+@GroovyASTTransformation(phase = CompilePhase.INSTRUCTION_SELECTION)
+class CouchEntityJSONASTTransformation implements ASTTransformation {
+
+	private static final Log log = LogFactory.getLog(CouchEntityJSONASTTransformation.class)
+
+	private static final ClassNode COUCH_JSON_ENTITY = new ClassNode(CouchJSONEntity)
+	private static final ClassNode COUCH_JSON_WRITER = new ClassNode(CouchJSONWriter)
+	private static final ClassNode COUCH_ENTITY_CODEC = new ClassNode(CouchEntityCodec)
+
+	private static final ClassNode JSON_PROPERTY = new ClassNode(JSONProperty)
+	private static final ClassNode JSON_TYPE_HINT = new ClassNode(JSONTypeHint)
+	private static final ClassNode JSON_CONVERTER = new ClassNode(JSONConverter)
+
+	private static final List<String> IGNORED_PROPERTIES = ["class", "metaClass"]
+
+	public void visit(ASTNode[] nodes, SourceUnit sourceUnit) {
+		if (nodes.length != 2 || !(nodes[0] instanceof AnnotationNode) || !(nodes[1] instanceof AnnotatedNode)) {
+			throw new RuntimeException("Internal error: expecting [AnnotationNode, AnnotatedNode] but got: " + Arrays.asList(nodes))
+		}
+
+		ClassNode owner = (ClassNode) nodes[1]
+
+		// leave hand written methods alone
+		if (owner.isInterface() || owner.getDeclaredMethods("writeCouchJSON") || owner.getDeclaredMethods("readCouchJSON")) {
+			return
+		}
+
+		Map<String, Map> properties = getBeanProperties(owner)
+		if (properties == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Not generating JSON methods for class [" + owner.getName() + "] as it extends a precompiled class.")
+			}
+			return
+		}
+
+		if (!owner.implementsInterface(COUCH_JSON_ENTITY)) {
+			owner.addInterface(COUCH_JSON_ENTITY)
+		}
+
+		owner.addMethod(createWriteMethod(properties))
+		owner.addMethod(createReadMethod(properties))
+		owner.addMethod(createPropertyNamesMethod(properties))
+
+		if (log.isDebugEnabled()) {
+			log.debug("Generated JSON methods for class [" + owner.getName() + "] with properties " + properties.keySet())
+		}
+	}
+
+	/**
+	 * Collects the bean properties of the class (and its super classes) the way the Introspector will
+	 * see them once the class is compiled, keyed (and sorted) by bean property name.  Returns null if
+	 * one of the super classes isn't being compiled along with this one.
+	 */
+	private Map<String, Map> getBeanProperties(ClassNode classNode) {
+		List<ClassNode> hierarchy = []
+		for (ClassNode node = classNode; node != null && node.name != "java.lang.Object"; node = node.superClass) {
+			if (!node.isPrimaryClassNode()) {
+				return null
+			}
+			hierarchy.add(0, node)
+		}
+
+		Map<String, Map> properties = new TreeMap<String, Map>()
+
+		hierarchy.each {ClassNode node ->
+			node.properties.each {PropertyNode property ->
+				if (property.isStatic()) {
+					return
+				}
+
+				Map info = getPropertyInfo(properties, Introspector.decapitalize(Verifier.capitalize(property.name)))
+				info.type = property.type
+				info.readable = true
+				info.getterName = "get" + Verifier.capitalize(property.name)
+				info.setterName = Modifier.isFinal(property.modifiers) ? null : "set" + Verifier.capitalize(property.name)
+
+				// only the fields of this class can be accessed directly
+				info.field = (node == classNode) ? property.field : null
+				info.getter = null
+				info.setter = null
+			}
+
+			node.methods.each {MethodNode method ->
+				if (!method.isPublic() || method.isStatic() || (method.modifiers & 0x1000)) {
+					return
+				}
+
+				String name = method.name
+				Parameter[] parameters = method.parameters
+
+				if (parameters.length == 0 && method.returnType != ClassHelper.VOID_TYPE &&
+					((name.startsWith("get") && name.length() > 3) || (name.startsWith("is") && name.length() > 2 && method.returnType == ClassHelper.boolean_TYPE))) {
+
+					Map info = getPropertyInfo(properties, Introspector.decapitalize(name.substring(name.startsWith("get") ? 3 : 2)))
+					info.type = method.returnType
+					info.readable = true
+					info.getterName = name
+					info.getter = method
+
+				} else if (parameters.length == 1 && method.returnType == ClassHelper.VOID_TYPE && name.startsWith("set") && name.length() > 3) {
+
+					Map info = getPropertyInfo(properties, Introspector.decapitalize(name.substring(3)))
+					if (info.type == null) {
+						info.type = parameters[0].type
+					}
+					info.setterName = name
+					info.setter = method
+				}
+			}
+		}
+
+		IGNORED_PROPERTIES.each {properties.remove(it)}
+
+		properties.each {String name, Map info ->
+
+			// the setter has to take the property type (the Introspector ignores it otherwise)
+			if (info.setter && info.setter.parameters[0].type.name != info.type.name) {
+				info.setter = null
+				info.setterName = null
+			}
+
+			// svenson looks at the getter's annotations before the setter's
+			AnnotationNode property = getAnnotation(info.getter, JSON_PROPERTY) ?: getAnnotation(info.setter, JSON_PROPERTY)
+			info.jsonName = getMember(property, "value") ?: name
+			info.ignore = getMember(property, "ignore") ?: false
+			info.ignoreIfNull = getMember(property, "ignoreIfNull") ?: false
+			info.readOnly = getMember(property, "readOnly") ?: false
+
+			AnnotationNode typeHint = getAnnotation(info.setter, JSON_TYPE_HINT) ?: getAnnotation(info.getter, JSON_TYPE_HINT)
+			info.typeHint = getMember(typeHint, "value")
+
+			AnnotationNode converter = getAnnotation(info.getter, JSON_CONVERTER) ?: getAnnotation(info.setter, JSON_CONVERTER)
+			if (converter) {
+				info.converterName = getMember(converter, "name") ?: null
+				info.converterType = getMember(converter, "type")
+			}
+		}
+
+		return properties
+	}
+
+	/**
+	 * void writeCouchJSON(CouchJSONWriter writer) {
+	 *     writer.property("_id", this.getId(), true)
+	 *     ...
+	 * }
+	 */
+	private MethodNode createWriteMethod(Map<String, Map> properties) {
+		BlockStatement body = new BlockStatement()
+
+		properties.each {String name, Map info ->
+			if (!info.readable || info.ignore) {
+				return
+			}
+
+			Expression value
+			if (info.field && !info.getter) {
+				value = new FieldExpression(info.field)
+			} else {
+				value = new MethodCallExpression(new VariableExpression("this"), info.getterName, ArgumentListExpression.EMPTY_ARGUMENTS)
+			}
+
+			ArgumentListExpression arguments = new ArgumentListExpression()
+			arguments.addExpression(new ConstantExpression(info.jsonName))
+			arguments.addExpression(value)
+			arguments.addExpression(info.ignoreIfNull ? ConstantExpression.TRUE : ConstantExpression.FALSE)
+			if (info.converterType) {
+				arguments.addExpression(new ConstantExpression(info.converterName))
+				arguments.addExpression(new ClassExpression(info.converterType))
+			}
+
+			body.addStatement(new ExpressionStatement(new MethodCallExpression(new VariableExpression("writer"), "property", arguments)))
+		}
+
+		return new MethodNode("writeCouchJSON",
+			Modifier.PUBLIC,
+			ClassHelper.VOID_TYPE,
+			[new Parameter(COUCH_JSON_WRITER, "writer")] as Parameter[],
+			ClassNode.EMPTY_ARRAY,
+			body)
+	}
+
+	/**
+	 * void readCouchJSON(Map json, CouchEntityCodec codec) {
+	 *     if (json.containsKey("_id")) {
+	 *         this.setId((String) codec.read(json.get("_id"), String, null, null, null))
+	 *     }
+	 *     ...
+	 * }
+	 */
+	private MethodNode createReadMethod(Map<String, Map> properties) {
+		BlockStatement body = new BlockStatement()
+
+		properties.each {String name, Map info ->
+			if (!info.setterName || info.ignore || info.readOnly) {
+				return
+			}
+
+			ClassNode type = getPlainType(info.type)
+			Expression key = new ConstantExpression(info.jsonName)
+			Expression json = new MethodCallExpression(new VariableExpression("json"), "get", new ArgumentListExpression(key))
+
+			ArgumentListExpression arguments = new ArgumentListExpression()
+			arguments.addExpression(json)
+			arguments.addExpression(new ClassExpression(type))
+			arguments.addExpression(info.typeHint ? new ClassExpression(getPlainType(info.typeHint)) : ConstantExpression.NULL)
+			arguments.addExpression(new ConstantExpression(info.converterName))
+			arguments.addExpression(info.converterType ? new ClassExpression(info.converterType) : ConstantExpression.NULL)
+
+			Expression value = new CastExpression(type, new MethodCallExpression(new VariableExpression("codec"), "read", arguments))
+
+			Statement assignment
+			if (info.field && !info.setter) {
+				assignment = new ExpressionStatement(new BinaryExpression(new FieldExpression(info.field), Token.newSymbol(Types.EQUAL, -1, -1), value))
+			} else {
+				assignment = new ExpressionStatement(new MethodCallExpression(new VariableExpression("this"), info.setterName, new ArgumentListExpression(value)))
+			}
+
+			// primitives can't be set to null
+			Expression condition
+			if (ClassHelper.isPrimitiveType(type)) {
+				condition = new BinaryExpression(json, Token.newSymbol(Types.COMPARE_NOT_EQUAL, -1, -1), ConstantExpression.NULL)
+			} else {
+				condition = new MethodCallExpression(new VariableExpression("json"), "containsKey", new ArgumentListExpression(key))
+			}
+
+			body.addStatement(new IfStatement(new BooleanExpression(condition), assignment, EmptyStatement.INSTANCE))
+		}
+
+		return new MethodNode("readCouchJSON",
+			Modifier.PUBLIC,
+			ClassHelper.VOID_TYPE,
+			[new Parameter(ClassHelper.MAP_TYPE.plainNodeReference, "json"), new Parameter(COUCH_ENTITY_CODEC, "codec")] as Parameter[],
+			ClassNode.EMPTY_ARRAY,
+			body)
+	}
+
+	/**
+	 * List<String> couchJSONPropertyNames() {
+	 *     return ["attachments", "id", ...]
+	 * }
+	 */
+	private MethodNode createPropertyNamesMethod(Map<String, Map> properties) {
+		ListExpression names = new ListExpression()
+		properties.each {String name, Map info ->
+			if (info.readable) {
+				names.addExpression(new ConstantExpression(name))
+			}
+		}
+
+		return new MethodNode("couchJSONPropertyNames",
+			Modifier.PUBLIC,
+			ClassHelper.LIST_TYPE.plainNodeReference,
+			Parameter.EMPTY_ARRAY,
+			ClassNode.EMPTY_ARRAY,
+			new ReturnStatement(names))
+	}
+
+	private Map getPropertyInfo(Map<String, Map> properties, String name) {
+		Map info = properties.get(name)
+		if (info == null) {
+			info = [readable: false]
+			properties.put(name, info)
+		}
+
+		return info
+	}
+
+	private ClassNode getPlainType(ClassNode type) {
+		return ClassHelper.isPrimitiveType(type) ? type : type.plainNodeReference
+	}
+
+	private AnnotationNode getAnnotation(AnnotatedNode node, ClassNode type) {
+		List<AnnotationNode> annotations = node?.getAnnotations(type)
+		return annotations ? annotations[0] : null
+	}
+
+	private Object getMember(AnnotationNode annotation, String name) {
+		Expression member = annotation?.getMember(name)
+		if (member instanceof ClassExpression) {
+			return member.type
+		} else if (member instanceof ConstantExpression) {
+			return member.value
+		}
+
+		return null
+	}
+}
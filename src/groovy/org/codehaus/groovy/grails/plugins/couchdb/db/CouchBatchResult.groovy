@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import org.jcouchdb.document.DocumentInfo
+
+/**
+ * The result of a <code>withBatch { }</code> block: the bulk save / delete document infos
+ * (in the order the documents were queued) and any per-document errors.
+ *
+ * @author Cory Hacking
+ */
+class CouchBatchResult {
+
+	List<DocumentInfo> saved = []
+	List<DocumentInfo> deleted = []
+
+	/**
+	 * One entry per failed document: [document: ..., id: ..., operation: 'save' | 'delete', error: ..., reason: ...]
+	 */
+	List<Map> errors = []
+
+	int flushes = 0
+
+	boolean hasErrors() {
+		return !errors.isEmpty()
+	}
+
+	String toString() {
+		return "CouchBatchResult[saved=${saved.size()}, deleted=${deleted.size()}, errors=${errors.size()}, flushes=${flushes}]"
+	}
+}
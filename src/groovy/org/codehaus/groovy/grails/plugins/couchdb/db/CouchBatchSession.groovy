@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClass
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchPersistencePlan
+import org.jcouchdb.db.Database
+import org.jcouchdb.document.DocumentInfo
+
+/**
+ * A thread bound batch of writes against a single database.  While a session is active,
+ * the instance <code>save()</code> and <code>delete()</code> methods queue their documents here
+ * and they are written with <code>_bulk_docs</code> when the batch fills up or the session ends.
+ * <p/>
+ * The writes are kept in the order they were made; consecutive saves (or deletes) are sent together,
+ * so deleting a document and saving it again within a batch leaves it saved.
+ * <p/>
+ * A batch isn't a transaction: when the closure throws, the writes that were already flushed (because
+ * the batch filled up) stay written, and the writes that are still queued are discarded.
+ *
+ * @author Cory Hacking
+ */
+class CouchBatchSession {
+
+	private static final Log log = LogFactory.getLog(CouchBatchSession.class)
+
+	public static final int DEFAULT_BATCH_SIZE = 500
+
+	private static final ThreadLocal<Map<Database, CouchBatchSession>> SESSIONS = new ThreadLocal<Map<Database, CouchBatchSession>>()
+
+	final Database database
+	final int batchSize
+	final boolean allOrNothing
+
+	final CouchBatchResult result = new CouchBatchResult()
+
+	/**
+	 * Called with the infos of each flush, <code>{List infos -> ...}</code>, e.g. to evict the documents
+	 * from the caches.
+	 */
+	Closure flushed
+
+	private static final String SAVE = "save"
+	private static final String DELETE = "delete"
+
+	// [operation, domain, domain class] in the order they were queued
+	private final List<Object[]> queue = []
+
+	private CouchBatchSession(Database database, int batchSize, boolean allOrNothing) {
+		this.database = database
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE
+		this.allOrNothing = allOrNothing
+	}
+
+	/**
+	 * Returns the session bound to the current thread for the given database (or null).
+	 */
+	static CouchBatchSession getCurrentSession(Database database) {
+		return SESSIONS.get()?.get(database)
+	}
+
+	/**
+	 * Runs the closure with a batch session bound to the current thread.  A nested call joins
+	 * the outer session and its writes are flushed when the outer block ends.  If the closure throws,
+	 * the queued writes are discarded (see above) and the exception is rethrown.
+	 *
+	 * @param args [size: batch size (default 500), allOrNothing: false]
+	 * @param flushed called with the infos of each flush (of a new session)
+	 */
+	static CouchBatchResult withBatch(Database database, Map args, Closure closure, Closure flushed = null) {
+		CouchBatchSession session = getCurrentSession(database)
+		if (session) {
+			closure.call(session)
+			return session.result
+		}
+
+		session = new CouchBatchSession(database, (args?.size ?: DEFAULT_BATCH_SIZE) as Integer, args?.allOrNothing as Boolean)
+		session.flushed = flushed
+
+		Map<Database, CouchBatchSession> sessions = SESSIONS.get()
+		if (sessions == null) {
+			sessions = new IdentityHashMap<Database, CouchBatchSession>()
+			SESSIONS.set(sessions)
+		}
+		sessions.put(database, session)
+
+		try {
+			closure.call(session)
+			session.flush()
+		} finally {
+			sessions.remove(database)
+			if (sessions.isEmpty()) {
+				SESSIONS.remove()
+			}
+		}
+
+		return session.result
+	}
+
+	void save(Object domain, CouchDomainClass domainClass) {
+		enqueue(SAVE, domain, domainClass)
+	}
+
+	void delete(Object domain, CouchDomainClass domainClass) {
+		enqueue(DELETE, domain, domainClass)
+	}
+
+	private void enqueue(String operation, Object domain, CouchDomainClass domainClass) {
+		queue << ([operation, domain, domainClass] as Object[])
+		if (queue.size() >= batchSize) {
+			flush()
+		}
+	}
+
+	/**
+	 * Writes all of the queued saves and deletes, in order.
+	 */
+	void flush() {
+		if (!queue) {
+			return
+		}
+
+		List<Object[]> entries = new ArrayList<Object[]>(queue)
+		queue.clear()
+
+		// each run of consecutive saves (or deletes) is written with one request
+		int start = 0
+		while (start < entries.size()) {
+			String operation = entries[start][0]
+
+			int end = start + 1
+			while (end < entries.size() && entries[end][0] == operation) {
+				end++
+			}
+
+			List<Object[]> run = entries.subList(start, end)
+			if (operation == SAVE) {
+				flushSaves(run)
+			} else {
+				flushDeletes(run)
+			}
+
+			start = end
+		}
+	}
+
+	private void flushSaves(List<Object[]> entries) {
+		List<DocumentInfo> infos = database.bulkCreateDocuments(entries.collect { it[1] }, allOrNothing)
+
+		// the results come back in the same order as the documents
+		infos.eachWithIndex {DocumentInfo info, int i ->
+			def domain = entries[i][1]
+			CouchDomainClass dc = entries[i][2]
+
+			if (info.error) {
+				result.errors << [document: domain, id: info.id, operation: "save", error: info.error, reason: info.reason]
+			} else {
+				CouchPersistencePlan plan = dc.persistencePlan
+				if (plan.getId(domain) == null) {
+					plan.setId(domain, info.id)
+				}
+				plan.setVersion(domain, info.revision)
+			}
+		}
+
+		result.saved.addAll(infos)
+		result.flushes++
+		flushed?.call(infos)
+
+		if (log.isDebugEnabled()) {
+			log.debug("Flushed ${entries.size()} document(s) to database [${database.name}].")
+		}
+	}
+
+	private void flushDeletes(List<Object[]> entries) {
+		List<DocumentInfo> infos = database.bulkDeleteDocuments(entries.collect { it[1] }, allOrNothing)
+
+		infos.eachWithIndex {DocumentInfo info, int i ->
+			if (info.error) {
+				result.errors << [document: entries[i][1], id: info.id, operation: "delete", error: info.error, reason: info.reason]
+			}
+		}
+
+		result.deleted.addAll(infos)
+		result.flushes++
+		flushed?.call(infos)
+
+		if (log.isDebugEnabled()) {
+			log.debug("Deleted ${entries.size()} document(s) from database [${database.name}].")
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import org.jcouchdb.document.DocumentInfo
+
+/**
+ * The result of <code>Foo.bulkSave(documents)</code> / <code>Foo.bulkDelete(documents)</code>: the document
+ * infos in the same order as the documents (whichever chunk they were sent in), along with the documents that
+ * were written (merged documents replace the ones that conflicted) and the timings of each chunk.
+ *
+ * @author Cory Hacking
+ */
+class CouchBulkResult extends ArrayList<DocumentInfo> {
+
+	/**
+	 * The documents that were written, in the same order as the infos.
+	 */
+	List documents = []
+
+	/**
+	 * One entry per request: [chunk: 0.., attempt: 0 (1.. for conflict retries), documents: count,
+	 * length: serialized length (saves only), millis: ..., nanos: ..., error: the exception message (if it failed)]
+	 */
+	List<Map> chunks = []
+
+	/**
+	 * The number of conflicting documents that were merged and written again.
+	 */
+	int retried = 0
+
+	CouchBulkResult(int size) {
+		super(size)
+	}
+
+	/**
+	 * @return the infos of the documents that failed
+	 */
+	List<DocumentInfo> getErrors() {
+		return findAll {DocumentInfo info -> info?.error}
+	}
+
+	boolean hasErrors() {
+		return any {DocumentInfo info -> info?.error}
+	}
+
+	/**
+	 * @return the total time of the requests (they overlap when chunks are sent in parallel)
+	 */
+	long getMillis() {
+		return chunks.inject(0L) {long total, Map chunk -> total + chunk.millis}
+	}
+
+	String toString() {
+		return "CouchBulkResult[documents=${size()}, errors=${errors.size()}, chunks=${chunks.size()}, retried=${retried}]"
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.codehaus.groovy.grails.plugins.couchdb.async.CouchFuture
+import org.jcouchdb.db.Database
+import org.jcouchdb.db.Response
+import org.jcouchdb.document.DocumentInfo
+import org.jcouchdb.exception.DataAccessException
+import org.svenson.JSON
+
+/**
+ * Writes a list of documents with <code>_bulk_docs</code> in chunks of at most chunkSize documents and
+ * chunkLength bytes of (UTF-8) JSON, so that large lists neither build one huge request body nor send one
+ * request that times out.  Up to parallelism chunks are sent at the same time (on the given executor);
+ * the documents are serialized as the chunks are filled, so at most that many chunk bodies are held in
+ * memory.  The results are returned in the same order as the documents.
+ * <p/>
+ * With a merge closure, saved documents that fail with a conflict are read again and passed to it with the
+ * document that conflicted, <code>{current, document -> ...}</code>, and the document that it returns (null
+ * to give up) is saved, up to retries times.
+ * <p/>
+ * A chunk whose request fails doesn't stop the others: its documents get infos with a
+ * <code>request_failed</code> error (and the exception message as the reason), and the error is recorded
+ * in the chunk's timing, so the caller can tell which documents were written.
+ * <p/>
+ * With allOrNothing the documents are sent in a single request, as CouchDB only applies it within a request,
+ * and a failed request is thrown.
+ *
+ * @author Cory Hacking
+ */
+class CouchBulkWriter {
+
+	private static final Log log = LogFactory.getLog(CouchBulkWriter.class)
+
+	public static final int DEFAULT_CHUNK_SIZE = 1000
+	public static final int DEFAULT_CHUNK_LENGTH = 4 * 1024 * 1024
+	public static final int DEFAULT_PARALLELISM = 2
+	public static final int DEFAULT_RETRIES = 3
+
+	public static final String REQUEST_FAILED = "request_failed"
+
+	final Database database
+	final Executor executor
+
+	int chunkSize = DEFAULT_CHUNK_SIZE
+	int chunkLength = DEFAULT_CHUNK_LENGTH
+	int parallelism = DEFAULT_PARALLELISM
+	int retries = DEFAULT_RETRIES
+	boolean allOrNothing = false
+
+	/**
+	 * Reads the current versions of the conflicting documents for the merge, <code>{List ids, List documents ->
+	 * current}</code>, in the same order (null for missing ones); the documents can be of different classes.
+	 */
+	Closure fetch
+
+	Closure merge
+
+	/**
+	 * Returns the id of a document, <code>{document -> id}</code>, for the infos of a failed chunk; without it
+	 * the id is the <code>_id</code> of a Map or the <code>id</code> property.
+	 */
+	Closure documentId
+
+	/**
+	 * @param executor runs the chunks in parallel (null to send them one after the other)
+	 * @param args [chunkSize, chunkLength, parallelism, retries, allOrNothing, merge]; missing values are
+	 * taken from the config map (<code>couchdb.bulk</code>)
+	 */
+	CouchBulkWriter(Database database, Executor executor, Map args, Map config = null) {
+		this.database = database
+		this.executor = executor
+
+		Map settings = [:]
+		if (config) {
+			settings.putAll(config)
+		}
+		if (args) {
+			settings.putAll(args)
+		}
+
+		chunkSize = Math.max((settings.chunkSize ?: DEFAULT_CHUNK_SIZE) as Integer, 1)
+		chunkLength = Math.max((settings.chunkLength ?: DEFAULT_CHUNK_LENGTH) as Integer, 1)
+		parallelism = Math.max((settings.parallelism ?: DEFAULT_PARALLELISM) as Integer, 1)
+		retries = ((settings.retries != null) ? settings.retries : DEFAULT_RETRIES) as Integer
+		allOrNothing = settings.allOrNothing as Boolean
+		merge = settings.merge as Closure
+	}
+
+	CouchBulkResult save(List documents) {
+		CouchBulkResult result = createResult(documents)
+		if (!documents) {
+			return result
+		}
+
+		JSON generator = database.jsonConfig.jsonGenerator
+		def serialize = {document -> generator.forValue(document)}
+
+		writeChunks(result, (0..<documents.size()).toList(), 0, serialize) {List chunk, List json ->
+			post(json)
+		}
+
+		if (merge && !allOrNothing) {
+			retryConflicts(result, serialize)
+		}
+
+		return result
+	}
+
+	CouchBulkResult delete(List documents) {
+		CouchBulkResult result = createResult(documents)
+		if (!documents) {
+			return result
+		}
+
+		writeChunks(result, (0..<documents.size()).toList(), 0, null) {List chunk, List json ->
+			database.bulkDeleteDocuments(chunk.collect {int i -> result.documents[i]}, allOrNothing)
+		}
+
+		return result
+	}
+
+	private CouchBulkResult createResult(List documents) {
+		CouchBulkResult result = new CouchBulkResult(documents.size())
+		result.documents.addAll(documents)
+		documents.size().times {
+			result.add(null)
+		}
+
+		return result
+	}
+
+	/**
+	 * Reads the conflicting documents again and saves the merged versions.
+	 */
+	private void retryConflicts(CouchBulkResult result, Closure serialize) {
+		for (int attempt = 1; attempt <= retries; attempt++) {
+			List<Integer> conflicts = (0..<result.size()).findAll {int i -> result[i]?.error == "conflict"}
+			if (!conflicts) {
+				return
+			}
+
+			List current = fetch.call(conflicts.collect {int i -> result[i].id}, conflicts.collect {int i -> result.documents[i]})
+
+			List<Integer> merged = []
+			conflicts.eachWithIndex {int i, int j ->
+				def document = merge.call(current[j], result.documents[i])
+				if (document != null) {
+					result.documents[i] = document
+					merged << i
+				}
+			}
+
+			if (!merged) {
+				return
+			}
+
+			log.debug("Retrying ${merged.size()} merged conflict(s) in database [${database.name}] (attempt ${attempt}).")
+
+			result.retried += merged.size()
+			writeChunks(result, merged, attempt, serialize) {List chunk, List json ->
+				post(json)
+			}
+		}
+	}
+
+	/**
+	 * Splits the documents (by index) into chunks as they're serialized and writes each chunk with the
+	 * closure, <code>{List indexes, List json -> infos}</code>, which returns the infos in the same order.
+	 *
+	 * @param serialize returns the JSON of a document (null if the chunks aren't limited by length)
+	 */
+	private void writeChunks(CouchBulkResult result, List<Integer> indexes, int attempt, Closure serialize, Closure write) {
+		boolean parallel = parallelism > 1 && executor != null && !allOrNothing
+		Semaphore permits = new Semaphore(parallelism)
+		List<Future> futures = []
+		int chunks = 0
+
+		def send = {int n, List<Integer> chunk, List<String> json, long length ->
+			Map timing = [chunk: n, attempt: attempt, documents: chunk.size()]
+			if (serialize) {
+				timing.length = length
+			}
+
+			synchronized (result) {
+				result.chunks << timing
+			}
+
+			long start = System.nanoTime()
+			try {
+				List<DocumentInfo> infos = write.call(chunk, json)
+				chunk.eachWithIndex {int i, int j ->
+					result.set(i, (j < infos.size()) ? infos[j] : null)
+				}
+			} catch (Exception e) {
+				timing.error = e.message ?: e.toString()
+				if (allOrNothing) {
+					throw e
+				}
+
+				log.warn("Bulk request of chunk ${n} (${chunk.size()} document(s)) to database [${database.name}] failed: ${timing.error}")
+				chunk.each {int i ->
+					result.set(i, failedInfo(result.documents[i], timing.error))
+				}
+			} finally {
+				timing.nanos = System.nanoTime() - start
+				timing.millis = (long) (timing.nanos / 1000000L)
+			}
+		}
+
+		// at most parallelism chunks are in flight (and held in memory)
+		def dispatch = {List<Integer> chunk, List<String> json, long length ->
+			int n = chunks++
+			if (!parallel) {
+				send(n, chunk, json, length)
+				return
+			}
+
+			permits.acquire()
+			futures << CouchFuture.submit(executor, {->
+				try {
+					send(n, chunk, json, length)
+				} finally {
+					permits.release()
+				}
+			} as Callable)
+		}
+
+		boolean completed = false
+		try {
+			List<Integer> chunk = []
+			List<String> json = []
+			long length = 0
+
+			indexes.each {int i ->
+				String value = serialize ? serialize.call(result.documents[i]) : null
+				int valueLength = (value != null) ? utf8Length(value) + 1 : 0
+
+				if (chunk && !allOrNothing && (chunk.size() >= chunkSize || length + valueLength > chunkLength)) {
+					dispatch(chunk, json, length)
+					chunk = []
+					json = []
+					length = 0
+				}
+
+				chunk << i
+				if (value != null) {
+					json << value
+				}
+				length += valueLength
+			}
+
+			if (chunk) {
+				dispatch(chunk, json, length)
+			}
+
+			futures.each {Future future ->
+				future.get()
+			}
+			completed = true
+		} catch (ExecutionException e) {
+			throw e.cause
+		} finally {
+			// the chunks still in flight are abandoned if dispatching or one of them failed
+			if (!completed) {
+				futures*.cancel(true)
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the string in UTF-8 (as the request body is sent), without encoding it.
+	 */
+	private static int utf8Length(String value) {
+		int length = 0
+		int n = value.length()
+		for (int i = 0; i < n; i++) {
+			char c = value.charAt(i)
+			if (c < 0x80) {
+				length++
+			} else if (c < 0x800) {
+				length += 2
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+				length += 4
+				i++
+			} else {
+				length += 3
+			}
+		}
+
+		return length
+	}
+
+	/**
+	 * Returns the info of a document whose chunk couldn't be written.
+	 */
+	private DocumentInfo failedInfo(Object document, String reason) {
+		DocumentInfo info = new DocumentInfo()
+		if (documentId) {
+			info.id = documentId.call(document)?.toString()
+		} else if (document instanceof Map) {
+			info.id = document._id
+		} else if (document?.metaClass?.hasProperty(document, "id")) {
+			info.id = document.id?.toString()
+		}
+		info.error = REQUEST_FAILED
+		info.reason = reason
+		info.ok = false
+
+		return info
+	}
+
+	/**
+	 * Posts the serialized documents to _bulk_docs.
+	 */
+	private List<DocumentInfo> post(List<String> documents) {
+		StringBuilder body = new StringBuilder(documents.inject(32) {int length, String json -> length + json.length() + 1})
+		body.append('{"all_or_nothing":').append(allOrNothing).append(',"docs":[')
+		documents.eachWithIndex {String json, int i ->
+			if (i > 0) {
+				body.append(',')
+			}
+			body.append(json)
+		}
+		body.append(']}')
+
+		Response resp = null
+		try {
+			resp = database.server.post("/${database.name}/_bulk_docs", body.toString())
+			if (!resp.isOk()) {
+				throw new DataAccessException("error saving documents: ", resp)
+			}
+
+			return resp.contentAsList.collect {Map value ->
+				DocumentInfo info = new DocumentInfo()
+				info.id = value.id
+				info.revision = value.rev
+				info.error = value.error
+				info.reason = value.reason
+				info.ok = !value.error
+
+				return info
+			}
+		} finally {
+			resp?.destroy()
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import org.apache.commons.lang.StringUtils
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.apache.http.auth.AuthScope
+import org.apache.http.auth.UsernamePasswordCredentials
+import org.codehaus.groovy.grails.commons.GrailsApplication
+import org.codehaus.groovy.grails.plugins.couchdb.cache.CouchCacheSettings
+import org.codehaus.groovy.grails.plugins.couchdb.cache.CouchDocumentCache
+import org.codehaus.groovy.grails.plugins.couchdb.cache.CouchViewCache
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchChangesListener
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClass
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClassArtefactHandler
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchConnectionManager
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpServer
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchPoolSettings
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchEntityCodec
+import org.codehaus.groovy.grails.plugins.couchdb.json.JsonDateConverter
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchMetrics
+import org.codehaus.groovy.grails.plugins.couchdb.util.CouchViewWarmer
+import org.jcouchdb.db.Database
+import org.jcouchdb.db.DatabaseStatus
+import org.jcouchdb.db.Server
+import org.svenson.JSON
+import org.svenson.JSONConfig
+import org.svenson.JSONParser
+import org.svenson.converter.DefaultTypeConverterRepository
+
+/**
+ * Keeps one jcouchdb Database (and its JSONConfig) per resolved set of connection settings so
+ * that all of the domain classes that use the same <code>@CouchEntity(db=...)</code> share it.
+ * <p/>
+ * Registered as the <code>couchdbDatabaseRegistry</code> bean.
+ *
+ * @author Cory Hacking
+ */
+class CouchDatabaseRegistry {
+
+	private static final Log log = LogFactory.getLog(CouchDatabaseRegistry.class)
+
+	GrailsApplication grailsApplication
+	CouchConnectionManager couchdbConnectionManager
+	CouchMetrics couchdbMetrics
+	CouchViewWarmer couchdbViewWarmer
+
+	private final Map<String, Database> databases = new LinkedHashMap<String, Database>()
+	private final Set<String> createdDatabases = new HashSet<String>()
+	private final Map<Database, CouchEntityCodec> entityCodecs = new IdentityHashMap<Database, CouchEntityCodec>()
+	private final Map<String, CouchDocumentCache> documentCaches = new LinkedHashMap<String, CouchDocumentCache>()
+	private final Map<Database, CouchViewCache> viewCaches = new IdentityHashMap<Database, CouchViewCache>()
+	private final List<CouchChangesListener> changesListeners = new ArrayList<CouchChangesListener>()
+
+	/**
+	 * Returns the database for the given domain class, creating the database in CouchDB
+	 * the first time it's requested (when createDatabase is true).
+	 */
+	Database getDatabase(CouchDomainClass domainClass, boolean createDatabase = true) {
+		return getDatabase(domainClass.databaseId, createDatabase)
+	}
+
+	/**
+	 * Returns the database for the given <code>db</code> id (null for the default database).
+	 */
+	synchronized Database getDatabase(String dbId, boolean createDatabase = true) {
+		CouchDatabaseSettings settings = CouchDatabaseSettings.resolve(grailsApplication, dbId)
+		String key = settings.key
+
+		Database db = databases.get(key)
+		if (db == null) {
+			db = createDatabase(settings)
+			databases.put(key, db)
+
+			log.debug("Registered CouchDB database [${key}].")
+		}
+
+		if (createDatabase && !createdDatabases.contains(key)) {
+			if (db.getServer().createDatabase(db.getName())) {
+				log.info("Database [${db.getName()}] created.")
+			}
+			createdDatabases.add(key)
+		}
+
+		return db
+	}
+
+	/**
+	 * Returns the codec that writes and reads the domain classes of the given database using their
+	 * generated JSON methods.
+	 */
+	synchronized CouchEntityCodec getEntityCodec(Database db) {
+		return entityCodecs.get(db)
+	}
+
+	/**
+	 * Returns all of the registered databases keyed by their connection settings.
+	 */
+	synchronized Map<String, Database> getDatabases() {
+		return new LinkedHashMap<String, Database>(databases)
+	}
+
+	/**
+	 * Checks the status of every registered database.
+	 *
+	 * @return a map (keyed like {@link #getDatabases()}) of [ok, database, documentCount, updateSequence, error]
+	 */
+	Map<String, Map> checkHealth() {
+		Map<String, Map> health = [:]
+
+		getDatabases().each {String key, Database db ->
+			def result = [ok: false, database: db.name]
+			try {
+				DatabaseStatus status = db.getStatus()
+
+				result.ok = true
+				result.documentCount = status.documentCount
+				result.updateSequence = status.updateSequence
+			} catch (Exception e) {
+				result.error = e.message
+			}
+
+			health.put(key, result)
+		}
+
+		return health
+	}
+
+	/**
+	 * @return true if every registered database responded to a status request
+	 */
+	boolean isHealthy() {
+		return checkHealth().values().every { it.ok }
+	}
+
+	/**
+	 * Returns the document cache for the given domain class, or null if caching isn't enabled for it
+	 * in the <code>couchdb.cache</code> config.
+	 */
+	synchronized CouchDocumentCache getDocumentCache(CouchDomainClass domainClass) {
+		String name = domainClass.fullName
+
+		CouchDocumentCache cache = documentCaches.get(name)
+		if (cache == null) {
+			def config = grailsApplication.config.couchdb?.cache
+
+			CouchCacheSettings settings = new CouchCacheSettings(null, config)
+			if (config?.containsKey(domainClass.propertyName)) {
+				settings = new CouchCacheSettings(settings, config[domainClass.propertyName])
+			}
+
+			if (!settings.enabled) {
+				return null
+			}
+
+			Database db = getDatabase(domainClass, false)
+
+			cache = new CouchDocumentCache(name, db, settings)
+			cache.entityCodec = entityCodecs.get(db)
+			documentCaches.put(name, cache)
+
+			log.info("Created CouchDB document cache for [${name}] with ${settings}")
+		}
+
+		return cache
+	}
+
+	/**
+	 * Returns the view result cache of the given database (configured by <code>couchdb.viewCache</code>).
+	 * It's only used for queries with the <code>cache: true</code> option unless it's enabled.
+	 */
+	synchronized CouchViewCache getViewCache(Database db) {
+		CouchViewCache cache = viewCaches.get(db)
+		if (cache == null) {
+			def config = grailsApplication.config.couchdb?.viewCache
+
+			CouchCacheSettings settings = new CouchCacheSettings(null, [maxSize: 500, ttl: 1000])
+			settings = new CouchCacheSettings(settings, config)
+			int maxRows = (config?.maxRows ?: CouchViewCache.DEFAULT_MAX_ROWS) as Integer
+
+			cache = new CouchViewCache(db, settings, maxRows)
+			viewCaches.put(db, cache)
+
+			log.debug("Created CouchDB view cache for [${db.name}] with ${settings}, maxRows=${maxRows}")
+		}
+
+		return cache
+	}
+
+	/**
+	 * @return the hit / miss / invalidation counts of each database's view cache (keyed by database name)
+	 */
+	synchronized Map<String, Map> getViewCacheStatistics() {
+		Map<String, Map> statistics = [:]
+
+		viewCaches.values().each {CouchViewCache cache ->
+			statistics.put(cache.database.name, cache.statistics)
+		}
+
+		return statistics
+	}
+
+	/**
+	 * Removes a document from every cache of the given database.  Document ids are unique within
+	 * a database, so this also covers super and sub classes that share the document.  It's called
+	 * for every write, so it also invalidates the database's view cache and lets the view warmer know
+	 * that the database's views are behind.
+	 */
+	void evictDocument(Database db, String docId) {
+		if (docId != null) {
+			evictDocuments(db, [docId])
+		}
+	}
+
+	/**
+	 * Removes the documents of a bulk write from every cache of the given database; the view cache is
+	 * invalidated (and the view warmer told) once for all of them.
+	 */
+	void evictDocuments(Database db, Collection<String> docIds) {
+		docIds = docIds.findAll {it != null}
+		if (!docIds) {
+			return
+		}
+
+		couchdbViewWarmer?.written(db)
+
+		CouchViewCache viewCache
+		synchronized (this) {
+			viewCache = viewCaches.get(db)
+		}
+		viewCache?.invalidate()
+
+		getDocumentCaches().values().each {CouchDocumentCache cache ->
+			if (cache.database.is(db)) {
+				docIds.each {String docId ->
+					cache.remove(docId)
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns all of the document caches keyed by domain class name.
+	 */
+	synchronized Map<String, CouchDocumentCache> getDocumentCaches() {
+		return new LinkedHashMap<String, CouchDocumentCache>(documentCaches)
+	}
+
+	/**
+	 * @return the hit / miss / revalidation counts for each document cache
+	 */
+	Map<String, Map> getCacheStatistics() {
+		Map<String, Map> statistics = [:]
+
+		getDocumentCaches().each {String name, CouchDocumentCache cache ->
+			statistics.put(name, cache.statistics)
+		}
+
+		return statistics
+	}
+
+	/**
+	 * Keeps track of a _changes listener so that it's stopped when the application shuts down.
+	 */
+	synchronized void registerChangesListener(CouchChangesListener listener) {
+		changesListeners.remove(listener)
+		changesListeners.add(listener)
+	}
+
+	synchronized List<CouchChangesListener> getChangesListeners() {
+		return new ArrayList<CouchChangesListener>(changesListeners)
+	}
+
+	/**
+	 * Stops all of the _changes listeners.
+	 */
+	void shutdown() {
+		getChangesListeners().each {CouchChangesListener listener ->
+			listener.stop()
+		}
+
+		synchronized (this) {
+			changesListeners.clear()
+		}
+	}
+
+	private Database createDatabase(CouchDatabaseSettings settings) {
+		Server server = createServer(settings)
+
+		CouchEntityCodec codec = createEntityCodec()
+		if (couchdbMetrics) {
+			codec.setMetrics(couchdbMetrics, settings.database)
+		}
+
+		Database db = new Database(server, settings.database)
+		db.jsonConfig = new JSONConfig(codec.generator, codec.parser)
+		entityCodecs.put(db, codec)
+
+		return db
+	}
+
+	/**
+	 * Returns the combined pool settings of every database of the couch domain classes that's on the same
+	 * host and port, as the shared pool's per route maximum can't be raised once it's in use.
+	 */
+	private CouchPoolSettings getSharedPoolSettings(CouchDatabaseSettings settings) {
+		CouchPoolSettings poolSettings = settings.poolSettings
+		if (!grailsApplication) {
+			return poolSettings
+		}
+
+		Set<String> dbIds = new LinkedHashSet<String>()
+		dbIds << null
+		grailsApplication.getArtefacts(CouchDomainClassArtefactHandler.TYPE).each {CouchDomainClass dc ->
+			dbIds << dc.databaseId
+		}
+
+		dbIds.each {String dbId ->
+			CouchDatabaseSettings other = CouchDatabaseSettings.resolve(grailsApplication, dbId)
+			if (other.host == settings.host && other.port == settings.port) {
+				poolSettings = poolSettings.combine(other.poolSettings)
+			}
+		}
+
+		return poolSettings
+	}
+
+	/**
+	 * Creates the server that the database's requests are sent to.
+	 */
+	protected Server createServer(CouchDatabaseSettings settings) {
+
+		// all of the databases on the same host/port share a single connection pool
+		def connectionManager = couchdbConnectionManager.getConnectionManager(settings.host, settings.port, false, getSharedPoolSettings(settings))
+		def server = new CouchHttpServer(settings.host, settings.port, false, connectionManager, settings.poolSettings)
+		server.compression = settings.compressionSettings
+
+		// check to see if there are any user credentials and set them
+		if (StringUtils.isNotEmpty(settings.username)) {
+			def credentials = new UsernamePasswordCredentials(settings.username, settings.password)
+			def authScope = new AuthScope(settings.host, settings.port)
+
+			// set the realm and scheme if they are set
+			if (StringUtils.isNotEmpty(settings.realm) || StringUtils.isNotEmpty(settings.scheme)) {
+				authScope = new AuthScope(settings.host, settings.port, settings.realm, settings.scheme)
+			}
+
+			server.setCredentials(authScope, credentials)
+		}
+
+		if (couchdbMetrics) {
+			server.metrics = couchdbMetrics
+		}
+
+		return server
+	}
+
+	private CouchEntityCodec createEntityCodec() {
+		DefaultTypeConverterRepository typeConverterRepository = new DefaultTypeConverterRepository()
+		JsonDateConverter dateConverter = new JsonDateConverter()
+		typeConverterRepository.addTypeConverter(dateConverter)
+
+		JSON generator = new JSON()
+		generator.setIgnoredProperties(Arrays.asList("metaClass"))
+		generator.setTypeConverterRepository(typeConverterRepository)
+		generator.registerTypeConversion(java.util.Date.class, dateConverter)
+		generator.registerTypeConversion(java.sql.Date.class, dateConverter)
+		generator.registerTypeConversion(java.sql.Timestamp.class, dateConverter)
+
+		JSONParser parser = new JSONParser()
+		parser.setTypeConverterRepository(typeConverterRepository)
+		parser.registerTypeConversion(java.util.Date.class, dateConverter)
+		parser.registerTypeConversion(java.sql.Date.class, dateConverter)
+		parser.registerTypeConversion(java.sql.Timestamp.class, dateConverter)
+
+		CouchEntityCodec codec = new CouchEntityCodec(generator, parser, typeConverterRepository)
+		codec.registerTypeConversion(java.util.Date.class, dateConverter)
+		codec.registerTypeConversion(java.sql.Date.class, dateConverter)
+		codec.registerTypeConversion(java.sql.Timestamp.class, dateConverter)
+
+		return codec
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.db
+
+import org.codehaus.groovy.grails.commons.GrailsApplication
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchCompressionSettings
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchPoolSettings
+
+/**
+ * The resolved connection settings for a CouchDB database, read from the <code>couchdb { }</code>
+ * block in DataSource.groovy and overridden by the block for a specific <code>db</code> id (if any).
+ *
+ * @author Cory Hacking
+ */
+class CouchDatabaseSettings {
+
+	String host
+	Integer port
+	String database
+	String username
+	String password
+	String realm
+	String scheme
+
+	CouchPoolSettings poolSettings
+	CouchCompressionSettings compressionSettings
+
+	/**
+	 * The registry key; databases with the same host, port, database and user are shared.
+	 */
+	String getKey() {
+		return "${username ? username + '@' : ''}${host}:${port}/${database}"
+	}
+
+	static CouchDatabaseSettings resolve(GrailsApplication application, String dbId) {
+		def ds = application.config.couchdb
+
+		CouchDatabaseSettings settings = new CouchDatabaseSettings()
+
+		settings.host = ds?.host ?: "localhost"
+		settings.port = (ds?.port ?: 5984) as Integer
+		settings.database = ds?.database ?: (dbId ?: application.metadata["app.name"])
+		settings.username = ds?.username ?: ""
+		settings.password = ds?.password ?: ""
+
+		settings.realm = ds?.realm ?: null
+		settings.scheme = ds?.scheme ?: null
+
+		settings.poolSettings = new CouchPoolSettings(null, ds?.pool)
+		settings.compressionSettings = new CouchCompressionSettings(null, ds?.compression)
+
+		// get the datasource configuration for this specific db (if any)
+		if (dbId && ds[dbId]) {
+			ds = ds[dbId]
+
+			settings.host = ds.host ?: settings.host
+			settings.port = (ds.port ?: settings.port) as Integer
+			settings.database = ds.database ?: settings.database
+			settings.username = ds.username ?: settings.username
+			settings.password = ds.password ?: settings.password
+			settings.realm = ds.realm ?: settings.realm
+			settings.scheme = ds.scheme ?: settings.scheme
+
+			settings.poolSettings = new CouchPoolSettings(settings.poolSettings, ds.pool)
+			settings.compressionSettings = new CouchCompressionSettings(settings.compressionSettings, ds.compression)
+		}
+
+		return settings
+	}
+
+	String toString() {
+		return key
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.util
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.codehaus.groovy.grails.commons.GrailsApplication
+import org.codehaus.groovy.grails.plugins.couchdb.CouchDBPluginSupport
+import org.springframework.context.ApplicationContext
+import org.springframework.context.ApplicationContextAware
+
+/**
+ * Updates the design documents of changed view files (<code>grails-app/conf/couchdb/views/&lt;designName&gt;/...</code>)
+ * once the changes have settled: every change restarts the delay, and the design documents changed in the
+ * meantime are then updated together.  Unchanged design documents are skipped by their content hash.
+ * <p/>
+ * Registered as the <code>couchdbViewReloader</code> bean and used by the plugin's onChange handler.
+ *
+ * @author Cory Hacking
+ */
+class CouchViewReloader implements ApplicationContextAware {
+
+	private static final Log log = LogFactory.getLog(CouchViewReloader.class)
+
+	GrailsApplication grailsApplication
+	ApplicationContext applicationContext
+
+	long delay = 500
+
+	private final Set<String> pending = new LinkedHashSet<String>()
+	private boolean reloadAll
+	private ScheduledFuture scheduled
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor({Runnable r ->
+		Thread thread = new Thread(r, "gorm-couchdb-view-reloader")
+		thread.daemon = true
+		return thread
+	} as ThreadFactory)
+
+	/**
+	 * Schedules the update of the design document that the view file belongs to (or of every design
+	 * document if the file isn't in a design document directory).
+	 */
+	synchronized void changed(File file) {
+		String designName = getDesignName(file)
+		if (designName) {
+			pending.add(designName)
+		} else {
+			reloadAll = true
+		}
+
+		scheduled?.cancel(false)
+		scheduled = scheduler.schedule({-> reload()} as Runnable, delay, TimeUnit.MILLISECONDS)
+	}
+
+	/**
+	 * Updates the pending design documents now.
+	 */
+	void reload() {
+		Set<String> designNames
+		boolean all
+		synchronized (this) {
+			designNames = new LinkedHashSet<String>(pending)
+			all = reloadAll
+
+			pending.clear()
+			reloadAll = false
+			scheduled = null
+		}
+
+		if (!all && !designNames) {
+			return
+		}
+
+		try {
+			log.info("Updating CouchDB design documents ${all ? '(all)' : designNames}...")
+			CouchDBPluginSupport.updateCouchViews(grailsApplication, applicationContext, all ? null : designNames)
+		} catch (Exception e) {
+			log.error("Unable to update CouchDB design documents ${all ? '(all)' : designNames}.", e)
+		}
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow()
+	}
+
+	/**
+	 * @return the first directory below the views directory, or null if the file isn't in one
+	 */
+	private String getDesignName(File file) {
+		String views = new File(CouchDBPluginSupport.getViewsPath(grailsApplication)).canonicalPath
+		String path = file.canonicalPath
+
+		if (!path.startsWith(views + File.separator)) {
+			return null
+		}
+
+		String relative = path.substring(views.length() + 1)
+		int separator = relative.indexOf(File.separator)
+
+		return (separator > 0) ? relative.substring(0, separator) : null
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.logging.Log
+import org.apache.commons.logging.LogFactory
+import org.jcouchdb.db.Database
+import org.jcouchdb.db.Options
+import org.jcouchdb.db.Response
+import org.jcouchdb.document.DesignDocument
+import org.jcouchdb.exception.NotFoundException
+
+/**
+ * Keeps the view indexes of the domain classes' design documents up to date in the background, so that
+ * queries don't wait for CouchDB to index new writes.  A design document's views are indexed together,
+ * so querying one of its views with <code>limit=0</code> brings all of them up to date.
+ * <p/>
+ * The design documents are warmed after a design document update, a short delay after writes to their
+ * database (writes in the meantime are combined) and on a schedule.  With <code>couchdb.finders.stale</code>
+ * set the finders can then read the (current enough) index with <code>stale=ok</code> or
+ * <code>stale=update_after</code>.
+ * <p/>
+ * Registered as the <code>couchdbViewWarmer</code> bean and configured by <code>couchdb.warmer</code>.
+ *
+ * @author Cory Hacking
+ */
+class CouchViewWarmer {
+
+	private static final Log log = LogFactory.getLog(CouchViewWarmer.class)
+
+	volatile boolean enabled = false
+
+	/**
+	 * The number of design documents that are warmed at the same time.
+	 */
+	int parallelism = 2
+
+	/**
+	 * How long (ms) after a write the database's design documents are warmed.
+	 */
+	long writeDelay = 1000
+
+	/**
+	 * How often (ms) all of the design documents are warmed; 0 to disable.
+	 */
+	long interval = 0
+
+	private final Map<Database, Set<String>> designNames = new ConcurrentHashMap<Database, Set<String>>()
+	private final Map<String, Map> status = new ConcurrentHashMap<String, Map>()
+	private final Set<Database> scheduledWrites = Collections.synchronizedSet(new HashSet<Database>())
+	private final Set<String> running = Collections.synchronizedSet(new HashSet<String>())
+
+	private ScheduledExecutorService scheduler
+	private ExecutorService executor
+
+	/**
+	 * Starts the scheduler (called by Spring).
+	 */
+	synchronized void start() {
+		if (!enabled || scheduler) {
+			return
+		}
+
+		AtomicInteger threads = new AtomicInteger()
+		def factory = {Runnable r ->
+			Thread thread = new Thread(r, "gorm-couchdb-view-warmer-${threads.incrementAndGet()}")
+			thread.daemon = true
+			return thread
+		} as ThreadFactory
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(factory)
+		executor = Executors.newFixedThreadPool(Math.max(parallelism, 1), factory)
+
+		if (interval > 0) {
+			scheduler.scheduleWithFixedDelay({-> warmAll()} as Runnable, interval, interval, TimeUnit.MILLISECONDS)
+		}
+
+		log.info("Started the CouchDB view warmer (parallelism: ${parallelism}, interval: ${interval}ms).")
+	}
+
+	synchronized void shutdown() {
+		scheduler?.shutdownNow()
+		executor?.shutdownNow()
+		scheduler = null
+		executor = null
+	}
+
+	/**
+	 * Adds a design document to be kept warm.
+	 */
+	void register(Database db, String designName) {
+		Set<String> names = designNames.get(db)
+		if (names == null) {
+			synchronized (designNames) {
+				names = designNames.get(db)
+				if (names == null) {
+					names = Collections.synchronizedSet(new LinkedHashSet<String>())
+					designNames.put(db, names)
+				}
+			}
+		}
+		names.add(designName)
+	}
+
+	/**
+	 * Warms the database's design documents after the write delay (unless that's already scheduled).
+	 */
+	void written(Database db) {
+		if (!enabled || scheduler == null || !designNames.containsKey(db)) {
+			return
+		}
+
+		if (scheduledWrites.add(db)) {
+			scheduler.schedule({->
+				scheduledWrites.remove(db)
+				warm(db)
+			} as Runnable, writeDelay, TimeUnit.MILLISECONDS)
+		}
+	}
+
+	/**
+	 * Warms all of the registered design documents of the database in the background.
+	 */
+	void warm(Database db) {
+		designNames.get(db)?.toArray()?.each {String designName ->
+			warm(db, designName)
+		}
+	}
+
+	/**
+	 * Warms the design document in the background (unless it's already being warmed).
+	 */
+	void warm(Database db, String designName) {
+		if (!enabled || executor == null) {
+			return
+		}
+
+		String key = getKey(db, designName)
+		if (!running.add(key)) {
+			return
+		}
+
+		executor.execute({->
+			try {
+				warmNow(db, designName)
+			} finally {
+				running.remove(key)
+			}
+		} as Runnable)
+	}
+
+	void warmAll() {
+		designNames.keySet().toArray().each {Database db ->
+			warm(db)
+		}
+	}
+
+	/**
+	 * Queries one of the design document's views with <code>limit=0</code>, which returns once the index
+	 * (of all of its views) is up to date.
+	 */
+	void warmNow(Database db, String designName) {
+		String key = getKey(db, designName)
+		Map result = [database: db.name, designName: designName]
+
+		long start = System.currentTimeMillis()
+		try {
+			DesignDocument design = db.getDesignDocument(designName)
+			String view = design.views?.keySet()?.find {true}
+			if (view) {
+				db.queryView("${designName}/${view}", Map.class, new Options().limit(0), null)
+			}
+
+			result.views = design.views?.keySet()?.toList() ?: []
+			result.warmed = new Date()
+			result.millis = System.currentTimeMillis() - start
+
+			if (log.isDebugEnabled()) {
+				log.debug("Warmed the views of [${key}] in ${result.millis}ms.")
+			}
+		} catch (NotFoundException e) {
+			result.error = "not found"
+		} catch (Exception e) {
+			result.error = e.message
+			log.warn("Unable to warm the views of [${key}]: ${e.message}")
+		}
+
+		status.put(key, result)
+	}
+
+	/**
+	 * Reports how far each design document's index is behind its database.
+	 *
+	 * @return [database/designName: [database, designName, views, warmed, millis, error, updateSequence, indexSequence, lag, updaterRunning]]
+	 */
+	Map<String, Map> getIndexStatus() {
+		Map<String, Map> report = new TreeMap<String, Map>()
+
+		designNames.each {Database db, Set<String> names ->
+			long updateSequence = -1
+			try {
+				updateSequence = db.status.updateSequence
+			} catch (Exception e) {
+				log.debug("Unable to read the status of database [${db.name}]: ${e.message}")
+			}
+
+			names.toArray().each {String designName ->
+				String key = getKey(db, designName)
+				Map entry = new LinkedHashMap(status.get(key) ?: [database: db.name, designName: designName])
+				entry.updateSequence = updateSequence
+
+				Response response = null
+				try {
+					response = db.server.get("/${db.name}/_design/${designName}/_info")
+					if (response.isOk()) {
+						Map index = response.contentAsMap.view_index ?: [:]
+						entry.indexSequence = index.update_seq
+						entry.updaterRunning = index.updater_running
+						if (updateSequence >= 0 && index.update_seq != null) {
+							entry.lag = updateSequence - (index.update_seq as long)
+						}
+					}
+				} catch (Exception e) {
+					entry.infoError = e.message
+				} finally {
+					response?.destroy()
+				}
+
+				report.put(key, entry)
+			}
+		}
+
+		return report
+	}
+
+	private static String getKey(Database db, String designName) {
+		return "${db.name}/${designName}".toString()
+	}
+}
@@ -15,16 +15,30 @@
  */
 package org.codehaus.groovy.grails.plugins.couchdb.util
 
+import java.security.MessageDigest
 import org.apache.commons.io.FileUtils
 import org.jcouchdb.document.DesignDocument
+import org.jcouchdb.document.View
+import org.jcouchdb.exception.NotFoundException
 import org.jcouchdb.util.AbstractCouchDBUpdater
 import org.jcouchdb.util.Assert
+import org.jcouchdb.util.StringUtil
+import org.svenson.JSON
 
 /**
+ * Updates the design documents from the <code>.map.js</code> / <code>.reduce.js</code> files and the update
+ * handlers in the <code>updates</code> directory of each design document (<code>&lt;designName&gt;/updates/&lt;name&gt;.js</code>).
+ * A hash of each design document's content is stored in the document (as <code>contentHash</code>) so that
+ * unchanged documents aren't written again; changing the views of a design document makes CouchDB
+ * rebuild the index of all of its views.
+ *
  * @author Cory Hacking
  */
 public class GrailsCouchDBUpdater extends AbstractCouchDBUpdater {
 
+	static final String CONTENT_HASH = "contentHash"
+	static final String UPDATES = "updates"
+
 	private File designDocumentDir
 
 	public void setDesignDocumentDir(File designDocumentDir) {
@@ -61,15 +75,137 @@ public class GrailsCouchDBUpdater extends AbstractCouchDBUpdater {
 
 			boolean isMapFunction = path.endsWith(MAP_SUFFIX)
 			boolean isReduceFunction = path.endsWith(REDUCE_SUFFIX)
-			if (isMapFunction || isReduceFunction) {
+			boolean isUpdateFunction = !isMapFunction && !isReduceFunction && file.parentFile.name == UPDATES
+			if (isMapFunction || isReduceFunction || isUpdateFunction) {
 				String content = FileUtils.readFileToString(file)
 
 				if (content != null && content.trim().length() > 0) {
-					createViewFor(path, content, designDocuments, File.separator)
+					if (isUpdateFunction) {
+						createUpdateFor(path, content, designDocuments)
+					} else {
+						createViewFor(path, content, designDocuments, File.separator)
+					}
 				}
 			}
 		}
 
 		return new ArrayList<DesignDocument>(designDocuments.values())
 	}
+
+	/**
+	 * Adds the update handler in <code>&lt;designName&gt;/updates/&lt;name&gt;.js</code> to the design document's
+	 * <code>updates</code>.
+	 */
+	private void createUpdateFor(String path, String content, Map<String, DesignDocument> designDocuments) {
+		List<String> parts = StringUtil.split(path, File.separator)
+		Assert.isTrue(parts.size() >= 3, "invalid dir structure")
+
+		String name = parts.remove(parts.size() - 1)
+		name = name.substring(0, name.length() - ".js".length())
+		parts.remove(parts.size() - 1)
+		String designName = StringUtil.join(parts, "/")
+
+		DesignDocument doc = designDocuments.get(designName)
+		if (doc == null) {
+			doc = new DesignDocument(designName)
+			designDocuments.put(designName, doc)
+		}
+
+		Map<String, String> updates = (Map<String, String>) doc.getProperty(UPDATES)
+		if (updates == null) {
+			updates = new TreeMap<String, String>()
+			doc.setProperty(UPDATES, updates)
+		}
+		updates.put(name, content)
+	}
+
+	/**
+	 * Writes the design documents whose content hash differs from the one stored in CouchDB.
+	 *
+	 * @return the design documents that were written
+	 */
+	@Override
+	public List<DesignDocument> updateDesignDocuments() throws IOException {
+		Assert.notNull(database, "database can't be null")
+
+		if (createDatabase) {
+			database.server.createDatabase(database.name)
+		}
+
+		List<DesignDocument> updated = new ArrayList<DesignDocument>()
+
+		readDesignDocuments().each {DesignDocument doc ->
+			String hash = getContentHash(doc)
+
+			DesignDocument existing = null
+			try {
+				existing = database.getDesignDocument(doc.id)
+			} catch (NotFoundException e) {
+				// fall through to create it
+			}
+
+			if (existing && existing.getProperty(CONTENT_HASH) == hash) {
+				if (log.isDebugEnabled()) {
+					log.debug("Design document [${doc.id}] is unchanged.")
+				}
+				return
+			}
+
+			logIndexRebuild(doc, existing)
+
+			doc.setProperty(CONTENT_HASH, hash)
+			if (existing) {
+				doc.revision = existing.revision
+			}
+			database.createOrUpdateDocument(doc)
+
+			updated.add(doc)
+		}
+
+		return updated
+	}
+
+	/**
+	 * @return the hex SHA-1 of the design document's language, views and update handlers (in name order)
+	 */
+	static String getContentHash(DesignDocument doc) {
+		Map<String, Object> content = new TreeMap<String, Object>()
+		content.language = doc.language
+
+		Map<String, Map> views = new TreeMap<String, Map>()
+		doc.views?.each {String name, View view ->
+			views.put(name, [map: view.map, reduce: view.reduce])
+		}
+		content.views = views
+
+		Map updates = (Map) doc.getProperty(UPDATES)
+		if (updates) {
+			content.updates = new TreeMap(updates)
+		}
+
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(JSON.defaultJSON().forValue(content).getBytes("UTF-8"))
+
+		StringBuilder sb = new StringBuilder(digest.length * 2)
+		digest.each {byte b ->
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16))
+		}
+
+		return sb.toString()
+	}
+
+	private void logIndexRebuild(DesignDocument doc, DesignDocument existing) {
+		Map<String, View> views = doc.views ?: [:]
+		Map<String, View> existingViews = existing?.views ?: [:]
+
+		def changed = views.keySet().findAll {name -> views[name] != existingViews[name]}
+		def removed = existingViews.keySet() - views.keySet()
+
+		if (!existing) {
+			log.info("Creating design document [${doc.id}]; views ${views.keySet()} will build their index on their first query.")
+		} else if (changed || removed || doc.language != existing.language) {
+			log.info("Updating design document [${doc.id}] (changed: ${changed}, removed: ${removed}); all of its views ${views.keySet()} will rebuild their index on their next query.")
+		} else {
+			log.info("Storing the content hash of design document [${doc.id}]; its views are unchanged.")
+		}
+	}
 }
\ No newline at end of file
@@ -28,7 +28,7 @@ import java.lang.annotation.Target;
 @Target ({ElementType.TYPE})
 @Retention (RetentionPolicy.RUNTIME)
 @Documented
-@GroovyASTTransformationClass ({"org.codehaus.groovy.grails.plugins.couchdb.ast.CouchEntityASTTransformation"})
+@GroovyASTTransformationClass ({"org.codehaus.groovy.grails.plugins.couchdb.ast.CouchEntityASTTransformation", "org.codehaus.groovy.grails.plugins.couchdb.ast.CouchEntityJSONASTTransformation"})
 public @interface CouchEntity {
 
 	String typeFieldName() default "type";
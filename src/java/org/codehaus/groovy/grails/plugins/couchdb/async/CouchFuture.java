@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of one of the <code>...Async</code> methods (e.g. <code>Foo.getAsync(id)</code>).
+ * <p/>
+ * {@link #get()} rethrows unchecked exceptions as they were thrown by the blocking method (e.g. a
+ * <code>ValidationException</code> or <code>NotFoundException</code>) instead of wrapping them in an
+ * ExecutionException, so code that waits on the result handles errors exactly like the blocking API.
+ * Listeners added with {@link #onComplete(Runnable)} are run once the result is available.
+ *
+ * @author Cory Hacking
+ */
+public class CouchFuture<V> extends FutureTask<V> {
+
+	private static final Log log = LogFactory.getLog(CouchFuture.class);
+
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+
+	public CouchFuture(Callable<V> callable) {
+		super(callable);
+	}
+
+	/**
+	 * Runs the task on the given executor.
+	 */
+	public static <V> CouchFuture<V> submit(Executor executor, Callable<V> callable) {
+		CouchFuture<V> future = new CouchFuture<V>(callable);
+		executor.execute(future);
+
+		return future;
+	}
+
+	/**
+	 * Runs the task on the calling thread, e.g. when it can be answered without a request.
+	 */
+	public static <V> CouchFuture<V> call(Callable<V> callable) {
+		CouchFuture<V> future = new CouchFuture<V>(callable);
+		future.run();
+
+		return future;
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		try {
+			return super.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		try {
+			return super.get(timeout, unit);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Runs the listener when the task is done (immediately if it already is), on the thread that
+	 * completed the task.  The listener should be quick and call {@link #get()} for the result.
+	 */
+	public CouchFuture<V> onComplete(Runnable listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+
+		listener.run();
+		return this;
+	}
+
+	protected void done() {
+		List<Runnable> completed;
+		synchronized (this) {
+			completed = listeners;
+			listeners = null;
+		}
+
+		for (Runnable listener : completed) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				log.warn("Error in completion listener [" + listener + "]", e);
+			}
+		}
+	}
+
+	private static ExecutionException unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+
+		return e;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.attachment;
+
+import org.apache.http.Header;
+
+/**
+ * The metadata of an attachment as returned in the headers of an attachment request (HEAD or GET).
+ * <p/>
+ * For a ranged read {@link #getContentLength()} is the length of the returned range and
+ * {@link #getTotalLength()} the length of the whole attachment.
+ *
+ * @author Cory Hacking
+ */
+public class CouchAttachmentInfo {
+
+	private final String docId;
+	private final String attachmentId;
+
+	private String contentType;
+	private long contentLength = -1;
+	private long totalLength = -1;
+	private long rangeStart = -1;
+	private long rangeEnd = -1;
+	private String digest;
+	private String etag;
+	private boolean acceptRanges;
+
+	public CouchAttachmentInfo(String docId, String attachmentId, int code, Header[] headers) {
+		this.docId = docId;
+		this.attachmentId = attachmentId;
+
+		if (headers != null) {
+			for (Header header : headers) {
+				String name = header.getName();
+				String value = header.getValue();
+
+				if ("Content-Type".equalsIgnoreCase(name)) {
+					contentType = value;
+				} else if ("Content-Length".equalsIgnoreCase(name)) {
+					contentLength = parseLong(value);
+				} else if ("Content-MD5".equalsIgnoreCase(name)) {
+					// same format as the digest in the document's _attachments stubs
+					digest = "md5-" + value;
+				} else if ("ETag".equalsIgnoreCase(name)) {
+					etag = unquote(value);
+				} else if ("Accept-Ranges".equalsIgnoreCase(name)) {
+					acceptRanges = "bytes".equalsIgnoreCase(value);
+				} else if ("Content-Range".equalsIgnoreCase(name)) {
+					parseContentRange(value);
+				}
+			}
+		}
+
+		if (code == 200 || code == 204) {
+			totalLength = contentLength;
+		}
+	}
+
+	public String getDocId() {
+		return docId;
+	}
+
+	public String getAttachmentId() {
+		return attachmentId;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the number of bytes in the response, or -1 if unknown (e.g. chunked)
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return the length of the whole attachment, or -1 if unknown
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * @return true if only part of the attachment was returned
+	 */
+	public boolean isPartial() {
+		return rangeStart >= 0;
+	}
+
+	public long getRangeStart() {
+		return rangeStart;
+	}
+
+	public long getRangeEnd() {
+		return rangeEnd;
+	}
+
+	/**
+	 * @return the attachment's digest (<code>md5-...</code>), or its ETag if the server didn't send one
+	 */
+	public String getDigest() {
+		return (digest != null) ? digest : etag;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return true if the server said it supports byte ranges for this attachment
+	 */
+	public boolean isAcceptRanges() {
+		return acceptRanges;
+	}
+
+	/**
+	 * Parses <code>bytes start-end/total</code> (the total may be <code>*</code>).
+	 */
+	private void parseContentRange(String value) {
+		if (value == null || !value.startsWith("bytes ")) {
+			return;
+		}
+
+		String range = value.substring("bytes ".length()).trim();
+		int dash = range.indexOf('-');
+		int slash = range.indexOf('/');
+		if (dash > 0 && slash > dash) {
+			rangeStart = parseLong(range.substring(0, dash));
+			rangeEnd = parseLong(range.substring(dash + 1, slash));
+		}
+		if (slash >= 0) {
+			totalLength = parseLong(range.substring(slash + 1));
+		}
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String unquote(String value) {
+		if (value != null && value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+
+		return value;
+	}
+
+	public String toString() {
+		return "CouchAttachmentInfo[" + docId + "/" + attachmentId + ", contentType = " + contentType + ", length = " + contentLength
+			+ (isPartial() ? ", range = " + rangeStart + "-" + rangeEnd + "/" + totalLength : "") + ", digest = " + getDigest() + "]";
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.attachment;
+
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpResponse;
+import org.jcouchdb.db.Response;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+/**
+ * The content of an attachment, read directly from the http connection.
+ * <p/>
+ * The stream must be closed; the connection goes back to the pool if the content was read to the end
+ * and is aborted otherwise (which is cheaper than draining the rest of a large attachment).
+ *
+ * @author Cory Hacking
+ */
+public class CouchAttachmentInputStream extends FilterInputStream {
+
+	private final Response response;
+	private final CouchAttachmentInfo info;
+
+	private long remaining;
+	private boolean eof;
+	private boolean closed;
+
+	/**
+	 * @param remaining the number of bytes to return, or -1 to read to the end of the response
+	 */
+	public CouchAttachmentInputStream(Response response, CouchAttachmentInfo info, long remaining) {
+		super(response.getInputStream());
+		this.response = response;
+		this.info = info;
+		this.remaining = remaining;
+	}
+
+	public CouchAttachmentInfo getInfo() {
+		return info;
+	}
+
+	public int read() throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+
+		int b = super.read();
+		if (b < 0) {
+			eof = true;
+		} else if (remaining > 0) {
+			remaining--;
+		}
+
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+
+		if (remaining > 0 && len > remaining) {
+			len = (int) remaining;
+		}
+
+		int count = super.read(b, off, len);
+		if (count < 0) {
+			eof = true;
+		} else if (remaining > 0) {
+			remaining -= count;
+		}
+
+		return count;
+	}
+
+	public long skip(long n) throws IOException {
+		if (remaining >= 0 && n > remaining) {
+			n = remaining;
+		}
+
+		long count = super.skip(n);
+		if (remaining > 0) {
+			remaining -= count;
+		}
+
+		return count;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (!eof && response instanceof CouchHttpResponse) {
+			((CouchHttpResponse) response).abort();
+		} else {
+			response.destroy();
+		}
+	}
+
+	public String toString() {
+		return "CouchAttachmentInputStream[" + info + "]";
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.attachment;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpServer;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.db.Server;
+import org.jcouchdb.exception.DataAccessException;
+import org.jcouchdb.exception.NotFoundException;
+import org.jcouchdb.util.ExceptionWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+
+/**
+ * Reads attachments as streams instead of loading them into a byte[] like
+ * {@link Database#getAttachment(String, String)} does, so that large attachments can be copied to a
+ * response (or file) with a fixed size buffer.
+ * <p/>
+ * Byte ranges (<code>Range: bytes=...</code>) are used for partial and resumed reads; if the server
+ * ignores the range the unwanted bytes are skipped on the client.
+ *
+ * @author Cory Hacking
+ */
+public class CouchAttachmentReader {
+
+	private static final Log log = LogFactory.getLog(CouchAttachmentReader.class);
+
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	private final Database database;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	public CouchAttachmentReader(Database database) {
+		this.database = database;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Returns the attachment's content type, length and digest without transferring its content, or
+	 * null if the attachment (or document) doesn't exist.
+	 */
+	public CouchAttachmentInfo getInfo(String docId, String attachmentId) {
+		Response resp = null;
+		try {
+			Server server = database.getServer();
+			if (server instanceof CouchHttpServer) {
+				resp = ((CouchHttpServer) server).head(getURI(database, docId, attachmentId));
+			} else {
+				resp = server.get(getURI(database, docId, attachmentId));
+			}
+
+			if (resp.getCode() == 404) {
+				return null;
+			}
+			if (!resp.isOk()) {
+				throw new DataAccessException("error getting attachment " + attachmentId + " of document " + docId + ": ", resp);
+			}
+
+			return new CouchAttachmentInfo(docId, attachmentId, resp.getCode(), resp.getResponseHeaders());
+
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Opens the whole attachment; the stream must be closed.
+	 *
+	 * @throws NotFoundException if the attachment doesn't exist
+	 */
+	public CouchAttachmentInputStream openStream(String docId, String attachmentId) {
+		return openStream(docId, attachmentId, 0, -1);
+	}
+
+	/**
+	 * Opens part of the attachment; the stream must be closed.
+	 *
+	 * @param offset the first byte to read
+	 * @param length the number of bytes to read, or -1 to read to the end of the attachment
+	 * @throws NotFoundException if the attachment doesn't exist
+	 */
+	public CouchAttachmentInputStream openStream(String docId, String attachmentId, long offset, long length) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset can't be negative");
+		}
+		if (length == 0) {
+			throw new IllegalArgumentException("length can't be 0");
+		}
+
+		boolean ranged = (offset > 0 || length > 0);
+		String uri = getURI(database, docId, attachmentId);
+		Server server = database.getServer();
+
+		Response resp;
+		if (ranged && server instanceof CouchHttpServer) {
+			String range = "bytes=" + offset + "-" + ((length > 0) ? String.valueOf(offset + length - 1) : "");
+			resp = ((CouchHttpServer) server).get(uri, Collections.singletonMap("Range", range));
+		} else {
+			resp = server.get(uri);
+		}
+
+		boolean ok = false;
+		try {
+			if (resp.getCode() == 404) {
+				throw new NotFoundException("attachment " + attachmentId + " of document " + docId + " not found", resp);
+			}
+
+			// 416 Requested Range Not Satisfiable, i.e. the offset is past the end
+			if (resp.getCode() == 416) {
+				throw new DataAccessException("offset " + offset + " is past the end of attachment " + attachmentId + " of document " + docId + ": ", resp);
+			}
+
+			if (!resp.isOk()) {
+				throw new DataAccessException("error getting attachment " + attachmentId + " of document " + docId + ": ", resp);
+			}
+
+			CouchAttachmentInfo info = new CouchAttachmentInfo(docId, attachmentId, resp.getCode(), resp.getResponseHeaders());
+
+			CouchAttachmentInputStream is;
+			if (ranged && resp.getCode() != 206) {
+				if (log.isDebugEnabled()) {
+					log.debug("Server ignored the range of attachment [" + docId + "/" + attachmentId + "]; skipping " + offset + " bytes.");
+				}
+
+				is = new CouchAttachmentInputStream(resp, info, length);
+				skipFully(resp.getInputStream(), offset);
+			} else {
+				is = new CouchAttachmentInputStream(resp, info, -1);
+			}
+
+			ok = true;
+			return is;
+
+		} catch (IOException e) {
+			throw ExceptionWrapper.wrap(e);
+		} finally {
+			if (!ok) {
+				resp.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Copies the attachment (from the given offset) to the output stream, which is left open.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public long transferTo(String docId, String attachmentId, OutputStream out, long offset) {
+		CouchAttachmentInputStream is = openStream(docId, attachmentId, offset, -1);
+		try {
+			byte[] buffer = new byte[bufferSize];
+
+			long total = 0;
+			int count;
+			while ((count = is.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+				total += count;
+			}
+
+			return total;
+
+		} catch (IOException e) {
+			throw ExceptionWrapper.wrap(e);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Copies the attachment (from the given offset) to the channel, which is left open.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public long transferTo(String docId, String attachmentId, WritableByteChannel channel, long offset) {
+		CouchAttachmentInputStream is = openStream(docId, attachmentId, offset, -1);
+		try {
+			byte[] buffer = new byte[bufferSize];
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+			long total = 0;
+			int count;
+			while ((count = is.read(buffer)) >= 0) {
+				byteBuffer.clear();
+				byteBuffer.limit(count);
+				while (byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer);
+				}
+				total += count;
+			}
+
+			return total;
+
+		} catch (IOException e) {
+			throw ExceptionWrapper.wrap(e);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Returns the (encoded) uri of an attachment; attachment names can contain slashes.
+	 */
+	static String getURI(Database database, String docId, String attachmentId) {
+		return "/" + database.getName() + "/" + encodeId(docId) + "/" + encodePath(attachmentId);
+	}
+
+	/**
+	 * Returns the document id encoded as a path segment (spaces are %20, slashes %2F), keeping the slash
+	 * of a <code>_design/</code> id; jcouchdb's own encoding is form encoding, which isn't safe in a path.
+	 */
+	public static String encodeId(String docId) {
+		if (docId.startsWith("_design/")) {
+			return "_design/" + encodeId(docId.substring("_design/".length()));
+		}
+
+		return encode(docId);
+	}
+
+	private static void skipFully(InputStream is, long count) throws IOException {
+		while (count > 0) {
+			long skipped = is.skip(count);
+			if (skipped <= 0) {
+				if (is.read() < 0) {
+					throw new IOException("Unexpected end of attachment while skipping to the requested offset.");
+				}
+				skipped = 1;
+			}
+			count -= skipped;
+		}
+	}
+
+	private static void close(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException e) {
+			log.debug("Error closing attachment stream: " + e.getMessage());
+		}
+	}
+
+	private static String encodePath(String path) {
+		String[] segments = path.split("/", -1);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < segments.length; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+			sb.append(encode(segments[i]));
+		}
+
+		return sb.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+	}
+
+	public String toString() {
+		return "CouchAttachmentReader[" + database.getName() + "]";
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.attachment;
+
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpServer;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.db.Server;
+import org.jcouchdb.document.Attachment;
+import org.jcouchdb.exception.DataAccessException;
+import org.jcouchdb.util.ExceptionWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Uploads attachments from files and streams without buffering them in the heap.
+ * <p/>
+ * Files are sent through their FileChannel, and streams of unknown length (a length of -1) are
+ * sent with chunked transfer encoding.  The new document revision is returned so that callers can
+ * update their instance instead of reading the document back.
+ *
+ * @author Cory Hacking
+ */
+public class CouchAttachmentWriter {
+
+	public static final int DEFAULT_INLINE_MAX_SIZE = 64 * 1024;
+
+	private final Database database;
+
+	public CouchAttachmentWriter(Database database) {
+		this.database = database;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Uploads the file as an attachment.
+	 *
+	 * @return the new revision of the document
+	 */
+	public String save(String docId, String revision, String attachmentId, String contentType, File file) {
+		String uri = getURI(docId, revision, attachmentId);
+		Server server = database.getServer();
+
+		Response resp;
+		if (server instanceof CouchHttpServer) {
+			resp = ((CouchHttpServer) server).put(uri, file, contentType);
+		} else {
+			InputStream is = null;
+			try {
+				is = new FileInputStream(file);
+				resp = server.put(uri, is, contentType, file.length());
+			} catch (IOException e) {
+				throw ExceptionWrapper.wrap(e);
+			} finally {
+				close(is);
+			}
+		}
+
+		return getRevision(resp, docId, attachmentId);
+	}
+
+	/**
+	 * Uploads the stream as an attachment; the stream isn't closed.
+	 *
+	 * @param length the length of the stream, or -1 to send it chunked
+	 * @return the new revision of the document
+	 */
+	public String save(String docId, String revision, String attachmentId, String contentType, InputStream is, long length) {
+		String uri = getURI(docId, revision, attachmentId);
+		Server server = database.getServer();
+
+		if (length < 0 && !(server instanceof CouchHttpServer)) {
+			throw new IllegalStateException("Chunked attachment uploads need a CouchHttpServer; got [" + server + "].");
+		}
+
+		return getRevision(server.put(uri, is, contentType, length), docId, attachmentId);
+	}
+
+	/**
+	 * Creates an attachment whose (base64 encoded) content is written as part of the document, e.g. so
+	 * that a bulk save writes the documents and their attachments in one request.
+	 *
+	 * @param maxSize the largest attachment that may be inlined
+	 */
+	public static Attachment createInlineAttachment(String contentType, byte[] data, int maxSize) {
+		if (data.length > maxSize) {
+			throw new IllegalArgumentException("Attachment of " + data.length + " bytes is larger than the maximum inline size of " + maxSize + " bytes; save it with saveAttachment() instead.");
+		}
+
+		Attachment attachment = new Attachment(contentType, data);
+		attachment.setLength(data.length);
+
+		return attachment;
+	}
+
+	/**
+	 * Reads a (small) file into an inline attachment.
+	 */
+	public static Attachment createInlineAttachment(String contentType, File file, int maxSize) {
+		if (file.length() > maxSize) {
+			throw new IllegalArgumentException("Attachment file [" + file + "] is larger than the maximum inline size of " + maxSize + " bytes; save it with saveAttachment() instead.");
+		}
+
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = is.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+
+			return createInlineAttachment(contentType, out.toByteArray(), maxSize);
+
+		} catch (IOException e) {
+			throw ExceptionWrapper.wrap(e);
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Turns a saved inline attachment into a stub (as it would be read back) so that the document
+	 * can be saved again without re-sending the content.
+	 */
+	public static void toStub(Attachment attachment) {
+		if (attachment != null && attachment.getData() != null) {
+			attachment.setData(null);
+			attachment.setStub(true);
+		}
+	}
+
+	private String getURI(String docId, String revision, String attachmentId) {
+		String uri = CouchAttachmentReader.getURI(database, docId, attachmentId);
+		if (revision != null) {
+			try {
+				uri += "?rev=" + URLEncoder.encode(revision, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw ExceptionWrapper.wrap(e);
+			}
+		}
+
+		return uri;
+	}
+
+	private static String getRevision(Response resp, String docId, String attachmentId) {
+		try {
+			if (!resp.isOk()) {
+				throw new DataAccessException("error saving attachment " + attachmentId + " of document " + docId + ": ", resp);
+			}
+
+			return (String) resp.getContentAsMap().get("rev");
+
+		} finally {
+			resp.destroy();
+		}
+	}
+
+	private static void close(InputStream is) {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	public String toString() {
+		return "CouchAttachmentWriter[" + database.getName() + "]";
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.cache;
+
+import java.util.Map;
+
+/**
+ * Document cache settings read from the <code>cache</code> section of the <code>couchdb { }</code>
+ * block in DataSource.groovy.  The top level values are the defaults and a nested block named after
+ * a domain class (its property name) overrides them for that class, e.g.
+ * <pre>
+ * couchdb {
+ *     cache {
+ *         enabled = false
+ *         maxSize = 1000
+ *         ttl = 60000
+ *
+ *         country {
+ *             enabled = true
+ *         }
+ *     }
+ * }
+ * </pre>
+ * The ttl is in milliseconds; once it has passed an entry is revalidated against CouchDB before it's used.
+ *
+ * @author Cory Hacking
+ */
+public class CouchCacheSettings {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+	public static final long DEFAULT_TTL = 60000;
+
+	private boolean enabled = false;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long ttl = DEFAULT_TTL;
+
+	public CouchCacheSettings() {
+
+	}
+
+	/**
+	 * Creates a copy of the given settings, overridden by any values in the config map.
+	 *
+	 * @param parent the settings to inherit from (may be null)
+	 * @param config the <code>cache</code> config section (may be null or empty)
+	 */
+	public CouchCacheSettings(CouchCacheSettings parent, Map config) {
+		if (parent != null) {
+			enabled = parent.enabled;
+			maxSize = parent.maxSize;
+			ttl = parent.ttl;
+		}
+
+		if (config != null) {
+			Object value = config.get("enabled");
+			if (value instanceof Boolean) {
+				enabled = (Boolean) value;
+			} else if (value instanceof String && !"".equals(value)) {
+				enabled = Boolean.valueOf((String) value);
+			}
+
+			maxSize = getInt(config, "maxSize", maxSize);
+			ttl = getLong(config, "ttl", ttl);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	static int getInt(Map config, String key, int defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		} else if (value instanceof String && !"".equals(value)) {
+			return Integer.parseInt((String) value);
+		}
+
+		return defaultValue;
+	}
+
+	static long getLong(Map config, String key, long defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof String && !"".equals(value)) {
+			return Long.parseLong((String) value);
+		}
+
+		return defaultValue;
+	}
+
+	public String toString() {
+		return "CouchCacheSettings[enabled=" + enabled + ", maxSize=" + maxSize + ", ttl=" + ttl + "]";
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.codehaus.groovy.grails.plugins.couchdb.attachment.CouchAttachmentReader;
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpServer;
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchEntityCodec;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.exception.DataAccessException;
+import org.svenson.JSONParser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of documents read by <code>Foo.get(id)</code>.
+ * <p/>
+ * The cache holds the JSON of each document and every read returns a new instance parsed from it, so
+ * callers can change (or validate) what they get without affecting each other.  Entries are used as is
+ * until their ttl has passed, after which they are revalidated with an <code>If-None-Match</code> request
+ * on the document's revision; a <code>304 Not Modified</code> answer keeps the cached JSON without
+ * transferring the document again.
+ * <p/>
+ * Writes made through this plugin evict the document (see {@link org.codehaus.groovy.grails.plugins.couchdb.db.CouchDatabaseRegistry}).
+ * Every document that's being read has an eviction generation, and a read that was overtaken by an
+ * eviction doesn't put its (possibly stale) revision back into the cache.
+ *
+ * @author Cory Hacking
+ */
+public class CouchDocumentCache {
+
+	private static final Log log = LogFactory.getLog(CouchDocumentCache.class);
+
+	private final String name;
+	private final Database database;
+	private final CouchCacheSettings settings;
+
+	private CouchEntityCodec entityCodec;
+
+	private final LinkedHashMap<String, CachedDocument> entries;
+	private final Map<String, Fetch> fetches = new HashMap<String, Fetch>();
+
+	private long hits;
+	private long misses;
+	private long revalidations;
+	private long evictions;
+
+	public CouchDocumentCache(String name, Database database, CouchCacheSettings settings) {
+		this.name = name;
+		this.database = database;
+		this.settings = settings;
+
+		final int maxSize = settings.getMaxSize();
+		this.entries = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+				if (size() > maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	public CouchCacheSettings getSettings() {
+		return settings;
+	}
+
+	public CouchEntityCodec getEntityCodec() {
+		return entityCodec;
+	}
+
+	/**
+	 * Sets the codec used to read the documents of classes with generated JSON methods.
+	 */
+	public void setEntityCodec(CouchEntityCodec entityCodec) {
+		this.entityCodec = entityCodec;
+	}
+
+	/**
+	 * Returns a new instance of the document with the given id, read from the cache or revalidated or
+	 * read from CouchDB as necessary.  Returns null if the document doesn't exist.
+	 */
+	public <T> T getDocument(Class<T> clazz, String docId, JSONParser parser) {
+		CachedDocument entry;
+		long generation;
+		synchronized (this) {
+			entry = entries.get(docId);
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				hits++;
+				return read(clazz, entry.json, parser);
+			}
+
+			generation = beginFetch(docId);
+		}
+
+		String revision = (entry != null) ? entry.revision : null;
+		String json = null;
+
+		Response resp = null;
+		try {
+			resp = getDocumentResponse(docId, revision);
+
+			if (resp.getCode() == 304 && entry != null) {
+				synchronized (this) {
+					revalidations++;
+					if (isCurrent(docId, generation) && entries.get(docId) == entry) {
+						entry.expires = System.currentTimeMillis() + settings.getTtl();
+					}
+				}
+				return read(clazz, entry.json, parser);
+			}
+
+			synchronized (this) {
+				misses++;
+			}
+
+			if (resp.getCode() == 404) {
+				remove(docId);
+				return null;
+			}
+
+			if (!resp.isOk()) {
+				throw new DataAccessException("error getting document " + docId + ": ", resp);
+			}
+
+			String content = resp.getContentAsString();
+			T document = read(clazz, content, parser);
+
+			revision = getRevision(resp);
+			json = content;
+
+			return document;
+
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+
+			endFetch(docId, generation, revision, json);
+		}
+	}
+
+	/**
+	 * Parses a new instance of the document.
+	 */
+	@SuppressWarnings ({"unchecked"})
+	private <T> T read(Class<T> clazz, String json, JSONParser parser) {
+		if (entityCodec != null && entityCodec.isRegistered(clazz)) {
+			return entityCodec.read(clazz, entityCodec.getParser().parse(Map.class, json));
+		}
+
+		return parser.parse(clazz, json);
+	}
+
+	/**
+	 * Registers a read of the document and returns its current eviction generation.
+	 */
+	private long beginFetch(String docId) {
+		Fetch fetch = fetches.get(docId);
+		if (fetch == null) {
+			fetch = new Fetch();
+			fetches.put(docId, fetch);
+		}
+		fetch.readers++;
+
+		return fetch.generation;
+	}
+
+	private boolean isCurrent(String docId, long generation) {
+		Fetch fetch = fetches.get(docId);
+		return fetch != null && fetch.generation == generation;
+	}
+
+	/**
+	 * Ends a read of the document, caching its JSON unless it was evicted while it was being read.
+	 */
+	private synchronized void endFetch(String docId, long generation, String revision, String json) {
+		boolean current = isCurrent(docId, generation);
+
+		Fetch fetch = fetches.get(docId);
+		if (fetch != null && --fetch.readers == 0) {
+			fetches.remove(docId);
+		}
+
+		if (json != null && current) {
+			entries.put(docId, new CachedDocument(revision, json, System.currentTimeMillis() + settings.getTtl()));
+		}
+	}
+
+	public synchronized boolean remove(String docId) {
+		Fetch fetch = fetches.get(docId);
+		if (fetch != null) {
+			fetch.generation++;
+		}
+
+		return entries.remove(docId) != null;
+	}
+
+	public synchronized void clear() {
+		for (Fetch fetch : fetches.values()) {
+			fetch.generation++;
+		}
+
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		statistics.put("size", entries.size());
+		statistics.put("maxSize", settings.getMaxSize());
+		statistics.put("ttl", settings.getTtl());
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("revalidations", revalidations);
+		statistics.put("evictions", evictions);
+
+		return statistics;
+	}
+
+	private Response getDocumentResponse(String docId, String revision) {
+		String uri = "/" + database.getName() + "/" + CouchAttachmentReader.encodeId(docId);
+
+		if (revision != null && database.getServer() instanceof CouchHttpServer) {
+			if (log.isDebugEnabled()) {
+				log.debug("Revalidating cached document [" + docId + "] rev [" + revision + "] of cache [" + name + "]");
+			}
+
+			return ((CouchHttpServer) database.getServer()).get(uri, Collections.singletonMap("If-None-Match", "\"" + revision + "\""));
+		}
+
+		return database.getServer().get(uri);
+	}
+
+	/**
+	 * Returns the document revision from the ETag header (which is quoted).
+	 */
+	private static String getRevision(Response resp) {
+		Header[] headers = resp.getResponseHeaders();
+		if (headers != null) {
+			for (Header header : headers) {
+				if ("ETag".equalsIgnoreCase(header.getName())) {
+					String value = header.getValue();
+					if (value != null && value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+						value = value.substring(1, value.length() - 1);
+					}
+					return value;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	public String toString() {
+		return "CouchDocumentCache[" + name + ", " + getStatistics() + "]";
+	}
+
+	private static class CachedDocument {
+
+		final String revision;
+		final String json;
+		long expires;
+
+		CachedDocument(String revision, String json, long expires) {
+			this.revision = revision;
+			this.json = json;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * The reads of a document that are in flight, and the number of times it was evicted since they began.
+	 */
+	private static class Fetch {
+
+		int readers;
+		long generation;
+	}
+}
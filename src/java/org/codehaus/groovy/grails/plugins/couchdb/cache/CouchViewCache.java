@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jcouchdb.db.Database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of the view query results of one database, used by
+ * <code>queryView</code>, <code>queryViewByKeys</code> and the dynamic finders.
+ * <p/>
+ * Every write changes the database's <code>update_seq</code>, so the cached results are current as long
+ * as it hasn't changed.  It's read at most once per ttl and the whole cache is cleared when it has moved.
+ * Writes made through this plugin start a new generation right away (see
+ * {@link org.codehaus.groovy.grails.plugins.couchdb.db.CouchDatabaseRegistry}), which only costs a counter
+ * increment: the results of older generations are dropped as they're looked up or pushed out.  Writes made
+ * by others may therefore be missed for up to the ttl.
+ * <p/>
+ * The cache is bounded by the number of results (maxSize) and by the total number of rows they hold
+ * (maxRows).  Cached results are shared, so callers are handed copies of them.
+ *
+ * @author Cory Hacking
+ */
+public class CouchViewCache {
+
+	private static final Log log = LogFactory.getLog(CouchViewCache.class);
+
+	public static final int DEFAULT_MAX_ROWS = 50000;
+
+	private final Database database;
+	private final CouchCacheSettings settings;
+	private final int maxRows;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long sequence = -1;
+	private long nextCheck;
+	private long generation;
+	private long rows;
+
+	private long hits;
+	private long misses;
+	private long invalidations;
+	private long evictions;
+
+	public CouchViewCache(Database database, CouchCacheSettings settings, int maxRows) {
+		this.database = database;
+		this.settings = settings;
+		this.maxRows = maxRows;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	public CouchCacheSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return true if the results of queries without a <code>cache</code> option are cached
+	 */
+	public boolean isEnabled() {
+		return settings.isEnabled();
+	}
+
+	/**
+	 * Makes sure that the cached results are current (reading the database's update_seq if the ttl has
+	 * passed) and returns the generation that a result read from now on should be put with.
+	 */
+	public long validate() {
+		synchronized (this) {
+			if (System.currentTimeMillis() < nextCheck) {
+				return generation;
+			}
+		}
+
+		long current = database.getStatus().getUpdateSequence();
+
+		synchronized (this) {
+			if (current != sequence) {
+				if (sequence >= 0 && log.isDebugEnabled()) {
+					log.debug("Database [" + database.getName() + "] update_seq moved from " + sequence + " to " + current + "; clearing the view cache.");
+				}
+
+				clearEntries();
+				sequence = current;
+			}
+			nextCheck = System.currentTimeMillis() + settings.getTtl();
+
+			return generation;
+		}
+	}
+
+	/**
+	 * @return the cached result, or null; call {@link #validate()} first
+	 */
+	public synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.generation != generation) {
+			entries.remove(key);
+			rows -= entry.rows;
+			entry = null;
+		}
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.result;
+	}
+
+	/**
+	 * Caches the result unless the cache was cleared since the generation was returned by {@link #validate()}
+	 * (i.e. the result may already be out of date) or the result alone is larger than maxRows.
+	 */
+	public synchronized void put(String key, long generation, Object result, int rowCount) {
+		if (generation != this.generation || rowCount > maxRows) {
+			return;
+		}
+
+		Entry previous = entries.put(key, new Entry(result, rowCount, generation));
+		if (previous != null) {
+			rows -= previous.rows;
+		}
+		rows += rowCount;
+
+		Iterator<Entry> eldest = entries.values().iterator();
+		while ((entries.size() > settings.getMaxSize() || rows > maxRows) && eldest.hasNext()) {
+			rows -= eldest.next().rows;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Invalidates the cached results after a write by starting a new generation; results read before
+	 * it are no longer returned or put.
+	 */
+	public synchronized void invalidate() {
+		if (!entries.isEmpty()) {
+			invalidations++;
+		}
+		generation++;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		rows = 0;
+		generation++;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		statistics.put("enabled", settings.isEnabled());
+		statistics.put("size", entries.size());
+		statistics.put("maxSize", settings.getMaxSize());
+		statistics.put("rows", rows);
+		statistics.put("maxRows", maxRows);
+		statistics.put("ttl", settings.getTtl());
+		statistics.put("updateSequence", sequence);
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("invalidations", invalidations);
+		statistics.put("evictions", evictions);
+
+		return statistics;
+	}
+
+	private void clearEntries() {
+		if (!entries.isEmpty()) {
+			invalidations++;
+		}
+		clear();
+	}
+
+	public String toString() {
+		return "CouchViewCache[" + database.getName() + ", " + getStatistics() + "]";
+	}
+
+	private static class Entry {
+
+		final Object result;
+		final int rows;
+		final long generation;
+
+		Entry(Object result, int rows, long generation) {
+			this.result = result;
+			this.rows = rows;
+			this.generation = generation;
+		}
+	}
+}
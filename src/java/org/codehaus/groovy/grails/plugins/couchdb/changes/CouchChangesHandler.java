@@ -0,0 +1,32 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.changes;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives batches of changes from a {@link CouchChangesListener}.  Each change is a map of the
+ * <code>seq</code>, <code>id</code>, <code>changes</code> and <code>deleted</code> values of the
+ * <code>_changes</code> feed, plus the <code>doc</code> (as a domain class instance) when documents
+ * are included.
+ *
+ * @author Cory Hacking
+ */
+public interface CouchChangesHandler {
+
+	void onChanges(List<Map<String, Object>> changes);
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.changes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpResponse;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.exception.DataAccessException;
+import org.jcouchdb.util.ExceptionWrapper;
+import org.svenson.JSONParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the <code>_changes</code> feed of a database on a dedicated thread and delivers the
+ * changes to a {@link CouchChangesHandler} in batches on a second thread.
+ * <p/>
+ * The two threads are connected by a bounded queue; when the handler falls behind the reader blocks,
+ * which stops it reading from the feed.  After each batch has been handled its last sequence is saved
+ * to the {@link CouchCheckpointStore}, and the next start continues from there.  Errors reading the
+ * feed are retried with an exponential backoff.
+ * <p/>
+ * A batch whose handler throws is retried with the same backoff until it's handled or the listener is
+ * stopped; the checkpoint never moves past changes that weren't handled, so they're delivered again
+ * (by the retry, or after a restart).  Meanwhile the queue fills up and the reader stops reading the
+ * feed.  Handlers should therefore be idempotent.
+ * <p/>
+ * When a type field and document types are set, only changes to documents of those types (and
+ * deletions, which no longer have a type) are delivered.
+ *
+ * @author Cory Hacking
+ */
+public class CouchChangesListener {
+
+	private static final Log log = LogFactory.getLog(CouchChangesListener.class);
+
+	public static final String FEED_LONGPOLL = "longpoll";
+	public static final String FEED_CONTINUOUS = "continuous";
+
+	private final Database database;
+	private final String id;
+	private final CouchChangesHandler handler;
+
+	private String feed = FEED_LONGPOLL;
+	private String filter;
+	private Object since;
+	private int batchSize = 100;
+	private int queueSize = 0;
+	private long heartbeat = 10000;
+	private long minBackoff = 1000;
+	private long maxBackoff = 60000;
+
+	private String typeFieldName;
+	private Set<String> documentTypes = Collections.emptySet();
+	private Class documentClass;
+	private JSONParser documentParser;
+
+	private CouchCheckpointStore checkpointStore = new CouchMemoryCheckpointStore();
+
+	private BlockingQueue<Map<String, Object>> queue;
+	private Thread reader;
+	private Thread dispatcher;
+	private volatile Response response;
+	private volatile boolean running;
+
+	private volatile Object lastSequence;
+	private volatile Object checkpoint;
+	private volatile long received;
+	private volatile long delivered;
+	private volatile long reconnects;
+	private volatile long failures;
+
+	public CouchChangesListener(Database database, String id, CouchChangesHandler handler) {
+		this.database = database;
+		this.id = id;
+		this.handler = handler;
+	}
+
+	/**
+	 * Starts following the feed from the given since value, the saved checkpoint or (if neither)
+	 * the current update sequence of the database.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		lastSequence = since;
+		if (lastSequence == null) {
+			lastSequence = checkpointStore.getCheckpoint(id);
+		}
+		if (lastSequence == null) {
+			lastSequence = database.getStatus().getUpdateSequence();
+		}
+		checkpoint = lastSequence;
+
+		queue = new ArrayBlockingQueue<Map<String, Object>>(queueSize > 0 ? queueSize : Math.max(batchSize * 2, 1));
+		running = true;
+
+		reader = new Thread("gorm-couchdb-changes-" + id) {
+			public void run() {
+				follow();
+			}
+		};
+		reader.setDaemon(true);
+
+		dispatcher = new Thread("gorm-couchdb-changes-" + id + "-dispatch") {
+			public void run() {
+				dispatch();
+			}
+		};
+		dispatcher.setDaemon(true);
+
+		dispatcher.start();
+		reader.start();
+
+		log.info("Following the " + feed + " _changes feed of [" + database.getName() + "] for [" + id + "] since [" + lastSequence + "]");
+	}
+
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+
+		running = false;
+
+		Response current = response;
+		if (current instanceof CouchHttpResponse) {
+			((CouchHttpResponse) current).abort();
+		}
+
+		reader.interrupt();
+		dispatcher.interrupt();
+
+		log.info("Stopped following the _changes feed of [" + database.getName() + "] for [" + id + "] at [" + checkpoint + "]");
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Database getDatabase() {
+		return database;
+	}
+
+	/**
+	 * @return the sequence of the last change read from the feed
+	 */
+	public Object getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the sequence of the last change delivered to the handler
+	 */
+	public Object getCheckpoint() {
+		return checkpoint;
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		statistics.put("running", running);
+		statistics.put("lastSequence", lastSequence);
+		statistics.put("checkpoint", checkpoint);
+		statistics.put("received", received);
+		statistics.put("delivered", delivered);
+		statistics.put("queued", (queue != null) ? queue.size() : 0);
+		statistics.put("reconnects", reconnects);
+		statistics.put("failures", failures);
+
+		return statistics;
+	}
+
+	private void follow() {
+		long backoff = minBackoff;
+
+		while (running) {
+			try {
+				if (FEED_CONTINUOUS.equals(feed)) {
+					readContinuous();
+				} else {
+					readLongpoll();
+				}
+
+				backoff = minBackoff;
+
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				if (!running) {
+					break;
+				}
+
+				reconnects++;
+				log.warn("Error reading the _changes feed of [" + database.getName() + "] for [" + id + "], retrying in " + backoff + "ms: " + e.getMessage());
+
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, maxBackoff);
+			} finally {
+				closeResponse();
+			}
+		}
+	}
+
+	private void readLongpoll() throws InterruptedException {
+		Response resp = openFeed("&timeout=" + heartbeat + "&limit=" + batchSize);
+
+		Map result = resp.getContentAsMap();
+
+		List results = (List) result.get("results");
+		if (results != null) {
+			for (Object change : results) {
+				handleChange((Map) change);
+			}
+		}
+
+		if (result.get("last_seq") != null) {
+			lastSequence = result.get("last_seq");
+		}
+	}
+
+	private void readContinuous() throws InterruptedException, IOException {
+		Response resp = openFeed("&heartbeat=" + heartbeat);
+
+		JSONParser parser = database.getJsonConfig().getJsonParser();
+		BufferedReader in = new BufferedReader(new InputStreamReader(resp.getInputStream(), "UTF-8"));
+
+		String line;
+		while (running && (line = in.readLine()) != null) {
+			line = line.trim();
+
+			// empty lines are heartbeats
+			if (line.length() == 0) {
+				continue;
+			}
+
+			Map change = parser.parse(Map.class, line);
+
+			// the feed ends with the last sequence (if it times out)
+			if (change.containsKey("last_seq")) {
+				lastSequence = change.get("last_seq");
+				break;
+			}
+
+			handleChange(change);
+		}
+	}
+
+	private Response openFeed(String feedOptions) {
+		StringBuilder uri = new StringBuilder();
+		uri.append("/").append(database.getName()).append("/_changes?feed=").append(feed);
+		uri.append("&include_docs=true");
+		if (lastSequence != null) {
+			uri.append("&since=").append(encode(lastSequence.toString()));
+		}
+		if (filter != null) {
+			uri.append("&filter=").append(encode(filter));
+		}
+		uri.append(feedOptions);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Reading the _changes feed " + uri);
+		}
+
+		Response resp = database.getServer().get(uri.toString());
+		response = resp;
+
+		if (!resp.isOk()) {
+			throw new DataAccessException("error reading the _changes feed of " + database.getName() + ": ", resp);
+		}
+
+		return resp;
+	}
+
+	private void closeResponse() {
+		Response current = response;
+		response = null;
+
+		if (current != null) {
+
+			// don't wait for the rest of a feed we're no longer following
+			if (!running && current instanceof CouchHttpResponse) {
+				((CouchHttpResponse) current).abort();
+			}
+			current.destroy();
+		}
+	}
+
+	@SuppressWarnings ({"unchecked"})
+	private void handleChange(Map change) throws InterruptedException {
+		lastSequence = change.get("seq");
+
+		if (!accept(change)) {
+			return;
+		}
+
+		// convert the document to the domain class
+		Object doc = change.get("doc");
+		if (documentClass != null && doc instanceof Map && !Boolean.TRUE.equals(change.get("deleted"))) {
+			String json = database.getJsonConfig().getJsonGenerator().forValue(doc);
+			change.put("doc", documentParser.parse(documentClass, json));
+		}
+
+		// blocks when the handler has fallen behind
+		queue.put(change);
+		received++;
+	}
+
+	private boolean accept(Map change) {
+		if (typeFieldName == null || "".equals(typeFieldName) || documentTypes.isEmpty()) {
+			return true;
+		}
+
+		if (Boolean.TRUE.equals(change.get("deleted"))) {
+			return true;
+		}
+
+		Object doc = change.get("doc");
+		if (doc instanceof Map) {
+			Object type = ((Map) doc).get(typeFieldName);
+			return type != null && documentTypes.contains(type.toString());
+		}
+
+		return true;
+	}
+
+	private void dispatch() {
+		while (running) {
+			List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(batchSize);
+			try {
+				Map<String, Object> first = queue.poll(500, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			if (!deliver(batch)) {
+				break;
+			}
+
+			Object sequence = batch.get(batch.size() - 1).get("seq");
+			checkpoint = sequence;
+
+			try {
+				checkpointStore.saveCheckpoint(id, sequence);
+			} catch (Exception e) {
+				log.warn("Error saving the _changes checkpoint [" + sequence + "] for [" + id + "]: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Passes the batch to the handler, retrying it with an exponential backoff if the handler throws.
+	 *
+	 * @return false if the listener was stopped before the batch was handled
+	 */
+	private boolean deliver(List<Map<String, Object>> batch) {
+		long backoff = minBackoff;
+
+		while (running) {
+			try {
+				handler.onChanges(batch);
+				delivered += batch.size();
+
+				return true;
+
+			} catch (Exception e) {
+				failures++;
+				log.error("Error handling " + batch.size() + " changes of [" + database.getName() + "] for [" + id + "], retrying in " + backoff + "ms", e);
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				break;
+			}
+			backoff = Math.min(backoff * 2, maxBackoff);
+		}
+
+		return false;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+	}
+
+	public String getFeed() {
+		return feed;
+	}
+
+	public void setFeed(String feed) {
+		this.feed = feed;
+	}
+
+	public String getFilter() {
+		return filter;
+	}
+
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+
+	public Object getSince() {
+		return since;
+	}
+
+	public void setSince(Object since) {
+		this.since = since;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(batchSize, 1);
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+
+	public void setHeartbeat(long heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	public long getMinBackoff() {
+		return minBackoff;
+	}
+
+	public void setMinBackoff(long minBackoff) {
+		this.minBackoff = minBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public String getTypeFieldName() {
+		return typeFieldName;
+	}
+
+	public void setTypeFieldName(String typeFieldName) {
+		this.typeFieldName = typeFieldName;
+	}
+
+	public Set<String> getDocumentTypes() {
+		return documentTypes;
+	}
+
+	public void setDocumentTypes(Set<String> documentTypes) {
+		this.documentTypes = (documentTypes != null) ? documentTypes : Collections.<String>emptySet();
+	}
+
+	public Class getDocumentClass() {
+		return documentClass;
+	}
+
+	public void setDocumentClass(Class documentClass) {
+		this.documentClass = documentClass;
+	}
+
+	public JSONParser getDocumentParser() {
+		return documentParser;
+	}
+
+	public void setDocumentParser(JSONParser documentParser) {
+		this.documentParser = documentParser;
+	}
+
+	public CouchCheckpointStore getCheckpointStore() {
+		return checkpointStore;
+	}
+
+	public void setCheckpointStore(CouchCheckpointStore checkpointStore) {
+		this.checkpointStore = checkpointStore;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.changes;
+
+/**
+ * Stores the last sequence that a {@link CouchChangesListener} has delivered so that it can
+ * continue from there after a restart.
+ *
+ * @author Cory Hacking
+ */
+public interface CouchCheckpointStore {
+
+	/**
+	 * @return the saved sequence for the given listener id, or null if there isn't one
+	 */
+	Object getCheckpoint(String id);
+
+	void saveCheckpoint(String id, Object sequence);
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.changes;
+
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.exception.DataAccessException;
+import org.jcouchdb.util.ExceptionWrapper;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps checkpoints in <code>_local/&lt;id&gt;</code> documents of the database being followed.  Local
+ * documents aren't replicated and don't show up in views or the <code>_changes</code> feed.
+ *
+ * @author Cory Hacking
+ */
+public class CouchLocalCheckpointStore implements CouchCheckpointStore {
+
+	private final Database database;
+	private final Map<String, String> revisions = new ConcurrentHashMap<String, String>();
+
+	public CouchLocalCheckpointStore(Database database) {
+		this.database = database;
+	}
+
+	public Object getCheckpoint(String id) {
+		Map document = getDocument(id);
+		return (document != null) ? document.get("seq") : null;
+	}
+
+	public void saveCheckpoint(String id, Object sequence) {
+		if (sequence == null) {
+			return;
+		}
+
+		// retry once if someone else updated the checkpoint
+		if (!putDocument(id, sequence)) {
+			getDocument(id);
+			if (!putDocument(id, sequence)) {
+				throw new CouchDBException("Conflict saving checkpoint [" + id + "]");
+			}
+		}
+	}
+
+	private Map getDocument(String id) {
+		Response resp = null;
+		try {
+			resp = database.getServer().get(getURI(id));
+			if (resp.getCode() == 404) {
+				revisions.remove(id);
+				return null;
+			}
+			if (!resp.isOk()) {
+				throw new DataAccessException("error getting checkpoint " + id + ": ", resp);
+			}
+
+			Map document = resp.getContentAsMap();
+
+			Object rev = document.get("_rev");
+			if (rev != null) {
+				revisions.put(id, rev.toString());
+			}
+
+			return document;
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	private boolean putDocument(String id, Object sequence) {
+		Map<String, Object> document = new HashMap<String, Object>();
+		document.put("seq", sequence);
+
+		String rev = revisions.get(id);
+		if (rev != null) {
+			document.put("_rev", rev);
+		}
+
+		Response resp = null;
+		try {
+			resp = database.getServer().put(getURI(id), database.getJsonConfig().getJsonGenerator().forValue(document));
+			if (resp.getCode() == 409) {
+				return false;
+			}
+			if (!resp.isOk()) {
+				throw new DataAccessException("error saving checkpoint " + id + ": ", resp);
+			}
+
+			Object newRev = resp.getContentAsMap().get("rev");
+			if (newRev != null) {
+				revisions.put(id, newRev.toString());
+			}
+
+			return true;
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	private String getURI(String id) {
+		try {
+			return "/" + database.getName() + "/_local/" + URLEncoder.encode(id, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+	}
+}
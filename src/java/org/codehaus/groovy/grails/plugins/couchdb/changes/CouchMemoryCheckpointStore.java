@@ -0,0 +1,39 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.changes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps checkpoints in memory; a restarted application starts from the current sequence.
+ *
+ * @author Cory Hacking
+ */
+public class CouchMemoryCheckpointStore implements CouchCheckpointStore {
+
+	private final Map<String, Object> checkpoints = new ConcurrentHashMap<String, Object>();
+
+	public Object getCheckpoint(String id) {
+		return checkpoints.get(id);
+	}
+
+	public void saveCheckpoint(String id, Object sequence) {
+		if (sequence != null) {
+			checkpoints.put(id, sequence);
+		}
+	}
+}
@@ -62,6 +62,8 @@ public class CouchDomainClass extends AbstractGrailsClass implements ExternalGra
 	private CouchDomainClassProperty version;
 	private CouchDomainClassProperty attachments;
 
+	private CouchPersistencePlan persistencePlan;
+
 	private String databaseId;
 	private String designName;
 	private String documentType;
@@ -149,6 +151,8 @@ public class CouchDomainClass extends AbstractGrailsClass implements ExternalGra
 		PropertyDescriptor[] descriptors = BeanUtils.getPropertyDescriptors(clazz);
 		evaluateClassProperties(descriptors);
 
+		persistencePlan = new CouchPersistencePlan(clazz, descriptors, identifier, version, attachments);
+
 		// process the constraints
 		try {
 			initializeConstraints();
@@ -264,6 +268,13 @@ public class CouchDomainClass extends AbstractGrailsClass implements ExternalGra
 		return this.attachments;
 	}
 
+	/**
+	 * @return the accessors used by save(), delete() and validation
+	 */
+	public CouchPersistencePlan getPersistencePlan() {
+		return persistencePlan;
+	}
+
 	public boolean getShouldFailOnError() {
 		return shouldFailOnError;
 	}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.domain;
+
+import org.springframework.validation.Errors;
+
+/**
+ * Implemented by the CouchEntityASTTransformation on every <code>@CouchEntity</code> class: a transient slot
+ * that holds the instance's validation errors, so that <code>getErrors()</code> doesn't have to keep them in
+ * the request (or thread local) attributes.  The methods aren't named like bean properties so that neither
+ * the domain class nor the JSON serialization sees them.
+ *
+ * @author Cory Hacking
+ */
+public interface CouchErrorsHolder {
+
+	Errors couchErrors();
+
+	void couchErrors(Errors errors);
+}
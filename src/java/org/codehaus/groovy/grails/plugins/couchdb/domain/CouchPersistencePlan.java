@@ -0,0 +1,253 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.domain;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty;
+import org.springframework.validation.Errors;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The accessors that <code>save()</code>, <code>delete()</code>, the bulk operations and validation use on
+ * every call, resolved once when the {@link CouchDomainClass} is built: the read and write methods of the id,
+ * version, attachments and timestamp (dateCreated / lastUpdated) properties, a factory for the timestamp
+ * type, and the {@link CouchErrorsHolder} errors slot.
+ * <p/>
+ * This replaces the artefact lookup, <code>metaClass.hasProperty(...)</code>, dynamic property access and
+ * reflective timestamp construction that used to be done on each save.
+ *
+ * @author Cory Hacking
+ */
+public class CouchPersistencePlan {
+
+	private static final Log log = LogFactory.getLog(CouchPersistencePlan.class);
+
+	private final Class<?> clazz;
+
+	private final Accessor id;
+	private final Accessor version;
+	private final Accessor attachments;
+
+	private final Accessor dateCreated;
+	private final Accessor lastUpdated;
+
+	private final boolean errorsHolder;
+
+	public CouchPersistencePlan(Class<?> clazz, PropertyDescriptor[] descriptors, GrailsDomainClassProperty identifier, GrailsDomainClassProperty version, GrailsDomainClassProperty attachments) {
+		this.clazz = clazz;
+
+		Map<String, PropertyDescriptor> byName = new HashMap<String, PropertyDescriptor>();
+		for (PropertyDescriptor descriptor : descriptors) {
+			byName.put(descriptor.getName(), descriptor);
+		}
+
+		this.id = createAccessor(byName, identifier, false);
+		this.version = createAccessor(byName, version, false);
+		this.attachments = createAccessor(byName, attachments, false);
+
+		this.dateCreated = createAccessor(byName.get(GrailsDomainClassProperty.DATE_CREATED), true);
+		this.lastUpdated = createAccessor(byName.get(GrailsDomainClassProperty.LAST_UPDATED), true);
+
+		this.errorsHolder = CouchErrorsHolder.class.isAssignableFrom(clazz);
+	}
+
+	public Class<?> getClazz() {
+		return clazz;
+	}
+
+	public String getId(Object domain) {
+		return (String) get(id, domain);
+	}
+
+	public void setId(Object domain, String value) {
+		set(id, domain, value);
+	}
+
+	public String getVersion(Object domain) {
+		return (String) get(version, domain);
+	}
+
+	public void setVersion(Object domain, String value) {
+		set(version, domain, value);
+	}
+
+	public boolean hasAttachments() {
+		return attachments != null;
+	}
+
+	@SuppressWarnings ({"unchecked"})
+	public Map<String, Object> getAttachments(Object domain) {
+		return (Map<String, Object>) get(attachments, domain);
+	}
+
+	public void setAttachments(Object domain, Map<String, Object> value) {
+		set(attachments, domain, value);
+	}
+
+	/**
+	 * @return true if the class has a dateCreated or lastUpdated property that can be set
+	 */
+	public boolean isTimestamped() {
+		return dateCreated != null || lastUpdated != null;
+	}
+
+	/**
+	 * Sets lastUpdated, and dateCreated if it's null and the document hasn't been saved yet (has no version).
+	 */
+	public void timestamp(Object domain, long time) {
+		if (dateCreated != null && get(dateCreated, domain) == null && getVersion(domain) == null) {
+			set(dateCreated, domain, dateCreated.factory.create(time));
+		}
+
+		if (lastUpdated != null) {
+			set(lastUpdated, domain, lastUpdated.factory.create(time));
+		}
+	}
+
+	/**
+	 * @return true if the errors are kept in the instance's {@link CouchErrorsHolder} slot
+	 */
+	public boolean hasErrorsSlot() {
+		return errorsHolder;
+	}
+
+	public Errors getErrors(Object domain) {
+		return ((CouchErrorsHolder) domain).couchErrors();
+	}
+
+	public void setErrors(Object domain, Errors errors) {
+		((CouchErrorsHolder) domain).couchErrors(errors);
+	}
+
+	private Accessor createAccessor(Map<String, PropertyDescriptor> descriptors, GrailsDomainClassProperty property, boolean timestamp) {
+		return (property != null) ? createAccessor(descriptors.get(property.getName()), timestamp) : null;
+	}
+
+	private Accessor createAccessor(PropertyDescriptor descriptor, boolean timestamp) {
+		if (descriptor == null || descriptor.getReadMethod() == null || descriptor.getWriteMethod() == null) {
+			return null;
+		}
+
+		TimestampFactory factory = null;
+		if (timestamp) {
+			factory = createTimestampFactory(descriptor.getPropertyType());
+			if (factory == null) {
+				log.warn("Property [" + descriptor.getName() + "] of class [" + clazz.getName() + "] isn't a date type; it won't be set automatically.");
+				return null;
+			}
+		}
+
+		return new Accessor(descriptor.getReadMethod(), descriptor.getWriteMethod(), factory);
+	}
+
+	private static TimestampFactory createTimestampFactory(Class<?> type) {
+		if (type == java.util.Date.class) {
+			return new TimestampFactory() {
+				public Object create(long time) {
+					return new java.util.Date(time);
+				}
+			};
+		}
+
+		if (type == java.sql.Timestamp.class) {
+			return new TimestampFactory() {
+				public Object create(long time) {
+					return new java.sql.Timestamp(time);
+				}
+			};
+		}
+
+		if (type == Long.class || type == long.class) {
+			return new TimestampFactory() {
+				public Object create(long time) {
+					return time;
+				}
+			};
+		}
+
+		// any other type that can be created from the time in milliseconds (e.g. java.sql.Date)
+		try {
+			final Constructor<?> constructor = type.getConstructor(long.class);
+			return new TimestampFactory() {
+				public Object create(long time) {
+					try {
+						return constructor.newInstance(time);
+					} catch (Exception e) {
+						throw new IllegalStateException("Couldn't create a [" + constructor.getDeclaringClass().getName() + "] timestamp.", e);
+					}
+				}
+			};
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Object get(Accessor accessor, Object domain) {
+		if (accessor == null) {
+			return null;
+		}
+
+		return invoke(accessor.getter, domain);
+	}
+
+	private static void set(Accessor accessor, Object domain, Object value) {
+		if (accessor != null) {
+			invoke(accessor.setter, domain, value);
+		}
+	}
+
+	private static Object invoke(Method method, Object domain, Object... args) {
+		try {
+			return method.invoke(domain, args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Error calling [" + method.getName() + "] on [" + domain.getClass().getName() + "].", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Error calling [" + method.getName() + "] on [" + domain.getClass().getName() + "].", e);
+		}
+	}
+
+	public String toString() {
+		return "CouchPersistencePlan[" + clazz.getName() + ", timestamped=" + isTimestamped() + ", errorsSlot=" + errorsHolder + "]";
+	}
+
+	private interface TimestampFactory {
+
+		Object create(long time);
+	}
+
+	private static class Accessor {
+
+		final Method getter;
+		final Method setter;
+		final TimestampFactory factory;
+
+		Accessor(Method getter, Method setter, TimestampFactory factory) {
+			this.getter = getter;
+			this.setter = setter;
+			this.factory = factory;
+		}
+	}
+}
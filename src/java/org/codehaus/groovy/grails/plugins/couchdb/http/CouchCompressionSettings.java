@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Transport compression settings read from the <code>compression</code> section of the
+ * <code>couchdb { }</code> block in DataSource.groovy (or of a specific db id), e.g.
+ * <pre>
+ * couchdb {
+ *     compression {
+ *         enabled = true
+ *         requests = true
+ *         minSize = 8192
+ *         level = 6
+ *     }
+ * }
+ * </pre>
+ * When enabled, requests for JSON ask for a gzip (or deflate) response and it's decompressed as it's read.
+ * With requests, JSON request bodies of at least minSize bytes are sent gzipped; if the server rejects
+ * them (415 Unsupported Media Type) the request is sent again uncompressed and the server's requests are
+ * no longer compressed.
+ *
+ * @author Cory Hacking
+ */
+public class CouchCompressionSettings {
+
+	public static final int DEFAULT_MIN_SIZE = 8192;
+
+	private boolean enabled = false;
+	private boolean requests = true;
+	private int minSize = DEFAULT_MIN_SIZE;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	public CouchCompressionSettings() {
+
+	}
+
+	/**
+	 * Creates a copy of the given settings, overridden by any values in the config map.
+	 *
+	 * @param parent the settings to inherit from (may be null)
+	 * @param config the <code>compression</code> config section (may be null or empty)
+	 */
+	public CouchCompressionSettings(CouchCompressionSettings parent, Map config) {
+		if (parent != null) {
+			enabled = parent.enabled;
+			requests = parent.requests;
+			minSize = parent.minSize;
+			level = parent.level;
+		}
+
+		if (config != null) {
+			enabled = getBoolean(config, "enabled", enabled);
+			requests = getBoolean(config, "requests", requests);
+			minSize = CouchPoolSettings.getInt(config, "minSize", minSize);
+			level = CouchPoolSettings.getInt(config, "level", level);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return true if request bodies of at least minSize bytes are compressed
+	 */
+	public boolean isRequests() {
+		return enabled && requests;
+	}
+
+	public void setRequests(boolean requests) {
+		this.requests = requests;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	static boolean getBoolean(Map config, String key, boolean defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		} else if (value instanceof String && !"".equals(value)) {
+			return Boolean.parseBoolean((String) value);
+		}
+
+		return defaultValue;
+	}
+
+	public String toString() {
+		return "CouchCompressionSettings[enabled=" + enabled + ", requests=" + requests + ", minSize=" + minSize + ", level=" + level + "]";
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds a single thread-safe connection pool per CouchDB host/port that is shared by every
+ * {@link CouchHttpServer} (and therefore every jcouchdb Database) that talks to that host.
+ * <p/>
+ * A daemon thread periodically evicts expired and idle connections from each pool.
+ *
+ * @author Cory Hacking
+ */
+public class CouchConnectionManager {
+
+	private static final Log log = LogFactory.getLog(CouchConnectionManager.class);
+
+	private final Map<String, PoolEntry> pools = new LinkedHashMap<String, PoolEntry>();
+
+	private Thread evictor;
+	private volatile boolean shutdown;
+
+	/**
+	 * Returns the shared connection manager for the given host and port, creating it with the
+	 * given settings if it doesn't already exist, so the first caller should pass the combined settings
+	 * of every database on the host (see {@link CouchPoolSettings#combine}).  The total maximum is raised
+	 * (but never lowered) for subsequent callers that ask for more connections than the pool was created
+	 * with.  The per route maximum can't be: httpclient fixes it when the route's pool is first used, so a
+	 * larger one is logged and ignored.
+	 */
+	public synchronized ClientConnectionManager getConnectionManager(String host, int port, boolean secure, CouchPoolSettings settings) {
+		if (shutdown) {
+			throw new IllegalStateException("The CouchDB connection manager has been shut down.");
+		}
+
+		String key = getKey(host, port, secure);
+
+		PoolEntry entry = pools.get(key);
+		if (entry == null) {
+			entry = new PoolEntry(host, port, secure, settings);
+			pools.put(key, entry);
+
+			log.info("Created CouchDB connection pool [" + key + "] with " + settings);
+
+			startEvictor();
+
+		} else {
+			boolean differs = settings.getMaxTotal() != entry.maxTotal || settings.getMaxPerRoute() != entry.maxPerRoute ||
+				settings.getIdleTimeout() != entry.idleTimeout;
+
+			// the pool reads the total maximum from the params as it allocates connections
+			if (settings.getMaxTotal() > entry.maxTotal) {
+				entry.maxTotal = settings.getMaxTotal();
+				ConnManagerParams.setMaxTotalConnections(entry.params, entry.maxTotal);
+			}
+			if (settings.getIdleTimeout() > 0 && (entry.idleTimeout <= 0 || settings.getIdleTimeout() < entry.idleTimeout)) {
+				entry.idleTimeout = settings.getIdleTimeout();
+			}
+
+			if (differs) {
+				log.warn("CouchDB connection pool [" + key + "] is shared by databases with different pool settings (" + settings +
+					"); using maxTotal=" + entry.maxTotal + ", maxPerRoute=" + entry.maxPerRoute + ", idleTimeout=" + entry.idleTimeout +
+					" (the per route maximum is fixed when the pool is created).");
+			}
+		}
+
+		return entry.manager;
+	}
+
+	/**
+	 * Returns the pool usage for each host/port, keyed by <code>scheme://host:port</code>.
+	 */
+	public synchronized Map<String, Map<String, Object>> getStatistics() {
+		Map<String, Map<String, Object>> statistics = new LinkedHashMap<String, Map<String, Object>>();
+
+		for (Map.Entry<String, PoolEntry> e : pools.entrySet()) {
+			PoolEntry entry = e.getValue();
+
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("connectionsInPool", entry.manager.getConnectionsInPool());
+			stats.put("connectionsForRoute", entry.manager.getConnectionsInPool(entry.route));
+			stats.put("maxTotal", entry.maxTotal);
+			stats.put("maxPerRoute", entry.maxPerRoute);
+			stats.put("idleTimeout", entry.idleTimeout);
+
+			statistics.put(e.getKey(), stats);
+		}
+
+		return statistics;
+	}
+
+	/**
+	 * Closes expired and idle connections in every pool.
+	 */
+	public synchronized void evictConnections() {
+		for (PoolEntry entry : pools.values()) {
+			entry.manager.closeExpiredConnections();
+			if (entry.idleTimeout > 0) {
+				entry.manager.closeIdleConnections(entry.idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	public void shutdown() {
+		List<PoolEntry> entries;
+		synchronized (this) {
+			shutdown = true;
+			entries = new ArrayList<PoolEntry>(pools.values());
+			pools.clear();
+		}
+
+		if (evictor != null) {
+			evictor.interrupt();
+		}
+
+		for (PoolEntry entry : entries) {
+			entry.manager.shutdown();
+		}
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	private void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+
+		evictor = new Thread("gorm-couchdb-connection-evictor") {
+			public void run() {
+				while (!shutdown) {
+					try {
+						Thread.sleep(getEvictionInterval());
+						evictConnections();
+
+						if (log.isDebugEnabled()) {
+							log.debug("CouchDB connection pools: " + getStatistics());
+						}
+					} catch (InterruptedException e) {
+						break;
+					} catch (Exception e) {
+						log.warn("Error evicting idle CouchDB connections.", e);
+					}
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	private synchronized long getEvictionInterval() {
+		long interval = 5000;
+		for (PoolEntry entry : pools.values()) {
+			if (entry.idleTimeout > 0 && entry.idleTimeout < interval) {
+				interval = entry.idleTimeout;
+			}
+		}
+
+		return Math.max(interval, 1000);
+	}
+
+	private static String getKey(String host, int port, boolean secure) {
+		return (secure ? "https://" : "http://") + host + ":" + port;
+	}
+
+	private static class PoolEntry {
+
+		final HttpRoute route;
+		final ConnPerRouteBean connPerRoute;
+		final ThreadSafeClientConnManager manager;
+		final HttpParams params;
+		final int maxPerRoute;
+		int maxTotal;
+		long idleTimeout;
+
+		PoolEntry(String host, int port, boolean secure, CouchPoolSettings settings) {
+			SchemeRegistry schemeRegistry = new SchemeRegistry();
+			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+			route = new HttpRoute(new HttpHost(host, port, secure ? "https" : "http"));
+
+			maxPerRoute = settings.getMaxPerRoute();
+			connPerRoute = new ConnPerRouteBean(maxPerRoute);
+			connPerRoute.setMaxForRoute(route, maxPerRoute);
+
+			maxTotal = settings.getMaxTotal();
+			idleTimeout = settings.getIdleTimeout();
+
+			params = new BasicHttpParams();
+			ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+
+			manager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		}
+	}
+}
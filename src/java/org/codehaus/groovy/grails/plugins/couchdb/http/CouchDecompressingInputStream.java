@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchHttpStats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses a gzip or deflate response body as it's read, so that large responses (e.g. views with
+ * <code>include_docs</code>) are still streamed.  The decompressor is only created by the first read,
+ * so an empty body that's never read doesn't fail.
+ * <p/>
+ * The compressed and decompressed bytes are recorded in the http stats, along with the time spent
+ * decompressing them (the time of each read less the time spent waiting for the compressed bytes).
+ *
+ * @author Cory Hacking
+ */
+public class CouchDecompressingInputStream extends InputStream {
+
+	private final SourceInputStream source;
+	private final boolean gzip;
+	private final CouchHttpStats stats;
+
+	private InputStream decompressed;
+
+	/**
+	 * @param encoding the response's Content-Encoding, "gzip" (or "x-gzip") or "deflate"
+	 * @param stats    the stats to record the decompression in (may be null)
+	 */
+	public CouchDecompressingInputStream(InputStream inputStream, String encoding, CouchHttpStats stats) {
+		this.source = new SourceInputStream(inputStream);
+		this.gzip = !"deflate".equalsIgnoreCase(encoding);
+		this.stats = stats;
+	}
+
+	/**
+	 * @return true if the content encoding can be decompressed
+	 */
+	public static boolean isSupported(String encoding) {
+		return "gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding) || "deflate".equalsIgnoreCase(encoding);
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return (n > 0) ? (b[0] & 0xff) : -1;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		long waited = source.nanos;
+		long compressed = source.bytes;
+
+		if (decompressed == null) {
+			decompressed = gzip ? new GZIPInputStream(source) : new InflaterInputStream(source);
+		}
+
+		int n = decompressed.read(b, off, len);
+
+		if (stats != null) {
+			long nanos = (System.nanoTime() - start) - (source.nanos - waited);
+			stats.recordDecompression(source.bytes - compressed, Math.max(n, 0), Math.max(nanos, 0));
+		}
+
+		return n;
+	}
+
+	public int available() throws IOException {
+		return (decompressed != null) ? decompressed.available() : 0;
+	}
+
+	public void close() throws IOException {
+		if (decompressed != null) {
+			decompressed.close();
+		} else {
+			source.close();
+		}
+	}
+
+	/**
+	 * Counts the compressed bytes and the time spent waiting for them.
+	 */
+	private static class SourceInputStream extends FilterInputStream {
+
+		long bytes;
+		long nanos;
+
+		SourceInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			nanos += System.nanoTime() - start;
+			if (b >= 0) {
+				bytes++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int n = super.read(b, off, len);
+			nanos += System.nanoTime() - start;
+			if (n > 0) {
+				bytes += n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request entity that streams a file through a small buffer, so the file is never read into memory.
+ * The file's length is known up front so the request isn't chunked.
+ *
+ * @author Cory Hacking
+ */
+public class CouchFileEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final File file;
+
+	public CouchFileEntity(File file, String contentType) {
+		if (file == null) {
+			throw new IllegalArgumentException("file can't be null");
+		}
+
+		this.file = file;
+		setContentType(contentType);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return file.length();
+	}
+
+	public InputStream getContent() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream can't be null");
+		}
+
+		FileInputStream is = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+
+			out.flush();
+		} finally {
+			is.close();
+		}
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+}
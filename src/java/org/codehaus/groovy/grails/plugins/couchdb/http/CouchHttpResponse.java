@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.jcouchdb.db.Response;
+
+import java.io.InputStream;
+
+/**
+ * A jcouchdb {@link Response} that keeps a reference to its request so that a partially read
+ * response can be aborted instead of being drained back into the connection pool.
+ *
+ * @author Cory Hacking
+ */
+public class CouchHttpResponse extends Response {
+
+	private final HttpRequestBase request;
+
+	public CouchHttpResponse(HttpRequestBase request, int code, InputStream inputStream, Header[] headers) {
+		super(code, inputStream, headers);
+		this.request = request;
+	}
+
+	/**
+	 * Closes the underlying connection without reading the rest of the response.  This is
+	 * much cheaper than {@link #destroy()} when a large response is abandoned part way through.
+	 */
+	public void abort() {
+		request.abort();
+	}
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchHttpStats;
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchMetrics;
+import org.jcouchdb.db.ReplicationInfo;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.db.Server;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.util.ExceptionWrapper;
+import org.svenson.JSON;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A jcouchdb {@link Server} that executes its requests through a shared, pooled
+ * {@link ClientConnectionManager} (see {@link CouchConnectionManager}) instead of
+ * creating its own connection state like {@link org.jcouchdb.db.ServerImpl} does.
+ * <p/>
+ * With transport compression (see {@link CouchCompressionSettings}) JSON responses are requested
+ * gzipped and decompressed as they're read, and large JSON request bodies are sent gzipped.
+ *
+ * @author Cory Hacking
+ */
+public class CouchHttpServer implements Server {
+
+	private static final Log log = LogFactory.getLog(CouchHttpServer.class);
+
+	protected static final String CHARSET = "UTF-8";
+	protected static final String JSON_CONTENT_TYPE = "application/json";
+
+	private static final byte[] EMPTY_CONTENT = new byte[0];
+
+	private final String serverURI;
+	private final DefaultHttpClient httpClient;
+
+	private volatile boolean shutdown;
+	private volatile CouchMetrics metrics;
+
+	private volatile CouchCompressionSettings compression = new CouchCompressionSettings();
+	private volatile boolean requestCompressionRejected;
+
+	public CouchHttpServer(String host, int port, boolean secure, ClientConnectionManager connectionManager, CouchPoolSettings settings) {
+		this.serverURI = (secure ? "https://" : "http://") + host + ":" + port;
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpClientParams.setRedirecting(params, false);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+
+		if (settings.getConnectTimeout() > 0) {
+			HttpConnectionParams.setConnectionTimeout(params, settings.getConnectTimeout());
+		}
+		if (settings.getSocketTimeout() > 0) {
+			HttpConnectionParams.setSoTimeout(params, settings.getSocketTimeout());
+		}
+
+		httpClient = new DefaultHttpClient(connectionManager, params);
+
+		final long keepAlive = settings.getKeepAlive();
+		if (keepAlive >= 0) {
+			httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+				private final ConnectionKeepAliveStrategy defaultStrategy = new DefaultConnectionKeepAliveStrategy();
+
+				public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+					long duration = defaultStrategy.getKeepAliveDuration(response, context);
+					return (duration > 0 && duration < keepAlive) ? duration : keepAlive;
+				}
+			});
+		}
+	}
+
+	public String getServerURI() {
+		return serverURI;
+	}
+
+	protected DefaultHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	public CouchMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Records the latency, status code and bytes sent / received of each request (per database)
+	 * while the metrics are enabled.
+	 */
+	public void setMetrics(CouchMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public CouchCompressionSettings getCompression() {
+		return compression;
+	}
+
+	public void setCompression(CouchCompressionSettings compression) {
+		this.compression = (compression != null) ? compression : new CouchCompressionSettings();
+		this.requestCompressionRejected = false;
+	}
+
+	/**
+	 * @return true if the server rejected a compressed request body, so that they're no longer sent
+	 */
+	public boolean isRequestCompressionRejected() {
+		return requestCompressionRejected;
+	}
+
+	/**
+	 * Executes the request and wraps the http response in a jcouchdb {@link Response}.  The
+	 * connection is returned to the pool when the response is destroyed (or fully read).
+	 */
+	protected Response execute(HttpRequestBase request) {
+		if (shutdown) {
+			throw new CouchDBException("Server [" + serverURI + "] has been shut down.");
+		}
+
+		CouchMetrics metrics = this.metrics;
+		CouchHttpStats stats = (metrics != null && metrics.isEnabled()) ? metrics.getHttpStats(getDatabaseName(request)) : null;
+		long start = (stats != null) ? System.nanoTime() : 0;
+
+		if (compression.isEnabled() && acceptsCompressedResponse(request)) {
+			request.setHeader("Accept-Encoding", "gzip, deflate");
+		}
+
+		try {
+			HttpResponse response = httpClient.execute(request);
+
+			int code = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			InputStream is = (entity != null) ? entity.getContent() : new ByteArrayInputStream(EMPTY_CONTENT);
+			Header[] headers = response.getAllHeaders();
+
+			if (stats != null) {
+				stats.record(code, getContentLength(request), System.nanoTime() - start);
+				is = stats.countReceived(is);
+			}
+
+			// the headers describe the decompressed content from here on
+			Header encoding = (entity != null) ? entity.getContentEncoding() : null;
+			if (encoding != null && CouchDecompressingInputStream.isSupported(encoding.getValue())) {
+				if (stats != null) {
+					stats.recordCompressedResponse();
+				}
+
+				is = new CouchDecompressingInputStream(is, encoding.getValue(), stats);
+				headers = removeHeaders(headers, "Content-Encoding", "Content-Length");
+			}
+
+			return new CouchHttpResponse(request, code, is, headers);
+
+		} catch (IOException e) {
+			if (stats != null) {
+				stats.record(-1, getContentLength(request), System.nanoTime() - start);
+			}
+
+			request.abort();
+			throw ExceptionWrapper.wrap(e);
+		}
+	}
+
+	/**
+	 * Sends the JSON body, gzipped if request compression is enabled and it's at least minSize bytes.  If the
+	 * server doesn't accept it (415 Unsupported Media Type) it's sent again uncompressed, and no further
+	 * request bodies are compressed.
+	 */
+	protected Response executeJson(HttpEntityEnclosingRequestBase request, String body) {
+		CouchCompressionSettings compression = this.compression;
+		if (!compression.isRequests() || requestCompressionRejected) {
+			request.setEntity(createJsonEntity(body));
+			return execute(request);
+		}
+
+		byte[] content;
+		try {
+			content = body.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		if (content.length < compression.getMinSize()) {
+			request.setEntity(createJsonEntity(body));
+			return execute(request);
+		}
+
+		long start = System.nanoTime();
+		byte[] compressed = gzip(content, compression.getLevel());
+		long nanos = System.nanoTime() - start;
+
+		CouchMetrics metrics = this.metrics;
+		if (metrics != null && metrics.isEnabled()) {
+			metrics.getHttpStats(getDatabaseName(request)).recordCompression(content.length, compressed.length, nanos);
+		}
+
+		ByteArrayEntity entity = new ByteArrayEntity(compressed);
+		entity.setContentType(JSON_CONTENT_TYPE);
+		entity.setContentEncoding("gzip");
+		request.setEntity(entity);
+
+		Response resp = execute(request);
+		if (resp.getCode() != 415) {
+			return resp;
+		}
+
+		resp.destroy();
+		requestCompressionRejected = true;
+		log.warn("Server [" + serverURI + "] doesn't accept compressed requests; they won't be compressed any more.");
+
+		HttpEntityEnclosingRequestBase retry = (request instanceof HttpPut) ? new HttpPut(request.getURI()) : new HttpPost(request.getURI());
+		retry.setEntity(createJsonEntity(body));
+
+		return execute(retry);
+	}
+
+	private static byte[] gzip(byte[] content, final int level) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(out) {
+				{
+					def.setLevel(level);
+				}
+			};
+			gzip.write(content);
+			gzip.close();
+		} catch (IOException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Only JSON is requested compressed: not HEAD requests (whose headers would describe the compressed
+	 * content), attachments (often compressed already, and read by their length) or the _changes feed
+	 * (whose continuous rows would be held back by the decompressor).
+	 */
+	private static boolean acceptsCompressedResponse(HttpRequestBase request) {
+		if (request instanceof HttpHead) {
+			return false;
+		}
+
+		String path = request.getURI().getRawPath();
+		if (path == null) {
+			return true;
+		}
+
+		String[] segments = (path.startsWith("/") ? path.substring(1) : path).split("/");
+		if (segments.length >= 2 && "_changes".equals(segments[1])) {
+			return false;
+		}
+
+		// _design/name and _local/name are a single document id
+		int attachment = (segments.length >= 2 && ("_design".equals(segments[1]) || "_local".equals(segments[1]))) ? 3 : 2;
+
+		return segments.length <= attachment || segments[attachment].startsWith("_");
+	}
+
+	private static Header[] removeHeaders(Header[] headers, String... names) {
+		List<Header> result = new ArrayList<Header>(headers.length);
+		for (Header header : headers) {
+			boolean removed = false;
+			for (String name : names) {
+				if (name.equalsIgnoreCase(header.getName())) {
+					removed = true;
+					break;
+				}
+			}
+
+			if (!removed) {
+				result.add(header);
+			}
+		}
+
+		return result.toArray(new Header[result.size()]);
+	}
+
+	/**
+	 * @return the first segment of the request path, or {@link CouchMetrics#SERVER} for the server wide
+	 *         resources (e.g. <code>/_uuids</code>)
+	 */
+	private static String getDatabaseName(HttpRequestBase request) {
+		String path = request.getURI().getRawPath();
+		if (path == null) {
+			return CouchMetrics.SERVER;
+		}
+
+		int start = path.startsWith("/") ? 1 : 0;
+		int end = path.indexOf('/', start);
+		String name = (end < 0) ? path.substring(start) : path.substring(start, end);
+
+		return (name.length() == 0 || name.startsWith("_")) ? CouchMetrics.SERVER : name;
+	}
+
+	private static long getContentLength(HttpRequestBase request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			return (entity != null) ? entity.getContentLength() : 0;
+		}
+
+		return 0;
+	}
+
+	public List<String> listDatabases() {
+		Response resp = null;
+		try {
+			resp = get("/_all_dbs");
+			if (!resp.isOk()) {
+				throw new CouchDBException("Error listing databases: " + resp);
+			}
+
+			return resp.getContentAsList();
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	public boolean createDatabase(String name) {
+		Response resp = null;
+		try {
+			resp = put("/" + name + "/");
+			if (resp.isOk()) {
+				return true;
+			}
+
+			// 412 (or 500 on older couchdb versions) means the database already exists
+			if (resp.getCode() == 412 || resp.getCode() == 500) {
+				return false;
+			}
+
+			throw new CouchDBException("Error creating database: " + resp);
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	public void deleteDatabase(String name) {
+		Response resp = null;
+		try {
+			resp = delete("/" + name + "/");
+			if (!resp.isOk()) {
+				throw new CouchDBException("Cannot delete database " + name + ": " + resp);
+			}
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	public Response get(String uri) {
+		if (log.isDebugEnabled()) {
+			log.debug("GET " + uri);
+		}
+
+		return execute(new HttpGet(serverURI + uri));
+	}
+
+	/**
+	 * Executes a GET with additional request headers, e.g. <code>If-None-Match</code>.
+	 */
+	public Response get(String uri, Map<String, String> headers) {
+		if (log.isDebugEnabled()) {
+			log.debug("GET " + uri + ", headers = " + headers);
+		}
+
+		HttpGet get = new HttpGet(serverURI + uri);
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				get.setHeader(header.getKey(), header.getValue());
+			}
+		}
+
+		return execute(get);
+	}
+
+	/**
+	 * Executes a HEAD request, e.g. to read an attachment's length and type without its content.
+	 */
+	public Response head(String uri) {
+		if (log.isDebugEnabled()) {
+			log.debug("HEAD " + uri);
+		}
+
+		return execute(new HttpHead(serverURI + uri));
+	}
+
+	public Response put(String uri) {
+		return put(uri, (String) null);
+	}
+
+	public Response put(String uri, String body) {
+		if (log.isDebugEnabled()) {
+			log.debug("PUT " + uri + ", body = " + body);
+		}
+
+		HttpPut put = new HttpPut(serverURI + uri);
+		if (body != null) {
+			return executeJson(put, body);
+		}
+
+		return execute(put);
+	}
+
+	public Response put(String uri, byte[] body, String contentType) {
+		if (log.isDebugEnabled()) {
+			log.debug("PUT " + uri + ", body = " + body);
+		}
+
+		HttpPut put = new HttpPut(serverURI + uri);
+		if (body != null) {
+			ByteArrayEntity entity = new ByteArrayEntity(body);
+			entity.setContentType(contentType);
+			put.setEntity(entity);
+		}
+
+		return execute(put);
+	}
+
+	public Response put(String uri, InputStream inputStream, String contentType, long length) throws CouchDBException {
+		if (inputStream == null) {
+			throw new IllegalArgumentException("inputStream can't be null");
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("PUT " + uri + ", inputStream = " + inputStream);
+		}
+
+		// a negative length sends the stream with chunked transfer encoding
+		HttpPut put = new HttpPut(serverURI + uri);
+		InputStreamEntity entity = new InputStreamEntity(inputStream, (length < 0) ? -1 : length);
+		entity.setContentType(contentType);
+		entity.setChunked(length < 0);
+		put.setEntity(entity);
+
+		return execute(put);
+	}
+
+	/**
+	 * Streams the file without reading it into memory (see {@link CouchFileEntity}).
+	 */
+	public Response put(String uri, File file, String contentType) {
+		if (log.isDebugEnabled()) {
+			log.debug("PUT " + uri + ", file = " + file);
+		}
+
+		HttpPut put = new HttpPut(serverURI + uri);
+		put.setEntity(new CouchFileEntity(file, contentType));
+
+		return execute(put);
+	}
+
+	public Response post(String uri, String body) {
+		if (log.isDebugEnabled()) {
+			log.debug("POST " + uri + ", body = " + body);
+		}
+
+		HttpPost post = new HttpPost(serverURI + uri);
+
+		return executeJson(post, body);
+	}
+
+	public Response delete(String uri) {
+		if (log.isDebugEnabled()) {
+			log.debug("DELETE " + uri);
+		}
+
+		return execute(new HttpDelete(serverURI + uri));
+	}
+
+	public void setCredentials(AuthScope authScope, Credentials credentials) {
+		httpClient.getCredentialsProvider().setCredentials(authScope, credentials);
+	}
+
+	/**
+	 * Marks this server as shut down.  The shared connection pool is left open for the other
+	 * servers and is closed by {@link CouchConnectionManager#shutdown()}.
+	 */
+	public void shutDown() {
+		shutdown = true;
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@SuppressWarnings ({"unchecked"})
+	public Map<String, Map<String, Object>> getStats(String filter) {
+		Response resp = null;
+		try {
+			resp = get("/_stats" + (filter != null ? filter : ""));
+			if (!resp.isOk()) {
+				throw new CouchDBException("Error getting stats: " + resp);
+			}
+
+			return resp.getContentAsMap();
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	public ReplicationInfo replicate(String source, String target, boolean continuous) {
+		Map<String, Object> body = new HashMap<String, Object>();
+		body.put("source", source);
+		body.put("target", target);
+		if (continuous) {
+			body.put("continuous", Boolean.TRUE);
+		}
+
+		Response resp = null;
+		try {
+			resp = post("/_replicate", JSON.defaultJSON().forValue(body));
+			if (!resp.isOk()) {
+				throw new CouchDBException("Error replicating database: " + resp);
+			}
+
+			return resp.getContentAsBean(ReplicationInfo.class);
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	@SuppressWarnings ({"unchecked"})
+	public List<String> getUUIDs(int count) {
+		Response resp = null;
+		try {
+			resp = get("/_uuids?count=" + count);
+			if (!resp.isOk()) {
+				throw new CouchDBException("Error getting uuids: " + resp);
+			}
+
+			return (List<String>) resp.getContentAsMap().get("uuids");
+		} finally {
+			if (resp != null) {
+				resp.destroy();
+			}
+		}
+	}
+
+	protected HttpEntity createJsonEntity(String body) {
+		try {
+			StringEntity entity = new StringEntity(body, CHARSET);
+			entity.setContentType(JSON_CONTENT_TYPE);
+			return entity;
+		} catch (UnsupportedEncodingException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+	}
+}
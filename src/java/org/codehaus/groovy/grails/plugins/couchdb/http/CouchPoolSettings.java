@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.http;
+
+import java.util.Map;
+
+/**
+ * Connection pool and timeout settings read from the <code>pool</code> section of the
+ * <code>couchdb { }</code> block in DataSource.groovy, e.g.
+ * <pre>
+ * couchdb {
+ *     pool {
+ *         maxTotal = 50
+ *         maxPerRoute = 20
+ *         keepAlive = 30000
+ *         idleTimeout = 60000
+ *         connectTimeout = 5000
+ *         socketTimeout = 30000
+ *     }
+ * }
+ * </pre>
+ * All times are in milliseconds.  Databases on the same host and port share one pool, which uses the
+ * largest maximums (and the shortest idle timeout) of their settings (see {@link #combine}).
+ *
+ * @author Cory Hacking
+ */
+public class CouchPoolSettings {
+
+	public static final int DEFAULT_MAX_TOTAL = 25;
+	public static final int DEFAULT_MAX_PER_ROUTE = 10;
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private int maxTotal = DEFAULT_MAX_TOTAL;
+	private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+
+	// -1 means honor the server's Keep-Alive header (or keep the connection indefinitely)
+	private long keepAlive = -1;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	// 0 means no timeout
+	private int connectTimeout = 0;
+	private int socketTimeout = 0;
+
+	public CouchPoolSettings() {
+
+	}
+
+	/**
+	 * Creates a copy of the given settings, overridden by any values in the config map.
+	 *
+	 * @param parent the settings to inherit from (may be null)
+	 * @param config the <code>pool</code> config section (may be null or empty)
+	 */
+	public CouchPoolSettings(CouchPoolSettings parent, Map config) {
+		if (parent != null) {
+			maxTotal = parent.maxTotal;
+			maxPerRoute = parent.maxPerRoute;
+			keepAlive = parent.keepAlive;
+			idleTimeout = parent.idleTimeout;
+			connectTimeout = parent.connectTimeout;
+			socketTimeout = parent.socketTimeout;
+		}
+
+		if (config != null) {
+			maxTotal = getInt(config, "maxTotal", maxTotal);
+			maxPerRoute = getInt(config, "maxPerRoute", maxPerRoute);
+			keepAlive = getLong(config, "keepAlive", keepAlive);
+			idleTimeout = getLong(config, "idleTimeout", idleTimeout);
+			connectTimeout = getInt(config, "connectTimeout", connectTimeout);
+			socketTimeout = getInt(config, "socketTimeout", socketTimeout);
+		}
+	}
+
+	/**
+	 * Returns the settings of a pool that's shared with the given settings: the larger maximums and the
+	 * shorter idle timeout; the other settings are these.
+	 */
+	public CouchPoolSettings combine(CouchPoolSettings other) {
+		CouchPoolSettings combined = new CouchPoolSettings(this, null);
+
+		combined.maxTotal = Math.max(maxTotal, other.maxTotal);
+		combined.maxPerRoute = Math.max(maxPerRoute, other.maxPerRoute);
+		if (other.idleTimeout > 0 && (idleTimeout <= 0 || other.idleTimeout < idleTimeout)) {
+			combined.idleTimeout = other.idleTimeout;
+		}
+
+		return combined;
+	}
+
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	public void setMaxPerRoute(int maxPerRoute) {
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	static int getInt(Map config, String key, int defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		} else if (value instanceof String && !"".equals(value)) {
+			return Integer.parseInt((String) value);
+		}
+
+		return defaultValue;
+	}
+
+	static long getLong(Map config, String key, long defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof String && !"".equals(value)) {
+			return Long.parseLong((String) value);
+		}
+
+		return defaultValue;
+	}
+
+	public String toString() {
+		return "CouchPoolSettings[maxTotal=" + maxTotal + ", maxPerRoute=" + maxPerRoute + ", keepAlive=" + keepAlive +
+			", idleTimeout=" + idleTimeout + ", connectTimeout=" + connectTimeout + ", socketTimeout=" + socketTimeout + "]";
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.json;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.grails.plugins.couchdb.metrics.CouchMetrics;
+import org.jcouchdb.util.ExceptionWrapper;
+import org.svenson.JSON;
+import org.svenson.JSONCharacterSink;
+import org.svenson.JSONParser;
+import org.svenson.SinkAwareJSONifier;
+import org.svenson.StringBuilderSink;
+import org.svenson.converter.TypeConverter;
+import org.svenson.converter.TypeConverterRepository;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads and writes the <code>@CouchEntity</code> classes that have generated JSON methods (see
+ * {@link CouchJSONEntity}) without svenson's bean introspection.  One codec is shared by all of the
+ * domain classes of a database; it's registered with the database's JSON generator as the JSONifier
+ * of each of those classes, so <code>toJSON()</code>, <code>save()</code> and the bulk operations use
+ * the generated code, and it's used by <code>get()</code> and the document queries to turn the parsed
+ * documents into domain instances.
+ * <p/>
+ * Classes without generated methods (or whose generated methods don't agree with their bean
+ * properties) aren't registered and are still handled by svenson.
+ *
+ * @author Cory Hacking
+ */
+public class CouchEntityCodec implements SinkAwareJSONifier {
+
+	private static final Log log = LogFactory.getLog(CouchEntityCodec.class);
+
+	private final JSON generator;
+	private final JSONParser parser;
+	private final TypeConverterRepository typeConverterRepository;
+
+	private final Map<Class, TypeConverter> typeConversions = new ConcurrentHashMap<Class, TypeConverter>();
+	private final Map<Object, TypeConverter> converters = new ConcurrentHashMap<Object, TypeConverter>();
+	private final Map<Class, Entity> entities = new ConcurrentHashMap<Class, Entity>();
+
+	private CouchMetrics metrics;
+	private String databaseName;
+
+	public CouchEntityCodec(JSON generator, JSONParser parser, TypeConverterRepository typeConverterRepository) {
+		this.generator = generator;
+		this.parser = parser;
+		this.typeConverterRepository = typeConverterRepository;
+	}
+
+	public JSON getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * @return the plain parser of the database, which is used to parse documents into maps
+	 */
+	public JSONParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Records the time spent writing and reading each domain class (as the <code>writeJSON</code> and
+	 * <code>readJSON</code> operations) while the metrics are enabled.
+	 */
+	public void setMetrics(CouchMetrics metrics, String databaseName) {
+		this.metrics = metrics;
+		this.databaseName = databaseName;
+	}
+
+	/**
+	 * Registers the converter used for all values of the given class (as done for the generator and parser).
+	 */
+	public void registerTypeConversion(Class type, TypeConverter converter) {
+		typeConversions.put(type, converter);
+	}
+
+	/**
+	 * Registers a domain class, returning false if it doesn't have (usable) generated JSON methods.
+	 *
+	 * @param clazz          the domain class
+	 * @param typeFieldName  the document type field (may be null)
+	 * @param subClassTypes  the document types of the domain subclasses (may be null)
+	 */
+	public boolean register(Class clazz, String typeFieldName, Map<String, Class> subClassTypes) {
+		if (!CouchJSONEntity.class.isAssignableFrom(clazz)) {
+			return false;
+		}
+
+		Constructor constructor;
+		CouchJSONEntity instance;
+		try {
+			constructor = clazz.getConstructor();
+			instance = (CouchJSONEntity) constructor.newInstance();
+		} catch (Exception e) {
+			log.debug("Not using the generated JSON methods of [" + clazz.getName() + "]: " + e.getMessage());
+			return false;
+		}
+
+		// the generated methods only know about the properties that were there at compile time
+		Set<String> expected = getPropertyNames(clazz);
+		Set<String> generated = new TreeSet<String>(instance.couchJSONPropertyNames());
+		if (!expected.equals(generated)) {
+			log.warn("Not using the generated JSON methods of [" + clazz.getName() + "]; its properties " + expected + " don't match the generated properties " + generated + ".");
+			return false;
+		}
+
+		entities.put(clazz, new Entity(constructor, typeFieldName, subClassTypes));
+		generator.registerJSONifier(clazz, this);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Using the generated JSON methods of [" + clazz.getName() + "].");
+		}
+
+		return true;
+	}
+
+	public boolean isRegistered(Class clazz) {
+		return entities.containsKey(clazz);
+	}
+
+	public String toJSON(Object o) {
+		StringBuilderSink sink = new StringBuilderSink();
+		writeToSink(sink, o);
+		return sink.getContent();
+	}
+
+	public void writeToSink(JSONCharacterSink sink, Object o) {
+		long start = (metrics != null && metrics.isEnabled()) ? System.nanoTime() : 0;
+
+		sink.append('{');
+		((CouchJSONEntity) o).writeCouchJSON(new CouchJSONWriter(this, sink));
+		sink.append('}');
+
+		if (start != 0) {
+			metrics.record(databaseName, o.getClass().getName(), "writeJSON", null, System.nanoTime() - start, 1, false);
+		}
+	}
+
+	/**
+	 * Creates a domain instance from a parsed document.  The document's type field selects the domain
+	 * subclass (if any); classes that aren't registered are parsed by svenson.
+	 */
+	@SuppressWarnings ({"unchecked"})
+	public <T> T read(Class<T> clazz, Map json) {
+		if (json == null) {
+			return null;
+		}
+
+		Class type = clazz;
+
+		Entity entity = entities.get(clazz);
+		if (entity != null && entity.typeFieldName != null && entity.subClassTypes != null) {
+			Class subClass = entity.subClassTypes.get(json.get(entity.typeFieldName));
+			if (subClass != null) {
+				type = subClass;
+				entity = entities.get(subClass);
+			}
+		}
+
+		if (entity == null) {
+			return (T) parser.parse(type, generator.forValue(json));
+		}
+
+		long start = (metrics != null && metrics.isEnabled()) ? System.nanoTime() : 0;
+
+		CouchJSONEntity instance;
+		try {
+			instance = (CouchJSONEntity) entity.constructor.newInstance();
+		} catch (Exception e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		instance.readCouchJSON(json, this);
+
+		if (start != 0) {
+			metrics.record(databaseName, type.getName(), "readJSON", null, System.nanoTime() - start, 1, false);
+		}
+
+		return (T) instance;
+	}
+
+	/**
+	 * Converts a parsed value to the type of the property it's read into; used by the generated
+	 * <code>readCouchJSON</code> methods.
+	 *
+	 * @param value         the parsed value
+	 * @param type          the property type
+	 * @param typeHint      the <code>@JSONTypeHint</code> of the property (may be null)
+	 * @param converterName the name of the <code>@JSONConverter</code> of the property (may be null)
+	 * @param converterType the type of the <code>@JSONConverter</code> of the property (null if none)
+	 */
+	public Object read(Object value, Class type, Class typeHint, String converterName, Class converterType) {
+		if (converterType != null) {
+			return getConverter(converterName, converterType).fromJSON(value);
+		}
+
+		if (value == null) {
+			return null;
+		}
+
+		TypeConverter converter = typeConversions.get(type);
+		if (converter != null) {
+			return converter.fromJSON(value);
+		}
+
+		return convert(value, type, typeHint);
+	}
+
+	@SuppressWarnings ({"unchecked"})
+	private Object convert(Object value, Class type, Class typeHint) {
+		if (value == null) {
+			return null;
+		}
+
+		if (type.isPrimitive()) {
+			type = getWrapperType(type);
+		}
+
+		if (typeHint == Object.class) {
+			typeHint = null;
+		}
+
+		if (value instanceof Map) {
+			if (type == Object.class || Map.class.isAssignableFrom(type)) {
+				if (typeHint == null || Map.class.isAssignableFrom(typeHint)) {
+					return value;
+				}
+
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+				for (Object o : ((Map) value).entrySet()) {
+					Map.Entry entry = (Map.Entry) o;
+					map.put(entry.getKey(), convert(entry.getValue(), typeHint, null));
+				}
+				return map;
+			}
+
+			if (entities.containsKey(type)) {
+				return read(type, (Map) value);
+			}
+
+			return parser.parse(type, generator.forValue(value));
+		}
+
+		if (value instanceof Collection && !type.isArray()) {
+			if (typeHint == null && type.isInstance(value)) {
+				return value;
+			}
+
+			Collection<Object> collection = Set.class.isAssignableFrom(type) ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+			for (Object o : (Collection) value) {
+				collection.add((typeHint != null) ? convert(o, typeHint, null) : o);
+			}
+			return collection;
+		}
+
+		if (type.isInstance(value)) {
+			return value;
+		}
+
+		TypeConverter converter = typeConversions.get(type);
+		if (converter != null) {
+			return converter.fromJSON(value);
+		}
+
+		if (value instanceof Number) {
+			Number number = (Number) value;
+			if (type == Integer.class) {
+				return number.intValue();
+			} else if (type == Long.class) {
+				return number.longValue();
+			} else if (type == Double.class) {
+				return number.doubleValue();
+			} else if (type == Float.class) {
+				return number.floatValue();
+			} else if (type == Short.class) {
+				return number.shortValue();
+			} else if (type == Byte.class) {
+				return number.byteValue();
+			} else if (type == BigDecimal.class) {
+				return new BigDecimal(number.toString());
+			} else if (type == BigInteger.class) {
+				return new BigDecimal(number.toString()).toBigInteger();
+			}
+		}
+
+		if (type.isEnum()) {
+			return Enum.valueOf(type, value.toString());
+		}
+
+		if (type == String.class) {
+			return value.toString();
+		}
+
+		if (type.isArray() || !(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+			return parser.parse(type, generator.forValue(value));
+		}
+
+		return JsonConverterUtils.fromJSON(type, value);
+	}
+
+	void writeValue(JSONCharacterSink sink, Object value) {
+		if (value == null) {
+			sink.append("null");
+		} else if (value instanceof String) {
+			generator.quote(sink, (String) value);
+		} else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+			sink.append(value);
+		} else if (value instanceof Enum) {
+			generator.quote(sink, ((Enum) value).name());
+		} else {
+			TypeConverter converter = typeConversions.get(value.getClass());
+			if (converter != null) {
+				writeValue(sink, converter.toJSON(value));
+			} else {
+				generator.dumpObject(sink, value);
+			}
+		}
+	}
+
+	void quote(JSONCharacterSink sink, String value) {
+		generator.quote(sink, value);
+	}
+
+	/**
+	 * Returns the converter of a <code>@JSONConverter</code> annotation (by name if there is one).
+	 */
+	TypeConverter getConverter(String name, Class type) {
+		Object key = (name != null && name.length() > 0) ? name : type;
+
+		TypeConverter converter = converters.get(key);
+		if (converter == null) {
+			if (typeConverterRepository == null) {
+				throw new IllegalStateException("No type converter repository to look up the converter [" + key + "] in.");
+			}
+
+			converter = (key instanceof String) ? typeConverterRepository.getConverterById(name) : (TypeConverter) typeConverterRepository.getConverterByType(type);
+			if (converter == null) {
+				throw new IllegalStateException("Unknown type converter [" + key + "].");
+			}
+
+			converters.put(key, converter);
+		}
+
+		return converter;
+	}
+
+	/**
+	 * Returns the names of the properties that svenson would write for the given class.
+	 */
+	private Set<String> getPropertyNames(Class clazz) {
+		Set<String> names = new TreeSet<String>();
+		Collection<String> ignored = generator.getIgnoredProperties();
+
+		try {
+			for (PropertyDescriptor descriptor : Introspector.getBeanInfo(clazz).getPropertyDescriptors()) {
+				String name = descriptor.getName();
+				if (descriptor.getReadMethod() != null && !"class".equals(name) && (ignored == null || !ignored.contains(name))) {
+					names.add(name);
+				}
+			}
+		} catch (IntrospectionException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		return names;
+	}
+
+	private static Class getWrapperType(Class type) {
+		if (type == Integer.TYPE) {
+			return Integer.class;
+		} else if (type == Long.TYPE) {
+			return Long.class;
+		} else if (type == Double.TYPE) {
+			return Double.class;
+		} else if (type == Float.TYPE) {
+			return Float.class;
+		} else if (type == Boolean.TYPE) {
+			return Boolean.class;
+		} else if (type == Short.TYPE) {
+			return Short.class;
+		} else if (type == Byte.TYPE) {
+			return Byte.class;
+		} else if (type == Character.TYPE) {
+			return Character.class;
+		}
+
+		return type;
+	}
+
+	private static class Entity {
+
+		final Constructor constructor;
+		final String typeFieldName;
+		final Map<String, Class> subClassTypes;
+
+		Entity(Constructor constructor, String typeFieldName, Map<String, Class> subClassTypes) {
+			this.constructor = constructor;
+			this.typeFieldName = typeFieldName;
+			this.subClassTypes = (subClassTypes != null && !subClassTypes.isEmpty()) ? subClassTypes : null;
+		}
+	}
+}
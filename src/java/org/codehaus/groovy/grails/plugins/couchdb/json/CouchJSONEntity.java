@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.json;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implemented by the <code>@CouchEntity</code> classes that had their JSON read and write methods
+ * generated at compile time (see {@link org.codehaus.groovy.grails.plugins.couchdb.ast.CouchEntityJSONASTTransformation}).
+ *
+ * @author Cory Hacking
+ */
+public interface CouchJSONEntity {
+
+	/**
+	 * Writes the members of this entity (without the enclosing braces).
+	 */
+	void writeCouchJSON(CouchJSONWriter writer);
+
+	/**
+	 * Sets the properties of this entity from a parsed document.
+	 */
+	void readCouchJSON(Map json, CouchEntityCodec codec);
+
+	/**
+	 * @return the names of the bean properties that the generated methods know about, in order
+	 */
+	List<String> couchJSONPropertyNames();
+}
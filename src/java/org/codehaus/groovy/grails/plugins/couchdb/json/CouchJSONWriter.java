@@ -0,0 +1,62 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.json;
+
+import org.svenson.JSONCharacterSink;
+
+/**
+ * Writes the members of a single JSON object for the generated <code>writeCouchJSON</code> methods.
+ *
+ * @author Cory Hacking
+ */
+public class CouchJSONWriter {
+
+	private final CouchEntityCodec codec;
+	private final JSONCharacterSink sink;
+
+	private boolean first = true;
+
+	public CouchJSONWriter(CouchEntityCodec codec, JSONCharacterSink sink) {
+		this.codec = codec;
+		this.sink = sink;
+	}
+
+	public void property(String name, Object value, boolean ignoreIfNull) {
+		if (value == null && ignoreIfNull) {
+			return;
+		}
+
+		if (!first) {
+			sink.append(',');
+		}
+		first = false;
+
+		codec.quote(sink, name);
+		sink.append(':');
+		codec.writeValue(sink, value);
+	}
+
+	/**
+	 * Writes a property that has a <code>@JSONConverter</code>.
+	 */
+	public void property(String name, Object value, boolean ignoreIfNull, String converterName, Class converterType) {
+		if (value == null && ignoreIfNull) {
+			return;
+		}
+
+		property(name, codec.getConverter(converterName, converterType).toJSON(value), false);
+	}
+}
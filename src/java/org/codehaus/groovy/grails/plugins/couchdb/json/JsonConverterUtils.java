@@ -15,8 +15,6 @@
  */
 package org.codehaus.groovy.grails.plugins.couchdb.json;
 
-import org.apache.commons.lang.time.DateFormatUtils;
-
 import net.sf.ezmorph.MorphUtils;
 import net.sf.ezmorph.MorpherRegistry;
 import net.sf.ezmorph.object.DateMorpher;
@@ -33,12 +31,34 @@ public class JsonConverterUtils {
     private static final MorpherRegistry morpher = new MorpherRegistry();
     private static final DateMorpher dm = new DateMorpher(new String[]{DATE_PATTERN, "yyyy/MM/dd HH:mm:ss.S Z", "yyyy/MM/dd HH:mm:ssZ", "yyyy/MM/dd HH:mm:ss.SZ", "yyyy/MM/dd HH:mm:ss.S z", "yyyy/MM/dd HH:mm:ss z", "EEE, dd MMM yyyy HH:mm:ssZ", "EEE, dd MMM yyyy HH:mm:ss Z", "EEE, dd MMM yyyy HH:mm:ss z"}, true);
 
+    private static volatile JsonDateCodec dateCodec = new JsonDateCodec(JsonDateCodec.DEFAULT);
+
     static {
         MorphUtils.registerStandardMorphers(morpher);
         morpher.registerMorpher(dm);
     }
 
+    /**
+     * Sets the format that dates are written in (default, iso8601 or epoch); see {@link JsonDateCodec}.
+     */
+    public static void setDateFormat(String format) {
+        dateCodec = new JsonDateCodec(format);
+    }
+
+    public static String getDateFormat() {
+        return dateCodec.getFormat();
+    }
+
     public static Object fromJSON(Class target, Object value) {
+
+        // dates are parsed by the codec; the older patterns are only tried if it can't read the value
+        if (target == Date.class && value != null) {
+            Date date = dateCodec.parse(value);
+            if (date != null) {
+                return date;
+            }
+        }
+
         return morpher.morph(target, value);
     }
 
@@ -50,7 +70,7 @@ public class JsonConverterUtils {
         }
 
         if (value instanceof Date) {
-            value = DateFormatUtils.formatUTC((Date) value, DATE_PATTERN);
+            value = dateCodec.format((Date) value);
         }
 
         return value;
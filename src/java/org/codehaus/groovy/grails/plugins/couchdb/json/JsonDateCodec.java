@@ -0,0 +1,273 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.json;
+
+import java.util.Date;
+
+/**
+ * Formats and parses the dates stored in documents and used as view keys without going through
+ * <code>SimpleDateFormat</code>.  Dates are always written in UTC using one of the formats:
+ * <ul>
+ * <li><code>default</code> - <code>yyyy/MM/dd HH:mm:ss +0000</code> (the format used so far)</li>
+ * <li><code>iso8601</code> - <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code></li>
+ * <li><code>epoch</code> - the number of milliseconds since the epoch</li>
+ * </ul>
+ * All of them sort chronologically as view keys.  Any of the formats can be parsed whatever format is
+ * being written, so the format can be changed on an existing database; {@link #parse(Object)} returns
+ * null for values it doesn't understand so that the caller can fall back to the other date patterns.
+ *
+ * @author Cory Hacking
+ */
+public class JsonDateCodec {
+
+	public static final String DEFAULT = "default";
+	public static final String ISO8601 = "iso8601";
+	public static final String EPOCH = "epoch";
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private final String format;
+
+	public JsonDateCodec(String format) {
+		if (format == null || "".equals(format)) {
+			format = DEFAULT;
+		}
+
+		if (DEFAULT.equalsIgnoreCase(format)) {
+			this.format = DEFAULT;
+		} else if (ISO8601.equalsIgnoreCase(format)) {
+			this.format = ISO8601;
+		} else if (EPOCH.equalsIgnoreCase(format)) {
+			this.format = EPOCH;
+		} else {
+			throw new IllegalArgumentException("Unknown date format [" + format + "]; expected one of " + DEFAULT + ", " + ISO8601 + " or " + EPOCH + ".");
+		}
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the JSON value for the given date; a String, or a Long for the epoch format.
+	 */
+	public Object format(Date date) {
+		long time = date.getTime();
+		if (format == EPOCH) {
+			return time;
+		}
+
+		long days = floorDiv(time, MILLIS_PER_DAY);
+		int millisOfDay = (int) (time - days * MILLIS_PER_DAY);
+
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		int hour = millisOfDay / 3600000;
+		int minute = (millisOfDay / 60000) % 60;
+		int second = (millisOfDay / 1000) % 60;
+		int millis = millisOfDay % 1000;
+
+		boolean iso = (format == ISO8601);
+		char[] buf = new char[iso ? 24 : 25];
+
+		append(buf, 0, year, 4);
+		buf[4] = iso ? '-' : '/';
+		append(buf, 5, month, 2);
+		buf[7] = iso ? '-' : '/';
+		append(buf, 8, day, 2);
+		buf[10] = iso ? 'T' : ' ';
+		append(buf, 11, hour, 2);
+		buf[13] = ':';
+		append(buf, 14, minute, 2);
+		buf[16] = ':';
+		append(buf, 17, second, 2);
+
+		if (iso) {
+			buf[19] = '.';
+			append(buf, 20, millis, 3);
+			buf[23] = 'Z';
+		} else {
+			buf[19] = ' ';
+			buf[20] = '+';
+			buf[21] = '0';
+			buf[22] = '0';
+			buf[23] = '0';
+			buf[24] = '0';
+		}
+
+		return new String(buf);
+	}
+
+	/**
+	 * Parses the given JSON value, which can be epoch millis or a String in the default or ISO-8601
+	 * format.  Returns null if the value isn't in one of those formats.
+	 */
+	public Date parse(Object value) {
+		if (value instanceof Date) {
+			return (Date) value;
+		}
+
+		if (value instanceof Number) {
+			return new Date(((Number) value).longValue());
+		}
+
+		if (value instanceof String) {
+			long time = parseTime((String) value);
+			return (time != Long.MIN_VALUE) ? new Date(time) : null;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parses <code>yyyy/MM/dd HH:mm:ss[.S] [Z]</code> and <code>yyyy-MM-dd'T'HH:mm:ss[.SSS](Z|+HH:mm|+HHmm)</code>,
+	 * returning Long.MIN_VALUE if the string doesn't match.
+	 */
+	static long parseTime(String s) {
+		int length = s.length();
+		if (length < 19) {
+			return Long.MIN_VALUE;
+		}
+
+		char dateSeparator = s.charAt(4);
+		boolean iso = (dateSeparator == '-');
+		if ((dateSeparator != '/' && dateSeparator != '-') || s.charAt(7) != dateSeparator
+				|| (s.charAt(10) != (iso ? 'T' : ' ')) || s.charAt(13) != ':' || s.charAt(16) != ':') {
+			return Long.MIN_VALUE;
+		}
+
+		int year = digits(s, 0, 4);
+		int month = digits(s, 5, 2);
+		int day = digits(s, 8, 2);
+		int hour = digits(s, 11, 2);
+		int minute = digits(s, 14, 2);
+		int second = digits(s, 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+			return Long.MIN_VALUE;
+		}
+
+		int pos = 19;
+
+		// fraction of a second; SimpleDateFormat's "S" reads the digits as a number of milliseconds
+		// (so .5 is 5ms) while in ISO-8601 they're a decimal fraction (.5 is 500ms)
+		int millis = 0;
+		if (pos < length && s.charAt(pos) == '.') {
+			pos++;
+			int start = pos;
+			int fraction = 0;
+			while (pos < length && Character.isDigit(s.charAt(pos))) {
+				if (pos - start < 3 || !iso) {
+					fraction = fraction * 10 + (s.charAt(pos) - '0');
+				}
+				pos++;
+			}
+			if (pos == start) {
+				return Long.MIN_VALUE;
+			}
+
+			millis = fraction;
+			if (iso) {
+				for (int i = pos - start; i < 3; i++) {
+					millis *= 10;
+				}
+			} else if (millis > 999) {
+				return Long.MIN_VALUE;
+			}
+		}
+
+		if (!iso && pos < length && s.charAt(pos) == ' ') {
+			pos++;
+		}
+
+		// the time zone offset (in minutes)
+		int offset = 0;
+		if (pos < length) {
+			char c = s.charAt(pos);
+			if (c == 'Z' && pos + 1 == length) {
+				offset = 0;
+			} else if (c == '+' || c == '-') {
+				int hours = (pos + 3 <= length) ? digits(s, pos + 1, 2) : -1;
+				int next = pos + 3;
+				if (next < length && s.charAt(next) == ':') {
+					next++;
+				}
+				int minutes = (next + 2 == length) ? digits(s, next, 2) : -1;
+				if (hours < 0 || minutes < 0) {
+					return Long.MIN_VALUE;
+				}
+
+				offset = (hours * 60 + minutes) * (c == '-' ? -1 : 1);
+			} else {
+				// time zone names, etc.
+				return Long.MIN_VALUE;
+			}
+		} else if (!iso) {
+			// the default format always has a time zone
+			return Long.MIN_VALUE;
+		}
+
+		// days from civil, see http://howardhinnant.github.io/date_algorithms.html
+		long y = (month <= 2) ? year - 1 : year;
+		long era = floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		long days = era * 146097 + doe - 719468;
+
+		return days * MILLIS_PER_DAY + ((hour * 60L + minute - offset) * 60L + second) * 1000L + millis;
+	}
+
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+
+		return value;
+	}
+
+	private static void append(char[] buf, int start, int value, int count) {
+		for (int i = start + count - 1; i >= start; i--) {
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			q--;
+		}
+		return q;
+	}
+
+	public String toString() {
+		return "JsonDateCodec[" + format + "]";
+	}
+}
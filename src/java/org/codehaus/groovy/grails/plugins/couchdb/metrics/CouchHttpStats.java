@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The http traffic to one database: request latency (until the response headers arrive), status
+ * codes, the bytes sent and received (as they went over the wire) and, with transport compression, the
+ * compression ratios and the time spent compressing requests and decompressing responses.
+ *
+ * @author Cory Hacking
+ */
+public class CouchHttpStats implements CouchHttpStatsMBean {
+
+	private final String database;
+
+	private final CouchLatencyHistogram latency = new CouchLatencyHistogram();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final ConcurrentMap<Integer, AtomicLong> statusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private final AtomicLong compressedRequests = new AtomicLong();
+	private final AtomicLong requestBytesUncompressed = new AtomicLong();
+	private final AtomicLong requestBytesCompressed = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+
+	private final AtomicLong compressedResponses = new AtomicLong();
+	private final AtomicLong responseBytesCompressed = new AtomicLong();
+	private final AtomicLong responseBytesDecompressed = new AtomicLong();
+	private final AtomicLong decompressionNanos = new AtomicLong();
+
+	public CouchHttpStats(String database) {
+		this.database = database;
+	}
+
+	/**
+	 * Records a request.
+	 *
+	 * @param status       the http status code, or -1 if the request failed with an IOException
+	 * @param requestBytes the length of the request body, or -1 if it is unknown (chunked)
+	 * @param nanos        the time until the response headers were received
+	 */
+	public void record(int status, long requestBytes, long nanos) {
+		latency.record(nanos);
+
+		if (requestBytes > 0) {
+			bytesSent.addAndGet(requestBytes);
+		}
+
+		if (status < 0) {
+			failures.incrementAndGet();
+			return;
+		}
+
+		AtomicLong counter = statusCodes.get(status);
+		if (counter == null) {
+			AtomicLong existing = statusCodes.putIfAbsent(status, counter = new AtomicLong());
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Wraps the response body so that the bytes read from it are counted as received.
+	 */
+	public InputStream countReceived(InputStream inputStream) {
+		return new FilterInputStream(inputStream) {
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					bytesReceived.incrementAndGet();
+				}
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					bytesReceived.addAndGet(n);
+				}
+				return n;
+			}
+
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				if (skipped > 0) {
+					bytesReceived.addAndGet(skipped);
+				}
+				return skipped;
+			}
+		};
+	}
+
+	/**
+	 * Records a request body that was compressed.
+	 *
+	 * @param nanos the time spent compressing it
+	 */
+	public void recordCompression(long uncompressedBytes, long compressedBytes, long nanos) {
+		compressedRequests.incrementAndGet();
+		requestBytesUncompressed.addAndGet(uncompressedBytes);
+		requestBytesCompressed.addAndGet(compressedBytes);
+		compressionNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records a response that was received compressed.
+	 */
+	public void recordCompressedResponse() {
+		compressedResponses.incrementAndGet();
+	}
+
+	/**
+	 * Records the bytes read from a compressed response.
+	 *
+	 * @param nanos the time spent decompressing them (not waiting for them to arrive)
+	 */
+	public void recordDecompression(long compressedBytes, long decompressedBytes, long nanos) {
+		responseBytesCompressed.addAndGet(compressedBytes);
+		responseBytesDecompressed.addAndGet(decompressedBytes);
+		decompressionNanos.addAndGet(nanos);
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	public long getRequests() {
+		return latency.getCount();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getCompressedRequests() {
+		return compressedRequests.get();
+	}
+
+	/**
+	 * @return the uncompressed size of the compressed requests over their compressed size (0 if there weren't any)
+	 */
+	public double getRequestCompressionRatio() {
+		return ratio(requestBytesUncompressed.get(), requestBytesCompressed.get());
+	}
+
+	public double getCompressionMillis() {
+		return compressionNanos.get() / 1000000.0;
+	}
+
+	public long getCompressedResponses() {
+		return compressedResponses.get();
+	}
+
+	/**
+	 * @return the decompressed size of the compressed responses over their compressed size (0 if there weren't any)
+	 */
+	public double getResponseCompressionRatio() {
+		return ratio(responseBytesDecompressed.get(), responseBytesCompressed.get());
+	}
+
+	public double getDecompressionMillis() {
+		return decompressionNanos.get() / 1000000.0;
+	}
+
+	private static double ratio(long uncompressed, long compressed) {
+		return (compressed > 0) ? (double) uncompressed / compressed : 0;
+	}
+
+	public Map<Integer, Long> getStatusCodeCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : statusCodes.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+
+		return counts;
+	}
+
+	public String getStatusCodes() {
+		return getStatusCodeCounts().toString();
+	}
+
+	public double getMeanMillis() {
+		return latency.getMeanMillis();
+	}
+
+	public double getMaxMillis() {
+		return latency.getMaxMillis();
+	}
+
+	public double get95thPercentileMillis() {
+		return latency.getPercentileMillis(0.95);
+	}
+
+	public String getHistogram() {
+		return latency.getBuckets();
+	}
+
+	public void reset() {
+		latency.reset();
+		failures.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+		statusCodes.clear();
+
+		compressedRequests.set(0);
+		requestBytesUncompressed.set(0);
+		requestBytesCompressed.set(0);
+		compressionNanos.set(0);
+		compressedResponses.set(0);
+		responseBytesCompressed.set(0);
+		responseBytesDecompressed.set(0);
+		decompressionNanos.set(0);
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		statistics.put("database", database);
+		statistics.put("requests", getRequests());
+		statistics.put("failures", getFailures());
+		statistics.put("bytesSent", getBytesSent());
+		statistics.put("bytesReceived", getBytesReceived());
+		statistics.put("statusCodes", getStatusCodeCounts());
+		statistics.put("meanMillis", getMeanMillis());
+		statistics.put("maxMillis", getMaxMillis());
+		statistics.put("95thPercentileMillis", get95thPercentileMillis());
+		statistics.put("compressedRequests", getCompressedRequests());
+		statistics.put("requestCompressionRatio", getRequestCompressionRatio());
+		statistics.put("compressionMillis", getCompressionMillis());
+		statistics.put("compressedResponses", getCompressedResponses());
+		statistics.put("responseCompressionRatio", getResponseCompressionRatio());
+		statistics.put("decompressionMillis", getDecompressionMillis());
+
+		return statistics;
+	}
+
+	public String toString() {
+		return "CouchHttpStats[" + database + "]";
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.metrics;
+
+/**
+ * The JMX view of {@link CouchHttpStats}.
+ *
+ * @author Cory Hacking
+ */
+public interface CouchHttpStatsMBean {
+
+	String getDatabase();
+
+	long getRequests();
+
+	long getFailures();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	String getStatusCodes();
+
+	double getMeanMillis();
+
+	double getMaxMillis();
+
+	double get95thPercentileMillis();
+
+	String getHistogram();
+
+	long getCompressedRequests();
+
+	double getRequestCompressionRatio();
+
+	double getCompressionMillis();
+
+	long getCompressedResponses();
+
+	double getResponseCompressionRatio();
+
+	double getDecompressionMillis();
+
+	void reset();
+}
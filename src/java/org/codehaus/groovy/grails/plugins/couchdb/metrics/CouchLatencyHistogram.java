@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with fixed (roughly logarithmic) buckets from 0.1ms to 10s.
+ * Percentiles are estimated as the upper bound of the bucket they fall in (at most the maximum).
+ *
+ * @author Cory Hacking
+ */
+public class CouchLatencyHistogram {
+
+	/**
+	 * The upper bounds of the buckets in microseconds; the last bucket is everything above 10s.
+	 */
+	static final long[] BOUNDS = {
+		100, 250, 500,
+		1000, 2500, 5000,
+		10000, 25000, 50000,
+		100000, 250000, 500000,
+		1000000, 2500000, 5000000,
+		10000000
+	};
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+
+		int i = 0;
+		while (i < BOUNDS.length && micros > BOUNDS[i]) {
+			i++;
+		}
+
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getTotalMillis() {
+		return totalNanos.get() / 1000000.0;
+	}
+
+	public double getMeanMillis() {
+		long n = count.get();
+		return (n > 0) ? totalNanos.get() / 1000000.0 / n : 0;
+	}
+
+	public double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * @param percentile between 0 and 1, e.g. 0.95
+	 */
+	public double getPercentileMillis(double percentile) {
+		long n = 0;
+		long[] counts = new long[buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(percentile * n);
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			if (cumulative >= target) {
+				return (i < BOUNDS.length) ? Math.min(BOUNDS[i] / 1000.0, getMaxMillis()) : getMaxMillis();
+			}
+		}
+
+		return getMaxMillis();
+	}
+
+	/**
+	 * @return the bucket counts, e.g. <code>&lt;=1ms: 10, &lt;=2.5ms: 3, ...</code>
+	 */
+	public String getBuckets() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buckets.length(); i++) {
+			long n = buckets.get(i);
+			if (n == 0) {
+				continue;
+			}
+
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			if (i < BOUNDS.length) {
+				sb.append("<=").append(BOUNDS[i] / 1000.0).append("ms");
+			} else {
+				sb.append(">").append(BOUNDS[BOUNDS.length - 1] / 1000.0).append("ms");
+			}
+			sb.append(": ").append(n);
+		}
+
+		return sb.toString();
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
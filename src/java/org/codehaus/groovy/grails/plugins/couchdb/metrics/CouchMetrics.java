@@ -0,0 +1,220 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the latency, throughput, error and row counts of the domain class operations (tagged by
+ * database, domain class, operation and view), the http traffic of each database and the time spent
+ * writing and reading JSON.  Each set of statistics is also registered as an MBean on the platform
+ * MBeanServer (when <code>jmx</code> is true), e.g.
+ * <code>gorm-couchdb:type=Operation,database="tasks",domainClass="Task",operation="queryView",view="open/byName"</code>.
+ * <p/>
+ * Registered as the <code>couchdbMetrics</code> bean and configured by <code>couchdb.metrics</code>;
+ * when it's disabled the instrumented methods only read the <code>enabled</code> flag.
+ *
+ * @author Cory Hacking
+ */
+public class CouchMetrics {
+
+	private static final Log log = LogFactory.getLog(CouchMetrics.class);
+
+	/**
+	 * The database name used for the http requests that aren't made to a database (e.g. _uuids).
+	 */
+	public static final String SERVER = "_server";
+
+	private volatile boolean enabled;
+	private boolean jmx = true;
+	private String jmxDomain = "gorm-couchdb";
+
+	private final ConcurrentMap<String, CouchOperationStats> operations = new ConcurrentHashMap<String, CouchOperationStats>();
+	private final ConcurrentMap<String, CouchHttpStats> httpStats = new ConcurrentHashMap<String, CouchHttpStats>();
+	private final List<ObjectName> registeredNames = new CopyOnWriteArrayList<ObjectName>();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public String getJmxDomain() {
+		return jmxDomain;
+	}
+
+	public void setJmxDomain(String jmxDomain) {
+		this.jmxDomain = jmxDomain;
+	}
+
+	/**
+	 * Records one call of a domain class operation.
+	 *
+	 * @param database    the database name
+	 * @param domainClass the domain class name
+	 * @param operation   the operation, e.g. <code>save</code> or <code>queryView</code>
+	 * @param view        the view (design/view) of the operation, or null
+	 * @param nanos       the duration of the call
+	 * @param rows        the number of documents or rows returned or written
+	 * @param error       true if the call threw an exception
+	 */
+	public void record(String database, String domainClass, String operation, String view, long nanos, long rows, boolean error) {
+		getOperationStats(database, domainClass, operation, view).record(nanos, rows, error);
+	}
+
+	/**
+	 * Returns the statistics of an operation, creating (and registering) them the first time.
+	 */
+	public CouchOperationStats getOperationStats(String database, String domainClass, String operation, String view) {
+		String key = database + '\u0000' + domainClass + '\u0000' + operation + '\u0000' + view;
+
+		CouchOperationStats stats = operations.get(key);
+		if (stats == null) {
+			CouchOperationStats created = new CouchOperationStats(database, domainClass, operation, view);
+			stats = operations.putIfAbsent(key, created);
+			if (stats == null) {
+				stats = created;
+
+				Map<String, String> properties = new LinkedHashMap<String, String>();
+				properties.put("database", database);
+				properties.put("domainClass", domainClass);
+				properties.put("operation", operation);
+				if (view != null) {
+					properties.put("view", view);
+				}
+				register("Operation", properties, stats);
+			}
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Returns the http statistics of a database, creating (and registering) them the first time.
+	 */
+	public CouchHttpStats getHttpStats(String database) {
+		CouchHttpStats stats = httpStats.get(database);
+		if (stats == null) {
+			CouchHttpStats created = new CouchHttpStats(database);
+			stats = httpStats.putIfAbsent(database, created);
+			if (stats == null) {
+				stats = created;
+
+				Map<String, String> properties = new LinkedHashMap<String, String>();
+				properties.put("database", database);
+				register("Http", properties, stats);
+			}
+		}
+
+		return stats;
+	}
+
+	/**
+	 * @return [operations: [...], http: [...]] with the statistics of each operation and database
+	 */
+	public Map<String, Object> getStatistics() {
+		List<Map<String, Object>> operationStatistics = new ArrayList<Map<String, Object>>();
+		for (CouchOperationStats stats : operations.values()) {
+			operationStatistics.add(stats.getStatistics());
+		}
+
+		List<Map<String, Object>> httpStatistics = new ArrayList<Map<String, Object>>();
+		for (CouchHttpStats stats : httpStats.values()) {
+			httpStatistics.add(stats.getStatistics());
+		}
+
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("operations", operationStatistics);
+		statistics.put("http", httpStatistics);
+
+		return statistics;
+	}
+
+	/**
+	 * Resets all of the counters (the MBeans stay registered).
+	 */
+	public void reset() {
+		for (CouchOperationStats stats : operations.values()) {
+			stats.reset();
+		}
+		for (CouchHttpStats stats : httpStats.values()) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * Unregisters the MBeans.
+	 */
+	public void destroy() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registeredNames) {
+			try {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (Exception e) {
+				log.warn("Unable to unregister MBean [" + name + "]: " + e.getMessage());
+			}
+		}
+
+		registeredNames.clear();
+	}
+
+	private void register(String type, Map<String, String> properties, Object mbean) {
+		if (!jmx) {
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder(jmxDomain).append(":type=").append(type);
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			sb.append(',').append(entry.getKey()).append('=').append(ObjectName.quote(String.valueOf(entry.getValue())));
+		}
+
+		try {
+			ObjectName name = new ObjectName(sb.toString());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			registeredNames.add(name);
+
+		} catch (InstanceAlreadyExistsException e) {
+			log.debug("MBean [" + sb + "] is already registered.");
+		} catch (Exception e) {
+			log.warn("Unable to register MBean [" + sb + "]: " + e.getMessage());
+		}
+	}
+}
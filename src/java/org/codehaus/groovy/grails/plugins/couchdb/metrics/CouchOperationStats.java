@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latency, error and row counts of one operation (e.g. <code>queryView</code>) of one domain
+ * class, optionally for one view.
+ *
+ * @author Cory Hacking
+ */
+public class CouchOperationStats implements CouchOperationStatsMBean {
+
+	private final String database;
+	private final String domainClass;
+	private final String operation;
+	private final String view;
+
+	private final CouchLatencyHistogram latency = new CouchLatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+
+	public CouchOperationStats(String database, String domainClass, String operation, String view) {
+		this.database = database;
+		this.domainClass = domainClass;
+		this.operation = operation;
+		this.view = view;
+	}
+
+	public void record(long nanos, long rowCount, boolean error) {
+		latency.record(nanos);
+		if (rowCount > 0) {
+			rows.addAndGet(rowCount);
+		}
+		if (error) {
+			errors.incrementAndGet();
+		}
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	public String getDomainClass() {
+		return domainClass;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getView() {
+		return view;
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	public double getTotalMillis() {
+		return latency.getTotalMillis();
+	}
+
+	public double getMeanMillis() {
+		return latency.getMeanMillis();
+	}
+
+	public double getMaxMillis() {
+		return latency.getMaxMillis();
+	}
+
+	public double getMedianMillis() {
+		return latency.getPercentileMillis(0.5);
+	}
+
+	public double get95thPercentileMillis() {
+		return latency.getPercentileMillis(0.95);
+	}
+
+	public double get99thPercentileMillis() {
+		return latency.getPercentileMillis(0.99);
+	}
+
+	public String getHistogram() {
+		return latency.getBuckets();
+	}
+
+	public void reset() {
+		latency.reset();
+		errors.set(0);
+		rows.set(0);
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		statistics.put("database", database);
+		statistics.put("domainClass", domainClass);
+		statistics.put("operation", operation);
+		statistics.put("view", view);
+		statistics.put("count", getCount());
+		statistics.put("errors", getErrors());
+		statistics.put("rows", getRows());
+		statistics.put("totalMillis", getTotalMillis());
+		statistics.put("meanMillis", getMeanMillis());
+		statistics.put("maxMillis", getMaxMillis());
+		statistics.put("medianMillis", getMedianMillis());
+		statistics.put("95thPercentileMillis", get95thPercentileMillis());
+		statistics.put("99thPercentileMillis", get99thPercentileMillis());
+
+		return statistics;
+	}
+
+	public String toString() {
+		return "CouchOperationStats[" + database + ", " + domainClass + ", " + operation + (view != null ? ", " + view : "") + "]";
+	}
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.view;
+
+import org.codehaus.groovy.grails.plugins.couchdb.json.JsonConverterUtils;
+import org.jcouchdb.document.ValueAndDocumentRow;
+import org.jcouchdb.document.ValueRow;
+import org.jcouchdb.util.ExceptionWrapper;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps view rows into instances of a typed class, e.g. <code>Foo.queryView("openTasks", as: TaskSummary)</code>.
+ * <p/>
+ * The members of the row value (when it's an object) are copied to the properties of the same name, a
+ * non-object value to a <code>value</code> property, and the row key, id and document (if any) to the
+ * <code>key</code>, <code>id</code> and <code>document</code> properties.  Anything without a matching
+ * property is ignored.  The setters and value converters are worked out once per class, so the rows end
+ * up as plain objects instead of maps that are converted on every property access.
+ *
+ * @author Cory Hacking
+ */
+public class CouchRowProjection {
+
+	private static final Map<Class, CouchRowProjection> projections = new ConcurrentHashMap<Class, CouchRowProjection>();
+
+	private final Class type;
+	private final Constructor constructor;
+	private final Map<String, Property> properties = new HashMap<String, Property>();
+
+	private final Property keyProperty;
+	private final Property idProperty;
+	private final Property valueProperty;
+	private final Property documentProperty;
+
+	/**
+	 * Returns the (shared) projection for the given class.
+	 */
+	public static CouchRowProjection forClass(Class type) {
+		CouchRowProjection projection = projections.get(type);
+		if (projection == null) {
+			projection = new CouchRowProjection(type);
+			projections.put(type, projection);
+		}
+
+		return projection;
+	}
+
+	public CouchRowProjection(Class type) {
+		this.type = type;
+
+		try {
+			constructor = type.getConstructor();
+
+			BeanInfo info = Introspector.getBeanInfo(type);
+			for (PropertyDescriptor descriptor : info.getPropertyDescriptors()) {
+				Method setter = descriptor.getWriteMethod();
+				if (setter != null && !"metaClass".equals(descriptor.getName())) {
+					properties.put(descriptor.getName(), new Property(setter, getConverter(descriptor.getPropertyType())));
+				}
+			}
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Class [" + type.getName() + "] needs a public no-argument constructor to be used as a view projection.");
+		} catch (IntrospectionException e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		keyProperty = properties.get("key");
+		idProperty = properties.get("id");
+		valueProperty = properties.get("value");
+		documentProperty = properties.get("document");
+	}
+
+	public Class getType() {
+		return type;
+	}
+
+	public List<Object> project(Collection<? extends ValueRow> rows) {
+		List<Object> results = new ArrayList<Object>(rows.size());
+		for (ValueRow row : rows) {
+			results.add(project(row));
+		}
+
+		return results;
+	}
+
+	public Object project(ValueRow row) {
+		Object instance;
+		try {
+			instance = constructor.newInstance();
+		} catch (Exception e) {
+			throw ExceptionWrapper.wrap(e);
+		}
+
+		if (keyProperty != null) {
+			keyProperty.set(instance, row.getKey());
+		}
+		if (idProperty != null) {
+			idProperty.set(instance, row.getId());
+		}
+		if (documentProperty != null && row instanceof ValueAndDocumentRow) {
+			documentProperty.set(instance, ((ValueAndDocumentRow) row).getDocument());
+		}
+
+		Object value = row.getValue();
+		if (value instanceof Map) {
+			for (Object o : ((Map) value).entrySet()) {
+				Map.Entry entry = (Map.Entry) o;
+
+				Property property = properties.get(String.valueOf(entry.getKey()));
+				if (property != null) {
+					property.set(instance, entry.getValue());
+				}
+			}
+		} else if (valueProperty != null) {
+			valueProperty.set(instance, value);
+		}
+
+		return instance;
+	}
+
+	private static Converter getConverter(final Class target) {
+		if (target == null || target == Object.class || Map.class.isAssignableFrom(target) || Collection.class.isAssignableFrom(target)) {
+			return null;
+		}
+
+		if (target == String.class) {
+			return new Converter() {
+				public Object convert(Object value) {
+					return value.toString();
+				}
+			};
+		}
+
+		if (target == Integer.class || target == Integer.TYPE) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return value.intValue();
+				}
+			};
+		}
+
+		if (target == Long.class || target == Long.TYPE) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return value.longValue();
+				}
+			};
+		}
+
+		if (target == Double.class || target == Double.TYPE) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return value.doubleValue();
+				}
+			};
+		}
+
+		if (target == Float.class || target == Float.TYPE) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return value.floatValue();
+				}
+			};
+		}
+
+		if (target == Short.class || target == Short.TYPE) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return value.shortValue();
+				}
+			};
+		}
+
+		if (target == BigDecimal.class) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return (value instanceof BigDecimal) ? value : new BigDecimal(value.toString());
+				}
+			};
+		}
+
+		if (target == BigInteger.class) {
+			return new NumberConverter() {
+				Object fromNumber(Number value) {
+					return (value instanceof BigInteger) ? value : new BigDecimal(value.toString()).toBigInteger();
+				}
+			};
+		}
+
+		if (target.isEnum()) {
+			return new Converter() {
+				@SuppressWarnings ({"unchecked"})
+				public Object convert(Object value) {
+					return Enum.valueOf(target, value.toString());
+				}
+			};
+		}
+
+		// dates and anything else are morphed
+		return new Converter() {
+			public Object convert(Object value) {
+				return JsonConverterUtils.fromJSON(target, value);
+			}
+		};
+	}
+
+	private static interface Converter {
+
+		Object convert(Object value);
+	}
+
+	private static abstract class NumberConverter implements Converter {
+
+		public Object convert(Object value) {
+			if (!(value instanceof Number)) {
+				value = new BigDecimal(value.toString());
+			}
+
+			return fromNumber((Number) value);
+		}
+
+		abstract Object fromNumber(Number value);
+	}
+
+	private static class Property {
+
+		final Method setter;
+		final Converter converter;
+		final Class type;
+
+		Property(Method setter, Converter converter) {
+			this.setter = setter;
+			this.converter = converter;
+			this.type = setter.getParameterTypes()[0];
+		}
+
+		void set(Object instance, Object value) {
+			if (value == null) {
+				if (type.isPrimitive()) {
+					return;
+				}
+			} else if (converter != null && !type.isInstance(value)) {
+				value = converter.convert(value);
+			}
+
+			try {
+				setter.invoke(instance, value);
+			} catch (Exception e) {
+				throw ExceptionWrapper.wrap(e);
+			}
+		}
+	}
+
+	public String toString() {
+		return "CouchRowProjection[" + type.getName() + ", " + properties.keySet() + "]";
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.view;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClass;
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpResponse;
+import org.jcouchdb.db.Database;
+import org.jcouchdb.db.Options;
+import org.jcouchdb.db.Response;
+import org.jcouchdb.document.ValueRow;
+import org.jcouchdb.exception.CouchDBException;
+import org.jcouchdb.exception.DataAccessException;
+import org.svenson.JSON;
+import org.svenson.JSONParser;
+import org.svenson.tokenize.InputStreamSource;
+import org.svenson.tokenize.JSONTokenizer;
+import org.svenson.tokenize.Token;
+import org.svenson.tokenize.TokenType;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazy iterator over the rows of a view (or <code>_all_docs</code>) that reads the response
+ * directly from the http stream and only parses one row at a time, so memory use doesn't depend
+ * on the size of the result.
+ * <p/>
+ * When a page size is given the view is read in pages of that many rows; one extra row is requested
+ * per page and its key and id become the <code>startkey</code> / <code>startkey_docid</code> of the
+ * next page.  Paging isn't used for queries by keys.
+ * <p/>
+ * The iterator closes itself once the last row has been read; call {@link #close()} when abandoning
+ * it early so that the connection isn't left open.
+ *
+ * @author Cory Hacking
+ */
+public class CouchViewIterator implements Iterator<ValueRow>, Closeable {
+
+	private static final Log log = LogFactory.getLog(CouchViewIterator.class);
+
+	public static final String DOMAIN_CLASS_KEY = "__domainClass";
+
+	private final Database database;
+	private final String viewURI;
+	private final Options options;
+	private final List keys;
+	private final JSONParser parser;
+	private final Class<? extends ValueRow> rowClass;
+	private final CouchDomainClass domainClass;
+	private final int pageSize;
+
+	private Response response;
+	private JSONTokenizer tokenizer;
+
+	private ValueRow nextRow;
+	private boolean finished;
+
+	private int remaining = -1;
+	private int pageCount;
+	private int pageRows;
+	private int pageLimit;
+	private boolean hasNextPage;
+	private Object nextStartKey;
+	private String nextStartDocId;
+
+	private long totalRows = -1;
+	private long offset = -1;
+
+	/**
+	 * @param database    the database to query
+	 * @param viewURI     the view path relative to the database, e.g. <code>_design/foo/_view/bar</code> or <code>_all_docs</code>
+	 * @param options     the query options
+	 * @param keys        the (already encoded) keys to query by, or null
+	 * @param parser      the parser used for each row
+	 * @param rowClass    the row type, {@link ValueRow} or {@link org.jcouchdb.document.ValueAndDocumentRow}
+	 * @param domainClass the domain class added to map values for property type conversion (may be null)
+	 * @param pageSize    the number of rows to read per request, or 0 to read the view in a single request
+	 */
+	public CouchViewIterator(Database database, String viewURI, Options options, List keys, JSONParser parser,
+	                         Class<? extends ValueRow> rowClass, CouchDomainClass domainClass, int pageSize) {
+		this.database = database;
+		this.viewURI = viewURI;
+		this.options = (options != null) ? options : new Options();
+		this.keys = keys;
+		this.parser = parser;
+		this.rowClass = rowClass;
+		this.domainClass = domainClass;
+		this.pageSize = (keys == null) ? Math.max(pageSize, 0) : 0;
+
+		if (this.pageSize > 0 && this.options.get("limit") != null) {
+			remaining = Integer.parseInt(this.options.get("limit").toString());
+		}
+	}
+
+	public boolean hasNext() {
+		if (nextRow == null && !finished) {
+			try {
+				nextRow = readNextRow();
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		return nextRow != null;
+	}
+
+	public ValueRow next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		ValueRow row = nextRow;
+		nextRow = null;
+
+		return row;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("View rows can't be removed.");
+	}
+
+	/**
+	 * Closes the current response.  A partially read response is aborted rather than drained.
+	 */
+	public void close() {
+		finished = true;
+		nextRow = null;
+
+		closePage(true);
+	}
+
+	/**
+	 * Returns the total_rows of the last page read, or -1 if the view didn't return one.
+	 */
+	public long getTotalRows() {
+		return totalRows;
+	}
+
+	/**
+	 * Returns the offset of the last page read, or -1 if the view didn't return one.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	private ValueRow readNextRow() {
+		while (true) {
+			if (tokenizer == null && !openPage()) {
+				finished = true;
+				return null;
+			}
+
+			ValueRow row = readRow();
+			if (row == null) {
+
+				// end of this page
+				closePage(false);
+				if (!hasNextPage) {
+					finished = true;
+					return null;
+				}
+
+				continue;
+			}
+
+			if (pageLimit > 0 && pageRows == pageLimit) {
+
+				// this is the look-ahead row; it starts the next page
+				nextStartKey = row.getKey();
+				nextStartDocId = row.getId();
+				hasNextPage = true;
+
+				closePage(false);
+				continue;
+			}
+
+			pageRows++;
+			if (remaining > 0) {
+				remaining--;
+			}
+
+			if (domainClass != null && row.getValue() instanceof Map) {
+				((Map) row.getValue()).put(DOMAIN_CLASS_KEY, domainClass);
+			}
+
+			return row;
+		}
+	}
+
+	private boolean openPage() {
+		if (remaining == 0 || (pageCount > 0 && !hasNextPage)) {
+			return false;
+		}
+
+		Options pageOptions = new Options(options);
+
+		pageLimit = 0;
+		if (pageSize > 0) {
+			if (remaining < 0 || remaining > pageSize) {
+				pageLimit = pageSize;
+				pageOptions.put("limit", pageSize + 1);
+			} else {
+				pageOptions.put("limit", remaining);
+			}
+
+			if (hasNextPage) {
+				pageOptions.put("startkey", nextStartKey);
+				if (nextStartDocId != null) {
+					pageOptions.put("startkey_docid", nextStartDocId);
+				}
+				pageOptions.put("skip", 0);
+			}
+		}
+
+		hasNextPage = false;
+		pageRows = 0;
+		pageCount++;
+
+		String uri = "/" + database.getName() + "/" + viewURI + pageOptions.toQuery();
+		if (log.isDebugEnabled()) {
+			log.debug("streaming view " + uri + " (page " + pageCount + ")");
+		}
+
+		if (keys == null) {
+			response = database.getServer().get(uri);
+		} else {
+			JSON generator = database.getJsonConfig().getJsonGenerator();
+			response = database.getServer().post(uri, generator.forValue(Collections.singletonMap("keys", keys)));
+		}
+
+		if (!response.isOk()) {
+			DataAccessException e = new DataAccessException("error querying view " + viewURI, response);
+			closePage(false);
+			throw e;
+		}
+
+		tokenizer = new JSONTokenizer(new InputStreamSource(response.getInputStream(), true), false);
+
+		seekRows();
+
+		return true;
+	}
+
+	private void closePage(boolean abort) {
+		tokenizer = null;
+
+		if (response != null) {
+			if (abort && response instanceof CouchHttpResponse) {
+				((CouchHttpResponse) response).abort();
+			}
+			response.destroy();
+			response = null;
+		}
+	}
+
+	/**
+	 * Reads the header of the view result up to the start of the rows array.
+	 */
+	private void seekRows() {
+		tokenizer.expectNext(TokenType.BRACE_OPEN);
+
+		while (true) {
+			Token token = tokenizer.next();
+			if (token.isType(TokenType.COMMA)) {
+				continue;
+			}
+			if (token.isType(TokenType.BRACE_CLOSE) || token.isType(TokenType.END)) {
+				throw new CouchDBException("View result for " + viewURI + " doesn't contain any rows.");
+			}
+
+			token.expect(TokenType.STRING);
+			String name = (String) token.value();
+
+			tokenizer.expectNext(TokenType.COLON);
+			if ("rows".equals(name)) {
+				tokenizer.expectNext(TokenType.BRACKET_OPEN);
+				return;
+			}
+
+			Token value = tokenizer.next();
+			if ("total_rows".equals(name) && value.isType(TokenType.INTEGER)) {
+				totalRows = ((Number) value.value()).longValue();
+			} else if ("offset".equals(name) && value.isType(TokenType.INTEGER)) {
+				offset = ((Number) value.value()).longValue();
+			} else {
+				readValue(value, null);
+			}
+		}
+	}
+
+	/**
+	 * Reads the next row of the rows array, or returns null at the end of the array.
+	 */
+	private ValueRow readRow() {
+		Token token = tokenizer.next();
+		if (token.isType(TokenType.COMMA)) {
+			token = tokenizer.next();
+		}
+		if (token.isType(TokenType.BRACKET_CLOSE)) {
+			return null;
+		}
+
+		token.expect(TokenType.BRACE_OPEN);
+
+		StringBuilder json = new StringBuilder(256);
+		readValue(token, json);
+
+		return parser.parse(rowClass, json.toString());
+	}
+
+	/**
+	 * Reads a complete json value starting with the given token, writing it back out as json text
+	 * (or skipping it if json is null).
+	 */
+	private void readValue(Token token, StringBuilder json) {
+		int depth = 0;
+
+		while (true) {
+			TokenType type = token.type();
+			switch (type) {
+				case BRACE_OPEN:
+				case BRACKET_OPEN:
+					depth++;
+					break;
+
+				case BRACE_CLOSE:
+				case BRACKET_CLOSE:
+					depth--;
+					break;
+
+				case END:
+					throw new CouchDBException("Unexpected end of the view result for " + viewURI);
+
+				default:
+					break;
+			}
+
+			if (json != null) {
+				switch (type) {
+					case STRING:
+						json.append(JSON.defaultJSON().quote((String) token.value()));
+						break;
+
+					case INTEGER:
+					case DECIMAL:
+						json.append(token.value());
+						break;
+
+					case TRUE:
+						json.append("true");
+						break;
+
+					case FALSE:
+						json.append("false");
+						break;
+
+					case NULL:
+						json.append("null");
+						break;
+
+					case BRACE_OPEN:
+						json.append('{');
+						break;
+
+					case BRACE_CLOSE:
+						json.append('}');
+						break;
+
+					case BRACKET_OPEN:
+						json.append('[');
+						break;
+
+					case BRACKET_CLOSE:
+						json.append(']');
+						break;
+
+					case COLON:
+						json.append(':');
+						break;
+
+					case COMMA:
+						json.append(',');
+						break;
+
+					default:
+						break;
+				}
+			}
+
+			if (depth == 0) {
+				return;
+			}
+
+			token = tokenizer.next();
+		}
+	}
+}
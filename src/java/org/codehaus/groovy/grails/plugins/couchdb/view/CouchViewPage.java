@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.view;
+
+import org.jcouchdb.document.ValueRow;
+import org.svenson.JSON;
+import org.svenson.JSONParser;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One page of the rows of <code>queryView</code> (and the find / list finders) when a <code>max</code> or
+ * <code>limit</code> is given, along with the cursor of the next page.
+ * <p/>
+ * As with {@link CouchViewIterator} paging, one extra row is requested; if it's there, its key and id
+ * become the (opaque) {@link #getNextCursor() nextCursor}, and passing that back as the <code>cursor</code>
+ * option turns it into the <code>startkey</code> / <code>startkey_docid</code> of the next page.  Unlike
+ * <code>offset</code> / <code>skip</code> the cost of a page doesn't depend on how deep it is, and rows
+ * written or deleted before the cursor don't shift the pages.  The other options (e.g.
+ * <code>order: "desc"</code>, <code>include_docs</code> or an <code>endkey</code>) must stay the same.
+ *
+ * @author Cory Hacking
+ */
+public class CouchViewPage extends ArrayList<Object> {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private final int pageSize;
+	private final String nextCursor;
+
+	public CouchViewPage(Collection<?> rows, int pageSize, String nextCursor) {
+		super(rows);
+		this.pageSize = pageSize;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Creates the page from the rows of a query made with a limit of pageSize + 1.
+	 */
+	public static CouchViewPage forRows(List<? extends ValueRow> rows, int pageSize) {
+		if (rows.size() <= pageSize) {
+			return new CouchViewPage(rows, pageSize, null);
+		}
+
+		ValueRow next = rows.get(pageSize);
+		return new CouchViewPage(rows.subList(0, pageSize), pageSize, encodeCursor(next.getKey(), next.getId()));
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return the cursor option of the next page, or null if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean hasNextPage() {
+		return nextCursor != null;
+	}
+
+	/**
+	 * @return the cursor of the row with the given key and document id (null for reduced rows)
+	 */
+	public static String encodeCursor(Object key, String docId) {
+		String json = JSON.defaultJSON().forValue(Arrays.asList(key, docId));
+		try {
+			return encode(json.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the key and document id (or null) of the cursor
+	 */
+	public static Object[] decodeCursor(String cursor) {
+		try {
+			List values = JSONParser.defaultJSONParser().parse(List.class, new String(decode(cursor), "UTF-8"));
+			if (values == null || values.size() != 2 || (values.get(1) != null && !(values.get(1) instanceof String))) {
+				throw new IllegalArgumentException("Invalid view cursor [" + cursor + "].");
+			}
+
+			return values.toArray();
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Invalid view cursor [" + cursor + "].", e);
+		}
+	}
+
+	// base64 with the url safe alphabet and no padding, so that cursors can be passed as request parameters
+	private static String encode(byte[] bytes) {
+		StringBuilder out = new StringBuilder((bytes.length * 4 + 2) / 3);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int n = (bytes[i] & 0xff) << 16;
+			if (i + 1 < bytes.length) {
+				n |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				n |= bytes[i + 2] & 0xff;
+			}
+
+			int chars = Math.min(bytes.length - i, 3) + 1;
+			for (int j = 0; j < chars; j++) {
+				out.append(ALPHABET[(n >> (18 - 6 * j)) & 0x3f]);
+			}
+		}
+
+		return out.toString();
+	}
+
+	private static byte[] decode(String value) {
+		if (value.length() % 4 == 1) {
+			throw new IllegalArgumentException("Invalid view cursor [" + value + "].");
+		}
+
+		byte[] bytes = new byte[value.length() * 3 / 4];
+		int length = 0;
+		for (int i = 0; i < value.length(); i += 4) {
+			int chars = Math.min(value.length() - i, 4);
+			int n = 0;
+			for (int j = 0; j < 4; j++) {
+				n <<= 6;
+				if (j < chars) {
+					n |= indexOf(value.charAt(i + j));
+				}
+			}
+
+			for (int j = 0; j < chars - 1; j++) {
+				bytes[length++] = (byte) (n >> (16 - 8 * j));
+			}
+		}
+
+		return bytes;
+	}
+
+	private static int indexOf(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return c - 'A';
+		} else if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 26;
+		} else if (c >= '0' && c <= '9') {
+			return c - '0' + 52;
+		} else if (c == '-') {
+			return 62;
+		} else if (c == '_') {
+			return 63;
+		}
+
+		throw new IllegalArgumentException("Invalid view cursor character [" + c + "].");
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.benchmark
+
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchDatabaseRegistry
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchDatabaseSettings
+import org.jcouchdb.db.Server
+
+/**
+ * A registry whose databases all use the same {@link CannedResponseServer}.
+ *
+ * @author Cory Hacking
+ */
+class CannedDatabaseRegistry extends CouchDatabaseRegistry {
+
+    CannedResponseServer server = new CannedResponseServer()
+
+    protected Server createServer(CouchDatabaseSettings settings) {
+        return server
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.benchmark
+
+import java.util.concurrent.ConcurrentHashMap
+import org.apache.http.Header
+import org.apache.http.auth.AuthScope
+import org.apache.http.auth.Credentials
+import org.jcouchdb.db.ReplicationInfo
+import org.jcouchdb.db.Response
+import org.jcouchdb.db.Server
+
+/**
+ * A jcouchdb Server that answers every request with a canned response so that the benchmarks
+ * measure the plugin's own costs and run without a CouchDB server.
+ * <p/>
+ * Responses are looked up by method and path (without the query string); requests without a canned
+ * response get a 404 for GET and an ok / id / rev document for everything else.
+ *
+ * @author Cory Hacking
+ */
+class CannedResponseServer implements Server {
+
+    private static final Header[] NO_HEADERS = new Header[0]
+
+    private final Map<String, Map> responses = new ConcurrentHashMap<String, Map>()
+
+    private volatile boolean shutdown
+
+    /**
+     * Answers <code>method path</code> (e.g. <code>GET /db/_design/project/_view/list</code>) with the body.
+     */
+    void respond(String method, String path, int code, String body) {
+        responses.put("${method} ${path}".toString(), [code: code, content: body.getBytes("UTF-8")])
+    }
+
+    List<String> listDatabases() {
+        return []
+    }
+
+    boolean createDatabase(String name) {
+        return false
+    }
+
+    void deleteDatabase(String name) {
+    }
+
+    Response get(String uri) {
+        return execute("GET", uri)
+    }
+
+    Response put(String uri) {
+        return execute("PUT", uri)
+    }
+
+    Response put(String uri, String body) {
+        return execute("PUT", uri)
+    }
+
+    Response put(String uri, byte[] body, String contentType) {
+        return execute("PUT", uri)
+    }
+
+    Response put(String uri, InputStream inputStream, String contentType, long length) {
+        return execute("PUT", uri)
+    }
+
+    Response post(String uri, String body) {
+        return execute("POST", uri)
+    }
+
+    Response delete(String uri) {
+        return execute("DELETE", uri)
+    }
+
+    void setCredentials(AuthScope authScope, Credentials credentials) {
+    }
+
+    void shutDown() {
+        shutdown = true
+    }
+
+    boolean isShutdown() {
+        return shutdown
+    }
+
+    Map<String, Map<String, Object>> getStats(String filter) {
+        return [:]
+    }
+
+    ReplicationInfo replicate(String source, String target, boolean continuous) {
+        throw new UnsupportedOperationException("replicate")
+    }
+
+    List<String> getUUIDs(int count) {
+        return (1..count).collect { UUID.randomUUID().toString().replace("-", "") }
+    }
+
+    private Response execute(String method, String uri) {
+        int query = uri.indexOf('?')
+        String path = (query < 0) ? uri : uri.substring(0, query)
+
+        Map canned = responses.get("${method} ${path}".toString())
+        if (canned) {
+            return new Response(canned.code, new ByteArrayInputStream(canned.content), NO_HEADERS)
+        }
+
+        if (method == "GET") {
+            return new Response(404, new ByteArrayInputStream('{"error":"not_found","reason":"missing"}'.getBytes("UTF-8")), NO_HEADERS)
+        }
+
+        String id = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), "UTF-8")
+        return new Response(201, new ByteArrayInputStream("{\"ok\":true,\"id\":\"${id}\",\"rev\":\"1-canned\"}".getBytes("UTF-8")), NO_HEADERS)
+    }
+}
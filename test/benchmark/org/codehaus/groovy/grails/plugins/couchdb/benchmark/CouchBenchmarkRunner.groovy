@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.benchmark
+
+import java.util.regex.Pattern
+import org.svenson.JSON
+
+/**
+ * Runs benchmarks the way JMH's average time mode does: a number of timed warmup iterations followed
+ * by the measured iterations, each of which calls the operation for a fixed amount of time.  The score
+ * is the mean time per operation with its 99.9% confidence interval (0 for a single iteration).
+ * <p/>
+ * The results are written as a JSON list (one entry per benchmark, with the same field names as JMH's
+ * json result format) so that runs can be compared.
+ *
+ * @author Cory Hacking
+ */
+class CouchBenchmarkRunner {
+
+    // the two-sided 99.9% quantiles of Student's t distribution for 1..30 degrees of freedom
+    private static final double[] T_999 = [
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    ] as double[]
+
+    int warmupIterations = 3
+    int iterations = 5
+    long iterationMillis = 1000
+    Pattern filter = null
+
+    private final List<Map> results = []
+
+    // results are folded into this so that the operations can't be optimized away
+    private volatile int sink
+
+    /**
+     * Runs the operation unless it's excluded by the filter.
+     *
+     * @param name the benchmark name, e.g. <code>json.write.Task</code>
+     * @param operation called repeatedly; its result is consumed
+     */
+    void run(String name, Closure operation) {
+        if (filter && !filter.matcher(name).find()) {
+            return
+        }
+
+        warmupIterations.times {
+            iteration(operation)
+        }
+
+        List<Double> scores = []
+        iterations.times {
+            scores << iteration(operation)
+        }
+
+        double mean = scores.sum() / scores.size()
+        double error = 0
+        if (scores.size() > 1) {
+            double variance = scores.inject(0d) {sum, score -> sum + (score - mean) * (score - mean)} / (scores.size() - 1)
+            int df = scores.size() - 1
+            error = T_999[Math.min(df, T_999.length) - 1] * Math.sqrt(variance / scores.size())
+        }
+
+        Map result = [
+                benchmark: name,
+                mode: "avgt",
+                warmupIterations: warmupIterations,
+                measurementIterations: iterations,
+                measurementTime: "${iterationMillis} ms".toString(),
+                primaryMetric: [
+                        score: mean,
+                        scoreError: error,
+                        scoreConfidence: [mean - error, mean + error],
+                        scoreUnit: "ns/op",
+                        rawData: [scores]
+                ]
+        ]
+        results << result
+
+        println String.format("%-45s %14.1f +- %10.1f ns/op", name, mean, error)
+    }
+
+    List<Map> getResults() {
+        return results
+    }
+
+    /**
+     * Writes the results to the file as JSON.
+     */
+    void writeResults(File file) {
+        file.parentFile?.mkdirs()
+        file.setText(JSON.defaultJSON().forValue(results), "UTF-8")
+    }
+
+    /**
+     * @return the mean time of one operation in nanoseconds
+     */
+    private double iteration(Closure operation) {
+        long deadline = System.nanoTime() + iterationMillis * 1000000L
+        long operations = 0
+        int consumed = 0
+
+        long start = System.nanoTime()
+        long now = start
+        while (now < deadline) {
+            def result = operation.call()
+            consumed += (result != null) ? System.identityHashCode(result) : 0
+            operations++
+            now = System.nanoTime()
+        }
+        sink += consumed
+
+        return (now - start) / (double) operations
+    }
+}
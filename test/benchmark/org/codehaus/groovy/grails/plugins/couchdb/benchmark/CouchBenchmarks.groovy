@@ -0,0 +1,334 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.benchmark
+
+import grails.spring.BeanBuilder
+import org.acme.Address
+import org.acme.Contact
+import org.acme.Gender
+import org.acme.Person
+import org.acme.Project
+import org.acme.Task
+import org.codehaus.groovy.grails.commons.DefaultGrailsApplication
+import org.codehaus.groovy.grails.commons.GrailsApplication
+import org.codehaus.groovy.grails.plugins.couchdb.CouchDBPluginSupport
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClass
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClassArtefactHandler
+import org.codehaus.groovy.grails.plugins.couchdb.json.JsonConverterUtils
+import org.codehaus.groovy.grails.plugins.couchdb.json.JsonDateConverter
+import org.springframework.context.ApplicationContext
+import org.springframework.context.support.StaticApplicationContext
+import org.svenson.JSON
+import org.svenson.converter.DefaultTypeConverterRepository
+
+/**
+ * The benchmarks of the plugin's hot paths: JSON writing and parsing of the domain classes (both the
+ * configured generator / parser and plain svenson bean introspection), date conversion, view key encoding,
+ * dynamic finder dispatch, ValueRow property lookups, subclass resolution by the CouchDomainTypeMapper and
+ * the per-save work of the persistence plan (timestamps, id / version access and the errors slot).
+ * <p/>
+ * The domain classes are enhanced by the plugin as usual, but their database uses a
+ * {@link CannedResponseServer}, so the benchmarks run without a CouchDB server.  Run them with
+ * <code>grails couch-benchmark</code>.
+ *
+ * @author Cory Hacking
+ */
+class CouchBenchmarks {
+
+    static final int VIEW_ROWS = 100
+
+    CouchBenchmarkRunner runner = new CouchBenchmarkRunner()
+
+    private CannedResponseServer server
+
+    private GrailsApplication application
+
+    /**
+     * Creates a grails application with the sample domain classes and enhances them with the plugin's
+     * methods against a canned response server.
+     */
+    void setUp() {
+        ExpandoMetaClass.enableGlobally()
+
+        application = new DefaultGrailsApplication([Project, Task, Person, Contact] as Class[], getClass().classLoader)
+        application.registerArtefactHandler(new CouchDomainClassArtefactHandler())
+        application.initialise()
+        application.config = new ConfigSlurper().parse("""
+            couchdb {
+                host = "localhost"
+                port = 5984
+                database = "gorm-couchdb-benchmark"
+            }
+        """)
+
+        [Project, Task, Person, Contact].each {Class clazz ->
+            if (!application.getArtefact(CouchDomainClassArtefactHandler.TYPE, clazz.name)) {
+                application.addArtefact(CouchDomainClassArtefactHandler.TYPE, new CouchDomainClass(clazz))
+            }
+        }
+
+        StaticApplicationContext parent = new StaticApplicationContext()
+        parent.beanFactory.registerSingleton("grailsApplication", application)
+        parent.refresh()
+
+        // the plugin's beans, with a registry whose databases use the canned server
+        BeanBuilder beans = new BeanBuilder(parent)
+        beans.binding = new Binding([application: application])
+        beans.beans(CouchDBPluginSupport.doWithSpring)
+        beans.beans {
+            couchdbDatabaseRegistry(CannedDatabaseRegistry) {
+                grailsApplication = ref("grailsApplication", true)
+                couchdbConnectionManager = ref("couchdbConnectionManager")
+                couchdbMetrics = ref("couchdbMetrics")
+            }
+        }
+
+        ApplicationContext ctx = beans.createApplicationContext()
+        server = ctx.getBean("couchdbDatabaseRegistry").server
+
+        CouchDBPluginSupport.enhanceDomainClasses(application, ctx)
+
+        // the openTasksByName view
+        String database = Task.couchdb.name
+        String rows = createViewRows()
+        server.respond "GET", "/${database}/_design/project-task/_view/openTasksByName", 200, rows
+        server.respond "POST", "/${database}/_design/project-task/_view/openTasksByName", 200, rows
+    }
+
+    void runAll() {
+        benchmarkJSON()
+        benchmarkDates()
+        benchmarkKeys()
+        benchmarkFinders()
+        benchmarkValueRows()
+        benchmarkTypeMapper()
+        benchmarkPersistence()
+    }
+
+    void benchmarkJSON() {
+        Map<String, Object> instances = [
+                Project: createProject(),
+                Task: createTask(),
+                Contact: createContact()
+        ]
+
+        // the generator and parser that save() / get() use, and svenson's bean introspection on its own
+        JSON plain = createPlainGenerator()
+
+        instances.each {String name, instance ->
+            Class clazz = instance.getClass()
+            JSON generator = clazz.couchdb.jsonConfig.jsonGenerator
+            String json = generator.forValue(instance)
+
+            runner.run("json.write.${name}") {
+                generator.forValue(instance)
+            }
+            runner.run("json.write.svenson.${name}") {
+                plain.forValue(instance)
+            }
+            runner.run("json.parse.${name}") {
+                clazz.parse(json)
+            }
+            runner.run("json.parse.svenson.${name}") {
+                clazz.parser.parse(clazz, json)
+            }
+        }
+    }
+
+    void benchmarkDates() {
+        String format = JsonConverterUtils.dateFormat
+        Date date = new Date()
+
+        try {
+            ["default", "iso8601", "epoch"].each {String dateFormat ->
+                JsonConverterUtils.dateFormat = dateFormat
+
+                def json = JsonConverterUtils.toJSON(date)
+                runner.run("dates.toJSON.${dateFormat}") {
+                    JsonConverterUtils.toJSON(date)
+                }
+                runner.run("dates.fromJSON.${dateFormat}") {
+                    JsonConverterUtils.fromJSON(Date, json)
+                }
+                runner.run("dates.roundTrip.${dateFormat}") {
+                    JsonConverterUtils.fromJSON(Date, JsonConverterUtils.toJSON(date))
+                }
+            }
+        } finally {
+            JsonConverterUtils.dateFormat = format
+        }
+    }
+
+    void benchmarkKeys() {
+        Date date = new Date()
+        Map options = [key: ["gorm-couchdb", date], startkey: ["a", date], endkey: ["z", [:]], limit: 10, skip: 5, descending: true, include_docs: true]
+        List keys = [date, "gorm-couchdb", ["project", date], 42]
+
+        runner.run("keys.getOptions") {
+            CouchDBPluginSupport.getOptions(options)
+        }
+        runner.run("keys.convertKeys") {
+            CouchDBPluginSupport.convertKeys(keys)
+        }
+    }
+
+    void benchmarkFinders() {
+
+        // the view query on its own, so that the finder dispatch overhead is the difference
+        runner.run("view.queryView") {
+            Task.queryView("openTasksByName")
+        }
+        runner.run("view.queryViewByKeys") {
+            Task.queryViewByKeys("openTasksByName", ["task 1"])
+        }
+
+        // the first call goes through methodMissing, which registers the finder as a static method that
+        // the later calls are dispatched to
+        runner.run("finder.listOpenTasksByName") {
+            Task.listOpenTasksByName()
+        }
+        runner.run("finder.findOpenTasksByName") {
+            Task.findOpenTasksByName("task 1")
+        }
+    }
+
+    void benchmarkValueRows() {
+        List rows = Task.queryView("openTasksByName")
+        int i = 0
+
+        runner.run("valueRow.propertyMissing") {
+            def row = rows[i++ % rows.size()]
+            return row.name
+        }
+        // the first access converts the value to the domain property's type and keeps it in the row
+        runner.run("valueRow.propertyMissing.date") {
+            def row = rows[i++ % rows.size()]
+            return row.startDate
+        }
+    }
+
+    void benchmarkTypeMapper() {
+        JSON generator = Person.couchdb.jsonConfig.jsonGenerator
+        String person = generator.forValue(new Person(name: "person", gender: Gender.FEMALE))
+        String contact = generator.forValue(createContact())
+
+        // Person has a subclass, so its parser resolves the class from the document type
+        runner.run("typeMapper.Person") {
+            Person.parser.parse(Person, person)
+        }
+        runner.run("typeMapper.Contact") {
+            Person.parser.parse(Person, contact)
+        }
+        runner.run("typeMapper.Contact.generated") {
+            Person.parse(contact)
+        }
+    }
+
+    void benchmarkPersistence() {
+        CouchDomainClass dc = application.getArtefact(CouchDomainClassArtefactHandler.TYPE, Task.name)
+        Task task = createTask()
+
+        // what save() does before writing the document, and after it's written
+        runner.run("persistence.autoTimeStamp") {
+            CouchDBPluginSupport.autoTimeStamp(dc.persistencePlan, task)
+        }
+        runner.run("persistence.documentVersion") {
+            CouchDBPluginSupport.setDocumentVersion(dc, task, CouchDBPluginSupport.getDocumentVersion(dc, task))
+            CouchDBPluginSupport.getDocumentId(dc, task)
+        }
+
+        // validate() clears the errors and then reads them
+        runner.run("persistence.errors") {
+            task.clearErrors()
+            task.errors
+            task.hasErrors()
+        }
+    }
+
+    private static Project createProject() {
+        Project p = new Project(name: "gorm-couchdb benchmark", description: "a representative project", startDate: new Date(), frequency: "daily")
+        p.id = "benchmark-project"
+        p.version = "1-canned"
+        p.dateCreated = new Date()
+        p.lastUpdated = new Date()
+
+        return p
+    }
+
+    private static Task createTask() {
+        Task t = new Task(projectId: "benchmark-project", name: "task 1", startDate: new Date(), estimatedHours: 5, actualHours: 3, description: "a representative task")
+        t.taskId = "benchmark-task"
+        t.taskVersion = "1-canned"
+        t.dateCreated = new Date()
+        t.lastUpdated = new Date()
+
+        return t
+    }
+
+    private static Contact createContact() {
+        Contact c = new Contact(name: "contact", gender: Gender.MALE, company: "acme")
+        c.address = new Address(Street1: "1 Main St", City: "Denver", State: "CO", Zip: "80202")
+        c.id = "benchmark-contact"
+        c.version = "1-canned"
+
+        return c
+    }
+
+    private static JSON createPlainGenerator() {
+        DefaultTypeConverterRepository typeConverterRepository = new DefaultTypeConverterRepository()
+        JsonDateConverter dateConverter = new JsonDateConverter()
+        typeConverterRepository.addTypeConverter(dateConverter)
+
+        JSON generator = new JSON()
+        generator.setIgnoredProperties(Arrays.asList("metaClass"))
+        generator.setTypeConverterRepository(typeConverterRepository)
+        generator.registerTypeConversion(Date.class, dateConverter)
+
+        return generator
+    }
+
+    private static String createViewRows() {
+        def rows = (1..VIEW_ROWS).collect {i ->
+            [id: "task-${i}".toString(), key: "task ${i}".toString(), value: [name: "task ${i}".toString(), startDate: JsonConverterUtils.toJSON(new Date())]]
+        }
+
+        return JSON.defaultJSON().forValue([total_rows: VIEW_ROWS, offset: 0, rows: rows])
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args [warmup: 3, iterations: 5, time: 1000 (ms per iteration), filter: regex, out: results file]
+     */
+    static List<Map> run(Map args) {
+        CouchBenchmarks benchmarks = new CouchBenchmarks()
+        benchmarks.runner.warmupIterations = (args.warmup ?: 3) as Integer
+        benchmarks.runner.iterations = (args.iterations ?: 5) as Integer
+        benchmarks.runner.iterationMillis = (args.time ?: 1000) as Long
+        if (args.filter) {
+            benchmarks.runner.filter = ~(args.filter as String)
+        }
+
+        benchmarks.setUp()
+        benchmarks.runAll()
+
+        File out = new File((args.out ?: "target/benchmark-results.json") as String)
+        benchmarks.runner.writeResults(out)
+        println "Benchmark results written to ${out.path}"
+
+        return benchmarks.runner.results
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import grails.validation.ValidationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.acme.Project
+import org.acme.Task
+
+/**
+ * Tests the ...Async methods.
+ *
+ * @author Cory Hacking
+ */
+class AsyncTests extends GroovyTestCase {
+
+    void testSaveAndGetAsync() {
+        def ids = (1..5).collect { "gorm-couchdb-async-${it}" }
+        ids.each {
+            Project.get(it)?.delete()
+        }
+
+        // the saves are in flight at the same time
+        def futures = ids.collect {id ->
+            def p = new Project(name: "async project ${id}", startDate: new Date())
+            p.id = id
+
+            return p.saveAsync()
+        }
+
+        futures.each {future ->
+            def p = future.get(30, TimeUnit.SECONDS)
+            assertNotNull "should have saved", p
+            assertNotNull "should have a version", p.version
+        }
+
+        def projects = ids.collect { Project.getAsync(it) }*.get()
+        assertEquals "should have read all of the projects", ids, projects*.id
+
+        assertEquals "getAllAsync should return the projects in order", ids, Project.getAllAsync(ids).get()*.id
+        assertNull "missing documents should return null", Project.getAsync("gorm-couchdb-async-missing").get()
+
+        // listeners run once the result is available
+        def latch = new CountDownLatch(1)
+        def result = null
+        def future = Project.getAsync(ids[0])
+        future.onComplete({-> result = future.get(); latch.countDown()} as Runnable)
+
+        assertTrue "listener should have been called", latch.await(30, TimeUnit.SECONDS)
+        assertEquals "listener should have seen the result", ids[0], result.id
+
+        Project.bulkDelete(projects)
+    }
+
+    void testQueryViewAsync() {
+        def open = Task.queryViewAsync("openTasksByName")
+        def byName = Task.queryViewAsync("openTasksByName", [limit: 1])
+
+        assertEquals "should have returned the same rows as queryView", Task.queryView("openTasksByName").size(), open.get().size()
+        assertTrue "limit should have been applied", byName.get().size() <= 1
+    }
+
+    void testValidationAsync() {
+        def p = new Project()
+        p.name = ""
+
+        // the errors are available right away; the future returns (or throws) what save() would have
+        def future = p.saveAsync('failOnError': false)
+        assertTrue "should have validation errors", p.hasErrors()
+        assertNull "should not have saved", future.get()
+
+        shouldFail(ValidationException) {
+            p.saveAsync('failOnError': true).get()
+        }
+    }
+}
@@ -64,4 +64,144 @@ class AttachmentsTests extends GroovyTestCase {
 
         p.delete()
     }
+
+    void testStreamingAttachments() {
+        def id = "gorm-couchdb-att-stream"
+
+        def p = Project.get(id)
+        if (p) {
+            p.delete()
+        }
+
+        p = new Project()
+
+        p.id = id
+        p.name = "A New Test Project w/streamed attachments"
+        p.startDate = new Date()
+        p.save()
+
+        def att = new File("grails-app/conf/DataSource.groovy")
+        p = p.saveAttachment(att.path, "text/plain", att.newInputStream(), att.length())
+
+        byte[] content = att.bytes
+
+        // metadata without the content
+        def info = p.getAttachmentInfo(att.path)
+        assertEquals "contentType should be 'text/plain'", "text/plain", info.contentType
+        assertEquals "length should be '${att.length()}", att.length(), info.contentLength
+        assertNotNull "should have a digest", info.digest
+        assertNull "missing attachments should return null", p.getAttachmentInfo("missing.txt")
+
+        // the whole attachment
+        def is = p.openAttachmentStream(att.path)
+        try {
+            assertEquals "streamed content should match", new String(content, "UTF-8"), new String(is.bytes, "UTF-8")
+        } finally {
+            is.close()
+        }
+
+        // a range
+        is = Project.openAttachmentStream(id, att.path, 10, 20)
+        try {
+            assertEquals "ranged content should match", new String(content, 10, 20, "UTF-8"), new String(is.bytes, "UTF-8")
+        } finally {
+            is.close()
+        }
+
+        // abandoning a stream part way through shouldn't leak the connection
+        10.times {
+            is = p.openAttachmentStream(att.path)
+            is.read()
+            is.close()
+        }
+
+        def out = new ByteArrayOutputStream()
+        assertEquals "should have transferred the whole attachment", att.length(), p.transferAttachmentTo(att.path, out)
+        assertEquals "transferred content should match", new String(content, "UTF-8"), out.toString("UTF-8")
+
+        // resume from an offset
+        out = new ByteArrayOutputStream()
+        Project.transferAttachmentTo(id, att.path, java.nio.channels.Channels.newChannel(out), 100)
+        assertEquals "resumed content should match", new String(content, 100, content.length - 100, "UTF-8"), out.toString("UTF-8")
+
+        p.delete()
+    }
+
+    void testFileAndChunkedAttachments() {
+        def id = "gorm-couchdb-att-upload"
+
+        def p = Project.get(id)
+        if (p) {
+            p.delete()
+        }
+
+        p = new Project()
+
+        p.id = id
+        p.name = "A New Test Project w/uploaded attachments"
+        p.startDate = new Date()
+        p.save()
+
+        // from a file, updating the instance instead of reading it back
+        def att = new File("grails-app/conf/DataSource.groovy")
+        def version = p.version
+        def result = p.saveAttachment(att.path, "text/plain", att, reload: false)
+
+        assertSame "should have returned the same instance", p, result
+        assertFalse "version should have been updated", version == p.version
+        assertEquals "should have one attachment", 1, p.attachments.size()
+        assertTrue "attachment should be a stub", p.attachments[att.path].stub
+        assertEquals "length should be '${att.length()}", att.length(), p.attachments[att.path].length
+
+        // a stream of unknown length is sent chunked
+        def att2 = new File("grails-app/conf/Config.groovy")
+        p = p.saveAttachment(att2.path, "text/plain", att2.newInputStream())
+
+        assertEquals "should have two attachments", 2, p.attachments.size()
+        assertEquals "length should be '${att2.length()}", att2.length(), p.attachments[att2.path].length
+        assertEquals "content should match", att2.text, new String(p.readAttachment(att2.path), "UTF-8")
+
+        p.delete()
+    }
+
+    void testInlineAttachments() {
+        def ids = ["gorm-couchdb-att-inline-1", "gorm-couchdb-att-inline-2"]
+
+        ids.each {
+            Project.get(it)?.delete()
+        }
+
+        def att = new File("grails-app/conf/UrlMappings.groovy")
+
+        def projects = ids.collect {id ->
+            def p = new Project()
+            p.id = id
+            p.name = "Inline attachments ${id}"
+            p.startDate = new Date()
+            p.addInlineAttachment("notes.txt", "text/plain", "some notes".getBytes("UTF-8"))
+            p.addInlineAttachment(att.name, "text/plain", att)
+
+            return p
+        }
+
+        // the documents and their attachments are written in one request
+        def result = Project.bulkSave(projects)
+        assertEquals "should have saved both projects", 2, result.size()
+
+        projects.each {p ->
+            assertNotNull "version should have been set", p.version
+            assertTrue "saved attachments should be stubs", p.attachments.values().every { it.stub && it.data == null }
+
+            def saved = Project.get(p.id)
+            assertEquals "should have two attachments", 2, saved.attachments.size()
+            assertEquals "content should match", "some notes", new String(saved.readAttachment("notes.txt"), "UTF-8")
+            assertEquals "content should match", att.text, new String(saved.readAttachment(att.name), "UTF-8")
+
+            saved.delete()
+        }
+
+        shouldFail(IllegalArgumentException) {
+            new Project().addInlineAttachment("big.bin", "application/octet-stream", new byte[1024 * 1024])
+        }
+    }
 }
@@ -17,6 +17,10 @@ package org.codehaus.groovy.grails.plugins.couchdb.test
 
 import org.acme.Project
 import org.acme.Task
+import org.acme.TaskSummary
+import org.codehaus.groovy.grails.plugins.couchdb.db.CouchBulkWriter
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchDomainClassArtefactHandler
+import org.jcouchdb.db.Database
 import org.jcouchdb.document.DocumentInfo
 
 /**
@@ -26,6 +30,8 @@ import org.jcouchdb.document.DocumentInfo
  */
 class BulkOperationsTests extends GroovyTestCase {
 
+    def grailsApplication
+
     void testBulkSave() {
         def bulkDocuments = []
 
@@ -76,6 +82,11 @@ class BulkOperationsTests extends GroovyTestCase {
             assertNull "Document ${info.id} should have been bulk-saved successfully [${info.error}]", info.error
         }
 
+        // the tasks aren't projects, but should still have their new revisions copied back
+        bulkDocuments[1..-1].eachWithIndex {t, i ->
+            assertEquals "bulkSave should have set the task version", result[i + 1].revision, t.taskVersion
+        }
+
         def t1 = Task.get(result[10].id)
         assertNotNull "bulkSave should have set dateCreated", t1.dateCreated
         assertNotNull "bulkSave should have set lastUpdated", t1.lastUpdated
@@ -134,6 +145,14 @@ class BulkOperationsTests extends GroovyTestCase {
         assertEquals "should have found 20 open tasks", 20, result.size()
 
         assertEquals "should have counted 20 open tasks", 20, Task.countOpenTasks()
+        assertTrue "countOpenTasks should have been registered as a method", Task.metaClass.respondsTo(Task, "countOpenTasks").size() > 0
+        assertEquals "should have counted 20 open tasks again", 20, Task.countOpenTasks()
+
+        2.times {
+            shouldFail(MissingMethodException) {
+                Task.fetchOpenTasks()
+            }
+        }
 
         result = Task.findOpenTasksByName("offset": 5, "max": 10)
         assertEquals "should have found 10 open tasks", 10, result.size()
@@ -146,6 +165,16 @@ class BulkOperationsTests extends GroovyTestCase {
             assertTrue "task start date should be a date", info.startDate instanceof Date
         }
 
+        def summaries = Task.findOpenTasksByName('startkey': "task-1", 'endkey': "task-10", as: TaskSummary)
+        assertEquals "should have projected 2 open tasks", 2, summaries.size()
+        summaries.eachWithIndex {summary, i ->
+            assertTrue "should be a task summary", summary instanceof TaskSummary
+            assertEquals "should have the row id", result[i].id, summary.id
+            assertEquals "should have the row key", result[i].key, summary.key
+            assertEquals "should have the name", result[i].name, summary.name
+            assertEquals "should have converted the start date", result[i].startDate, summary.startDate
+        }
+
         def descending = Task.queryView("openTasksByName", ['startkey': "task-10", 'endkey': "task-1", "order": "desc"])
         assertEquals "should have found 2 open tasks", descending.size(), 2
         assertEquals "should be in reverse order", result[0].id, descending[1].id
@@ -163,6 +192,73 @@ class BulkOperationsTests extends GroovyTestCase {
 			assertNotNull "description should not be null", info.description
 			assertTrue "estimatedHours should be > 0", info.estimatedHours > 0
 		}
+
+        // stream the same view in pages of 3 rows
+        def names = []
+        Task.eachRow("openTasksByName", [pageSize: 3]) {row ->
+            assertTrue "task start date should be a date", row.startDate instanceof Date
+            names << row.name
+        }
+        assertEquals "should have streamed 20 open tasks", 20, names.size()
+        assertEquals "should have streamed each task once", names, Task.listOpenTasksByName()*.name
+
+        names.clear()
+        Task.eachOpenTasksByName(pageSize: 3, max: 7) {row ->
+            names << row.name
+        }
+        assertEquals "should have streamed 7 open tasks", 7, names.size()
+
+        def rows = Task.rowIterator("list", [include_docs: true])
+        try {
+            assertTrue "should have at least one row", rows.hasNext()
+            assertNotNull "row should include the document", rows.next().document
+        } finally {
+            rows.close()
+        }
+
+        names.clear()
+        Task.eachOpenTasksByName("task-15", "task-16") {row ->
+            names << row.key
+        }
+        assertEquals "should have streamed 2 open tasks by key", ["task-15", "task-16"], names
+    }
+
+    void testCursorPagination() {
+        def names = Task.listOpenTasksByName()*.name
+
+        // read the open tasks in pages of 6 rows, following the cursors
+        def paged = []
+        def page = Task.listOpenTasksByName(max: 6)
+        int pages = 1
+        while (page.nextCursor) {
+            assertEquals "should have a full page", 6, page.size()
+            paged.addAll(page*.name)
+
+            page = Task.listOpenTasksByName(max: 6, cursor: page.nextCursor)
+            pages++
+        }
+        paged.addAll(page*.name)
+
+        assertEquals "should have read 4 pages", 4, pages
+        assertEquals "should have read each task once", names, paged
+
+        // descending, with the documents
+        page = Task.listOpenTasksByName(max: 15, order: "desc", include_docs: true)
+        assertTrue "should have another page", page.hasNextPage()
+        assertNotNull "rows should include docs", page[0].document
+
+        page = Task.listOpenTasksByName(max: 15, order: "desc", include_docs: true, cursor: page.nextCursor)
+        assertFalse "should be the last page", page.hasNextPage()
+        assertEquals "should have the rest of the tasks in reverse order", names[4..0], page*.name
+
+        // a page of a single key
+        page = Task.findOpenTasksByName("task-15", max: 1)
+        assertEquals "should have found task #15", ["task-15"], page*.key
+        assertFalse "should be the last page", page.hasNextPage()
+
+        shouldFail(IllegalArgumentException) {
+            Task.findOpenTasksByName("task-15", "task-16", cursor: page.nextCursor ?: "bad")
+        }
     }
 
     void testBulkDelete() {
@@ -190,4 +286,195 @@ class BulkOperationsTests extends GroovyTestCase {
             assertNull "Document ${info.id} should have been bulk-deleted successfully", info.error
         }
     }
+
+    void testWithBatch() {
+        def tasks = []
+
+        def result = Task.withBatch(size: 4) {
+            (1..10).each {i ->
+                def t = new Task()
+
+                t.taskId = "gorm-couchdb-batch-task-${i}"
+                t.name = "batch-task-${i}"
+                t.projectId = "gorm-couchdb-batch"
+                t.estimatedHours = i
+
+                assertNotNull "save() should return the task", t.save()
+                tasks << t
+            }
+
+            // an invalid task isn't queued
+            assertNull "invalid task should not save", new Task().save()
+        }
+
+        assertFalse "batch should not have errors", result.hasErrors()
+        assertEquals "should have saved 10 tasks", 10, result.saved.size()
+        assertEquals "should have flushed 3 times", 3, result.flushes
+
+        tasks.each {t ->
+            assertNotNull "batch should have set the task version", t.taskVersion
+            assertNotNull "batch should have set dateCreated", t.dateCreated
+        }
+
+        def t1 = Task.get("gorm-couchdb-batch-task-1")
+        assertEquals "revision should have been copied back", t1.taskVersion, tasks[0].taskVersion
+
+        // the writes are sent in order, so a task that's deleted and created again is kept
+        def t2 = new Task()
+        result = Task.withBatch {
+            t1.delete()
+
+            t2.taskId = t1.taskId
+            t2.name = "batch-task-1 again"
+            t2.projectId = "gorm-couchdb-batch"
+            t2.save()
+        }
+
+        assertFalse "batch should not have errors", result.hasErrors()
+        assertEquals "should have flushed the delete and the save", 2, result.flushes
+        assertEquals "task should have been created again", "batch-task-1 again", Task.get(t1.taskId)?.name
+        tasks[0] = t2
+
+        // when the closure throws, the flushed writes stay written and the queued ones are discarded
+        def t3 = new Task(taskId: "gorm-couchdb-batch-task-discarded", name: "batch-task-discarded", projectId: "gorm-couchdb-batch")
+        shouldFail(IllegalStateException) {
+            Task.withBatch(size: 2) {
+                tasks[1].estimatedHours = 20
+                tasks[1].save()
+                tasks[2].save()
+                t3.save()
+                throw new IllegalStateException("batch failed")
+            }
+        }
+        assertEquals "flushed write should have been kept", 20, Task.get(tasks[1].taskId).estimatedHours
+        assertNull "queued write should have been discarded", Task.get(t3.taskId)
+
+        result = Task.withBatch {
+            tasks.each {t ->
+                t.delete()
+            }
+        }
+
+        assertFalse "batch should not have errors", result.hasErrors()
+        assertEquals "should have deleted 10 tasks", 10, result.deleted.size()
+        assertNull "task should have been deleted", Task.get("gorm-couchdb-batch-task-1")
+    }
+
+    void testChunkedBulkSave() {
+        def tasks = (1..25).collect {i ->
+            def t = new Task()
+
+            t.taskId = "gorm-couchdb-chunk-task-${i}"
+            t.name = "chunk-task-${i}"
+            t.projectId = "gorm-couchdb-chunk"
+            t.estimatedHours = i
+
+            return t
+        }
+
+        def result = Task.bulkSave(tasks, [chunkSize: 10, parallelism: 2])
+
+        assertFalse "bulkSave should not have errors", result.hasErrors()
+        assertEquals "should have sent 3 chunks", 3, result.chunks.size()
+        assertEquals "results should be in the same order as the documents", tasks*.taskId, result*.id
+        tasks.each {t ->
+            assertNotNull "bulkSave should have set the task version", t.taskVersion
+        }
+
+        // update a task behind our back so that saving the old revision conflicts, and merge the change
+        def t1 = Task.get(tasks[0].taskId)
+        t1.description = "changed elsewhere"
+        t1.save()
+
+        tasks[0].estimatedHours = 100
+        result = Task.bulkSave([tasks[0]], [merge: {current, task ->
+            current.estimatedHours = task.estimatedHours
+            return current
+        }])
+
+        assertFalse "merged save should not have errors", result.hasErrors()
+        assertEquals "should have retried the conflict", 1, result.retried
+
+        def t2 = Task.get(tasks[0].taskId)
+        assertEquals "should have kept the other change", "changed elsewhere", t2.description
+        assertEquals "should have saved the merged change", 100, t2.estimatedHours
+        assertEquals "merged document should have the new revision", t2.taskVersion, result.documents[0].taskVersion
+
+        result = Task.bulkDelete(result.documents + tasks[1..-1], [chunkSize: 10])
+        assertFalse "bulkDelete should not have errors", result.hasErrors()
+        assertNull "task should have been deleted", Task.get(tasks[1].taskId)
+    }
+
+    void testMergeMixedClasses() {
+        def p = new Project(id: "gorm-couchdb-merge-project", name: "merge-project")
+        def t = new Task(taskId: "gorm-couchdb-merge-task", name: "merge-task", projectId: p.id)
+        Project.bulkSave([p, t])
+
+        // change both documents behind our back, so that saving the old revisions conflicts
+        def p1 = Project.get(p.id)
+        p1.description = "changed elsewhere"
+        p1.save()
+
+        def t1 = Task.get(t.taskId)
+        t1.description = "changed elsewhere"
+        t1.save()
+
+        p.frequency = "daily"
+        t.estimatedHours = 5
+
+        def merged = []
+        def result = Project.bulkSave([p, t], [merge: {current, doc ->
+            merged << current.getClass()
+            if (current instanceof Project) {
+                current.frequency = doc.frequency
+            } else {
+                current.estimatedHours = doc.estimatedHours
+            }
+            return current
+        }])
+
+        assertFalse "merged save should not have errors", result.hasErrors()
+        assertEquals "each document should have been read as its own class", [Project, Task], merged
+        assertEquals "should have saved the merged project", "daily", Project.get(p.id).frequency
+        assertEquals "should have saved the merged task", 5, Task.get(t.taskId).estimatedHours
+
+        result = Project.bulkDelete(result.documents)
+        assertFalse "bulkDelete should not have errors", result.hasErrors()
+    }
+
+    void testFailedChunk() {
+        def tasks = (1..3).collect {i ->
+            new Task(taskId: "gorm-couchdb-failed-task-${i}", name: "failed-task-${i}", projectId: "gorm-couchdb-failed")
+        }
+
+        // the database doesn't exist, so the request fails; the ids come from the plan (Task's id is taskId)
+        def plan = grailsApplication.getArtefact(CouchDomainClassArtefactHandler.TYPE, Task.name).persistencePlan
+        def writer = new CouchBulkWriter(new Database(Task.couchdb.server, "gorm-couchdb-missing"), null, [chunkSize: 2])
+        writer.documentId = {doc ->
+            plan.getId(doc)
+        }
+
+        def result = writer.save(tasks)
+
+        assertEquals "should have sent 2 chunks", 2, result.chunks.size()
+        assertTrue "chunks should have failed", result.chunks.every {it.error}
+        assertEquals "failed infos should have the task ids", tasks*.taskId, result*.id
+        assertTrue "infos should be request failures", result.every {it.error == CouchBulkWriter.REQUEST_FAILED}
+    }
+
+    void testChunkLengthInBytes() {
+        def tasks = (1..4).collect {i ->
+            new Task(taskId: "gorm-couchdb-utf8-task-${i}", name: "\u20ac" * 300, projectId: "gorm-couchdb-utf8")
+        }
+
+        def result = Task.bulkSave(tasks, [chunkLength: 4096, parallelism: 1])
+
+        assertFalse "bulkSave should not have errors", result.hasErrors()
+        assertTrue "should have split the tasks", result.chunks.size() > 1
+        assertEquals "should have sent every task", 4, result.chunks*.documents.sum()
+        assertTrue "chunks should be within chunkLength bytes", result.chunks.every {it.length <= 4096}
+
+        result = Task.bulkDelete(tasks)
+        assertFalse "bulkDelete should not have errors", result.hasErrors()
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import org.acme.Project
+import org.acme.Task
+import org.codehaus.groovy.grails.plugins.couchdb.changes.CouchMemoryCheckpointStore
+
+/**
+ * Test the _changes feed listener.
+ *
+ * @author Cory Hacking
+ */
+class ChangesListenerTests extends GroovyTestCase {
+
+    void testOnChanges() {
+        def changes = Collections.synchronizedList([])
+        def checkpoints = new CouchMemoryCheckpointStore()
+
+        def listener = Task.onChanges(checkpointStore: checkpoints, batchSize: 2, heartbeat: 1000) {List batch ->
+            assertTrue "batches should be no bigger than the batch size", batch.size() <= 2
+            changes.addAll(batch)
+        }
+
+        try {
+            // a project change shouldn't be delivered to the task listener
+            def p = new Project(name: "gorm-couchdb-changes")
+            p.save()
+
+            def tasks = (1..3).collect {i ->
+                def t = new Task(taskId: "gorm-couchdb-changes-task-${i}", name: "changes-task-${i}", projectId: p.id, estimatedHours: i, description: "task ${i}")
+                t.save()
+            }
+
+            // wait for the changes to be delivered and checkpointed
+            for (int i = 0; i < 100 && (changes.size() < 3 || checkpoints.getCheckpoint(listener.id) != changes[-1].seq); i++) {
+                Thread.sleep(100)
+            }
+
+            assertEquals "should have received the 3 task changes", tasks*.taskId, changes*.id
+            assertTrue "documents should be tasks", changes.every { it.doc instanceof Task }
+            assertEquals "should have checkpointed the last change", changes[-1].seq, checkpoints.getCheckpoint(listener.id)
+
+            p.delete()
+            tasks*.delete()
+
+        } finally {
+            listener.stop()
+        }
+
+        assertFalse "listener should have stopped", listener.running
+    }
+
+    void testFailedBatchIsRetried() {
+        def changes = Collections.synchronizedList([])
+        def checkpoints = new CouchMemoryCheckpointStore()
+        int attempts = 0
+
+        def listener = Task.onChanges(checkpointStore: checkpoints, batchSize: 10, heartbeat: 1000, minBackoff: 100) {List batch ->
+            if (attempts++ == 0) {
+                throw new IllegalStateException("handler failed")
+            }
+            changes.addAll(batch)
+        }
+
+        try {
+            def t = new Task(taskId: "gorm-couchdb-changes-retry", name: "changes-retry", projectId: "gorm-couchdb-changes", estimatedHours: 1)
+            t.save()
+
+            for (int i = 0; i < 100 && (!changes || checkpoints.getCheckpoint(listener.id) != changes[-1].seq); i++) {
+                Thread.sleep(100)
+            }
+
+            assertTrue "the failed batch should have been retried", attempts >= 2
+            assertEquals "should have delivered the change after the retry", [t.taskId], changes*.id
+            assertEquals "should have counted the failure", 1L, listener.statistics.failures
+            assertEquals "should have checkpointed the change after the retry", changes[-1].seq, checkpoints.getCheckpoint(listener.id)
+
+            t.delete()
+
+        } finally {
+            listener.stop()
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import java.util.concurrent.TimeUnit
+import org.acme.Project
+import org.acme.Task
+import org.apache.http.HttpHost
+import org.apache.http.conn.ConnectionPoolTimeoutException
+import org.apache.http.conn.routing.HttpRoute
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchCompressionSettings
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchConnectionManager
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchHttpServer
+import org.codehaus.groovy.grails.plugins.couchdb.http.CouchPoolSettings
+
+/**
+ * Test the shared http connection pool.
+ *
+ * @author Cory Hacking
+ */
+class ConnectionPoolTests extends GroovyTestCase {
+
+    def couchdbConnectionManager
+
+    void testSharedPool() {
+        assertTrue "server should be a pooled CouchHttpServer", Project.couchdb.server instanceof CouchHttpServer
+
+        // make sure that we've used a connection
+        Project.get("gorm-couchdb-pool")
+        Task.get("gorm-couchdb-pool")
+
+        def statistics = couchdbConnectionManager.statistics
+        assertEquals "should have one pool for localhost", 1, statistics.size()
+
+        def stats = statistics.values().iterator().next()
+        assertEquals "maxTotal should come from the config", 25, stats.maxTotal
+        assertEquals "maxPerRoute should come from the config", 10, stats.maxPerRoute
+        assertTrue "should have at least one pooled connection", stats.connectionsInPool >= 1
+    }
+
+    void testSharedPoolSettings() {
+        def manager = new CouchConnectionManager()
+        try {
+            def route = new HttpRoute(new HttpHost("localhost", 5984, "http"))
+
+            def cm = manager.getConnectionManager("localhost", 5984, false, new CouchPoolSettings(null, [maxTotal: 25, maxPerRoute: 2]))
+            def cm2 = manager.getConnectionManager("localhost", 5984, false, new CouchPoolSettings(null, [maxTotal: 40, maxPerRoute: 4]))
+            assertSame "databases on the same host should share the pool", cm, cm2
+
+            def stats = manager.statistics.values().iterator().next()
+            assertEquals "maxTotal should be the largest of the settings", 40, stats.maxTotal
+            assertEquals "maxPerRoute should be the one the pool was created with", 2, stats.maxPerRoute
+
+            // the route's pool hands out maxPerRoute connections (leasing doesn't connect)
+            def leased = (1..2).collect {
+                cm.requestConnection(route, null).getConnection(1000, TimeUnit.MILLISECONDS)
+            }
+            shouldFail(ConnectionPoolTimeoutException) {
+                cm.requestConnection(route, null).getConnection(100, TimeUnit.MILLISECONDS)
+            }
+
+            leased.each {
+                cm.releaseConnection(it, 0, TimeUnit.MILLISECONDS)
+            }
+        } finally {
+            manager.shutdown()
+        }
+    }
+
+    void testCompression() {
+        CouchHttpServer server = Project.couchdb.server
+        assertFalse "compression should be disabled in the config", server.compression.enabled
+
+        def settings = server.compression
+        try {
+            // compress every request body (the server may not accept them, in which case they're sent again uncompressed)
+            server.compression = new CouchCompressionSettings(null, [enabled: true, minSize: 0])
+
+            def p = new Project(name: "gorm-couchdb compression")
+            p.save()
+
+            p = Project.get(p.id)
+            assertNotNull "should have read the project", p
+            assertEquals "should have read the name", "gorm-couchdb compression", p.name
+            assertTrue "should have queried the view", Project.queryView("count").size() > 0
+
+            p.delete()
+        } finally {
+            server.compression = settings
+        }
+    }
+}
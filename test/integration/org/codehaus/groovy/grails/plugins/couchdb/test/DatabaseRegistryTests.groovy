@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import org.acme.Person
+import org.acme.Project
+import org.acme.Task
+
+/**
+ * Test that domain classes share their database through the registry.
+ *
+ * @author Cory Hacking
+ */
+class DatabaseRegistryTests extends GroovyTestCase {
+
+    def couchdbDatabaseRegistry
+
+    void testSharedDatabase() {
+        assertSame "Project and Task should share a database", Project.couchdb, Task.couchdb
+        assertSame "Project and Person should share a database", Project.couchdb, Person.couchdb
+        assertSame "the registry should return the shared database", Project.couchdb, couchdbDatabaseRegistry.getDatabase((String) null, false)
+
+        assertEquals "should only have registered one database", 1, couchdbDatabaseRegistry.databases.size()
+    }
+
+    void testHealth() {
+        def health = couchdbDatabaseRegistry.checkHealth()
+
+        assertEquals "should have checked one database", 1, health.size()
+        health.each {key, status ->
+            assertTrue "database [${key}] should be ok [${status.error}]", status.ok
+            assertNotNull "should have a document count", status.documentCount
+        }
+
+        assertTrue "registry should be healthy", couchdbDatabaseRegistry.healthy
+    }
+}
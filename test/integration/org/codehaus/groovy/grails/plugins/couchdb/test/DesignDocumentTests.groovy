@@ -17,6 +17,8 @@ package org.codehaus.groovy.grails.plugins.couchdb.test
 
 import org.acme.Contact
 import org.acme.Gender
+import org.acme.Task
+import org.codehaus.groovy.grails.plugins.couchdb.CouchDBPluginSupport
 import org.jcouchdb.document.DesignDocument
 import org.jcouchdb.document.ValueRow
 import org.jcouchdb.document.View
@@ -29,6 +31,10 @@ import org.jcouchdb.exception.DataAccessException
  */
 class DesignDocumentTests extends GroovyTestCase {
 
+    def grailsApplication
+    def couchdbViewReloader
+    def couchdbViewWarmer
+
     protected void setUp() {
         super.setUp()
 
@@ -81,6 +87,44 @@ class DesignDocumentTests extends GroovyTestCase {
         Contact.deleteDesignDocument(design)
     }
 
+    void testUnchangedDesignDocumentsAreNotWritten() {
+        CouchDBPluginSupport.updateCouchViews(grailsApplication)
+
+        def design = Task.getDesignDocument()
+        assertNotNull "should have stored the content hash", design.getProperty("contentHash")
+
+        // the views haven't changed, so the design document shouldn't be written again
+        CouchDBPluginSupport.updateCouchViews(grailsApplication)
+        assertEquals "should not have updated the design document", design.revision, Task.getDesignDocument().revision
+    }
+
+    void testViewReloader() {
+        CouchDBPluginSupport.updateCouchViews(grailsApplication)
+        def revision = Task.getDesignDocument().revision
+
+        // successive changes are combined, and the unchanged design document isn't written
+        def views = new File(CouchDBPluginSupport.getViewsPath(grailsApplication), "project-task")
+        couchdbViewReloader.changed(new File(views, "openTasks.map.js"))
+        couchdbViewReloader.changed(new File(views, "openTasksByName.map.js"))
+        couchdbViewReloader.reload()
+
+        assertEquals "should not have updated the design document", revision, Task.getDesignDocument().revision
+    }
+
+    void testViewWarmer() {
+        CouchDBPluginSupport.updateCouchViews(grailsApplication)
+
+        // the design documents are registered by updateCouchViews
+        couchdbViewWarmer.warmNow(Task.couchdb, "project-task")
+
+        def status = couchdbViewWarmer.indexStatus["${Task.couchdb.name}/project-task".toString()]
+        assertNotNull "should have reported the project-task design document", status
+        assertNull "should have warmed the views", status.error
+        assertNotNull "should have recorded when the views were warmed", status.warmed
+        assertTrue "should have listed the views", status.views.contains("openTasks")
+        assertEquals "should have caught up with the database", 0L, status.lag
+    }
+
     private Contact createContact() {
         def contact = new Contact()
 
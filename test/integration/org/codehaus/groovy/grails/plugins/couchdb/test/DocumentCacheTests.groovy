@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import org.acme.NoType
+import org.acme.Project
+
+/**
+ * Test the get() document cache (enabled for NoType in DataSource.groovy).
+ *
+ * @author Cory Hacking
+ */
+class DocumentCacheTests extends GroovyTestCase {
+
+    void testCache() {
+        assertNull "Project should not be cached", Project.documentCache
+        assertNotNull "NoType should be cached", NoType.documentCache
+
+        def n = new NoType()
+        n.id = "gorm-couchdb-cache"
+        n.save()
+
+        NoType.documentCache.clear()
+
+        def stats = NoType.cacheStatistics
+        long misses = stats.misses
+        long hits = stats.hits
+        long revalidations = stats.revalidations
+
+        def n1 = NoType.get(n.id)
+        assertEquals "first get should be a miss", misses + 1, NoType.cacheStatistics.misses
+        assertEquals "should have read the saved version", n.version, n1.version
+
+        def n2 = NoType.get(n.id)
+        assertNotSame "second get should return a new instance", n1, n2
+        assertEquals "second get should have the cached version", n1.version, n2.version
+        assertEquals "second get should be a hit", hits + 1, NoType.cacheStatistics.hits
+
+        // changing an instance doesn't change what the other readers get
+        n2.version = "changed"
+        assertEquals "cached document should not have changed", n1.version, NoType.get(n.id).version
+
+        // wait for the ttl to pass; the document hasn't changed so it should revalidate with a 304
+        Thread.sleep(600)
+
+        def n3 = NoType.get(n.id)
+        assertEquals "revalidated get should have the cached version", n1.version, n3.version
+        assertEquals "should have revalidated", revalidations + 1, NoType.cacheStatistics.revalidations
+
+        // saving evicts the document, so we should read the new version
+        n3.save()
+        def n4 = NoType.get(n.id)
+        assertEquals "should have read the new version", n3.version, n4.version
+        assertEquals "get after save should be a miss", misses + 2, NoType.cacheStatistics.misses
+
+        // a batch evicts the documents it flushed, even if the batch then fails
+        shouldFail(IllegalStateException) {
+            NoType.withBatch(size: 1) {
+                n4.save()
+                throw new IllegalStateException("batch failed")
+            }
+        }
+        assertEquals "should have read the version written by the failed batch", n4.version, NoType.get(n.id).version
+
+        n4.delete()
+        assertNull "deleted document should not be cached", NoType.get(n.id)
+    }
+}
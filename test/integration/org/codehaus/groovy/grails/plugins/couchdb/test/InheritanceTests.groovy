@@ -87,6 +87,17 @@ class InheritanceTests extends GroovyTestCase {
 		assertTrue "result[0] document should be a contact", result[0].document instanceof Contact
 		assertTrue "result[1] document should be a person", result[1].document instanceof Person
 
+		// read both documents (and a missing one) at once, in chunks of 1 so that they're read in parallel
+		def people = Person.getAll([p.id, "gorm-couchdb-missing", c.id], [chunkSize: 1])
+		assertEquals "should have returned a result for each id", 3, people.size()
+		assertTrue "people[0] should be a person", people[0] instanceof Person
+		assertNull "people[1] should be null", people[1]
+		assertTrue "people[2] should be a contact", people[2] instanceof Contact
+		assertEquals "should have read the contact", c.id, people[2].id
+
+		def peopleById = Person.getAllAsMap([c.id, "gorm-couchdb-missing"])
+		assertEquals "should have only found the contact", [c.id], peopleById.keySet() as List
+
 		// delete both documents
 		result.each {it ->
 			it.document.delete()
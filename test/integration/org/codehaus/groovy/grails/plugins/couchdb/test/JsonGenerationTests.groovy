@@ -19,6 +19,8 @@ import org.acme.Contact
 import org.acme.Gender
 import org.acme.Project
 import org.acme.Task
+import org.codehaus.groovy.grails.plugins.couchdb.json.CouchJSONEntity
+import org.codehaus.groovy.grails.plugins.couchdb.json.JsonConverterUtils
 
 /**
  *  Tests to ensure that the domain object is being translated into the correct JSON.
@@ -87,6 +89,53 @@ class JsonGenerationTests extends GroovyTestCase {
         assertEquals "task toJSON() should have returned the predefined string", json, task.toJSON()
     }
 
+    void testGeneratedJSONMethods() {
+
+        [Contact, Project, Task].each {clazz ->
+            assertTrue "${clazz.simpleName} should have generated JSON methods", CouchJSONEntity.isAssignableFrom(clazz)
+        }
+
+        String json = "{\"address\":{\"city\":\"Los Angeles\",\"state\":\"CA\",\"street1\":\"100 Hollywood Blvd.\",\"street2\":null,\"zip\":null},\"company\":\"Acme, Corp.\",\"gender\":\"MALE\",\"_id\":\"26b5811b3701c30c75d11f9a412103fa\",\"name\":\"Tom Jones\",\"type\":\"human.contact\",\"_rev\":\"2-ba19afa3cf78e7350202cf0c095c9aa4\"}"
+
+        // parse() reads the document with the generated readCouchJSON method
+        def contact = Contact.parse(json)
+        assertEquals "should have read the id", "26b5811b3701c30c75d11f9a412103fa", contact.id
+        assertEquals "should have read the version", "2-ba19afa3cf78e7350202cf0c095c9aa4", contact.version
+        assertEquals "should have read the enum", Gender.MALE, contact.gender
+        assertEquals "should have read the nested object", "Los Angeles", contact.address.city
+        assertEquals "contact should have been written back unchanged", json, contact.toJSON()
+
+        def task = Task.parse("{\"estimatedHours\":5,\"name\":\"test task\",\"startDate\":\"2009\\/12\\/01 09:15:30 +0000\",\"_id\":\"task-id\",\"_rev\":\"1-a\"}")
+        assertEquals "should have read the renamed id", "task-id", task.taskId
+        assertEquals "should have read the renamed version", "1-a", task.taskVersion
+        assertEquals "should have read the date", getGMTDate().time.intdiv(1000), task.startDate.time.intdiv(1000)
+        assertEquals "should have read the number", 5, task.estimatedHours
+    }
+
+    void testDateFormats() {
+
+        def project = new Project()
+        project.name = "test project"
+        project.startDate = new Date(getGMTDate().time.intdiv(1000) * 1000)
+
+        try {
+            JsonConverterUtils.setDateFormat("iso8601")
+            assertTrue "startDate should have been written as iso-8601", project.toJSON().contains("\"startDate\":\"2009-12-01T09:15:30.000Z\"")
+            assertEquals "should have parsed the iso-8601 startDate", project.startDate.time, Project.parse(project.toJSON()).startDate.time
+
+            JsonConverterUtils.setDateFormat("epoch")
+            assertTrue "startDate should have been written as epoch millis", project.toJSON().contains("\"startDate\":${project.startDate.time}")
+            assertEquals "should have parsed the epoch startDate", project.startDate.time, Project.parse(project.toJSON()).startDate.time
+
+            // the other formats (and the older patterns) can always be read
+            assertEquals "should have parsed the default startDate", project.startDate.time, JsonConverterUtils.fromJSON(Date, "2009/12/01 09:15:30 +0000").time
+            assertEquals "should have parsed a time zone name", project.startDate.time, JsonConverterUtils.fromJSON(Date, "2009/12/01 09:15:30 GMT").time
+
+        } finally {
+            JsonConverterUtils.setDateFormat("default")
+        }
+    }
+
     private Date getGMTDate() {
 
         // get a date in GMT so the tests don't fail in any default timezone
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import org.acme.Project
+import org.acme.Task
+
+/**
+ * Tests the operation and http metrics.
+ *
+ * @author Cory Hacking
+ */
+class MetricsTests extends GroovyTestCase {
+
+    def couchdbMetrics
+
+    void testOperationMetrics() {
+        boolean enabled = couchdbMetrics.enabled
+        couchdbMetrics.enabled = true
+        try {
+            String database = Project.couchdb.name
+
+            def p = new Project(name: "metrics project", startDate: new Date())
+            p.id = "gorm-couchdb-metrics"
+            Project.get(p.id)?.delete()
+
+            def save = couchdbMetrics.getOperationStats(database, Project.name, "save", null)
+            def get = couchdbMetrics.getOperationStats(database, Project.name, "get", null)
+            long saves = save.count
+            long gets = get.count
+
+            p.save()
+            assertNotNull "should have read the project", Project.get(p.id)
+            assertNull "missing documents should return null", Project.get("gorm-couchdb-metrics-missing")
+
+            assertEquals "should have recorded the save", saves + 1, save.count
+            assertEquals "should have recorded both gets", gets + 2, get.count
+            assertTrue "should have recorded the time", get.totalMillis > 0
+
+            // views are tagged with the design/view name
+            def rows = Task.queryView("openTasksByName")
+            def query = couchdbMetrics.getOperationStats(database, Task.name, "queryView", "project-task/openTasksByName")
+            assertTrue "should have recorded the query", query.count > 0
+            assertTrue "should have counted the rows", query.rows >= rows.size()
+
+            // a count is one row, whatever its value
+            def count = couchdbMetrics.getOperationStats(database, Project.name, "count", "project/count")
+            long counted = count.rows
+            assertTrue "should have counted the project", Project.count() > 0
+            assertEquals "should have recorded the count as one row", counted + 1, count.rows
+
+            def http = couchdbMetrics.getHttpStats(database)
+            assertTrue "should have recorded the requests", http.requests > 0
+            assertTrue "should have recorded the bytes received", http.bytesReceived > 0
+            assertTrue "should have recorded the 404", http.statusCodeCounts[404] > 0
+
+            // each set of statistics is an MBean
+            def server = ManagementFactory.getPlatformMBeanServer()
+            assertFalse "should have registered the MBeans", server.queryNames(new ObjectName("${couchdbMetrics.jmxDomain}:type=Operation,*"), null).isEmpty()
+
+            p.delete()
+        } finally {
+            couchdbMetrics.enabled = enabled
+        }
+    }
+
+    void testDisabledMetrics() {
+        boolean enabled = couchdbMetrics.enabled
+        couchdbMetrics.enabled = false
+        try {
+            def get = couchdbMetrics.getOperationStats(Project.couchdb.name, Project.name, "get", null)
+            long gets = get.count
+
+            Project.get("gorm-couchdb-metrics-missing")
+            assertEquals "shouldn't record while disabled", gets, get.count
+        } finally {
+            couchdbMetrics.enabled = enabled
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import org.acme.Task
+import org.jcouchdb.exception.DataAccessException
+
+/**
+ * Test the update handlers (grails-app/conf/couchdb/views/project-task/updates/complete.js).
+ *
+ * @author Cory Hacking
+ */
+class UpdateHandlerTests extends GroovyTestCase {
+
+    void testUpdate() {
+        def t = new Task()
+        t.taskId = "gorm-couchdb-update-task"
+        t.name = "update-task"
+        t.projectId = "gorm-couchdb-update"
+        t.estimatedHours = 2
+        t.save()
+
+        assertNotNull "update handler should have been stored", Task.getDesignDocument().getProperty("updates")?.complete
+
+        def date = new Date()
+        def info = Task.update(t.taskId, "complete", [date: date])
+
+        assertEquals "should have returned the document id", t.taskId, info.id
+        assertNotNull "should have returned the new revision", info.revision
+        assertFalse "revision should have changed", t.taskVersion == info.revision
+
+        def t1 = Task.get(t.taskId)
+        assertEquals "should have read the new revision", info.revision, t1.taskVersion
+        assertEquals "should have set the completion date", date.time.intdiv(1000), t1.completionDate.time.intdiv(1000)
+
+        // the dynamic form
+        info = Task.updateComplete(t.taskId, [date: date, actualHours: 3])
+        assertEquals "should have set the actual hours", 3, Task.get(t.taskId).actualHours
+        assertEquals "should have returned the new revision", info.revision, Task.get(t.taskId).taskVersion
+
+        try {
+            Task.updateComplete("gorm-couchdb-missing-task", [date: date])
+            fail "updating a missing task should fail"
+        } catch (DataAccessException e) {
+            // expected
+        }
+
+        Task.get(t.taskId).delete()
+
+        // ids are encoded as path segments (the task is written and read with bulkSave / getAll, which send
+        // the ids in the request body)
+        def t2 = new Task()
+        t2.taskId = "gorm-couchdb update+task/1"
+        t2.name = "update-task-2"
+        t2.projectId = "gorm-couchdb-update"
+        Task.bulkSave([t2])
+
+        info = Task.update(t2.taskId, "complete", [date: date])
+        assertEquals "should have updated the document with the encoded id", t2.taskId, info.id
+
+        t2 = Task.getAll([t2.taskId])[0]
+        assertNotNull "should have set the completion date", t2.completionDate
+
+        Task.bulkDelete([t2])
+    }
+}
@@ -17,6 +17,7 @@ package org.codehaus.groovy.grails.plugins.couchdb.test
 
 import grails.validation.ValidationException
 import org.acme.Project
+import org.codehaus.groovy.grails.plugins.couchdb.domain.CouchErrorsHolder
 
 /**
  * @author Cory Hacking
@@ -79,4 +80,23 @@ public class ValidationTests extends GroovyTestCase {
 			fail "Project save() should not have failed of a validation error."
 		}
 	}
-}
\ No newline at end of file
+
+	void testErrorsSlot() {
+
+		def p = new Project()
+		def p2 = new Project(name: "validation test")
+
+		assertTrue "should have the errors slot", p instanceof CouchErrorsHolder
+
+		p.description = ""
+		p.validate()
+		p2.validate()
+		assertTrue "should have errors", p.hasErrors()
+		assertFalse "errors should be kept per instance", p2.hasErrors()
+		assertSame "should keep the errors in the instance", p.errors, p.couchErrors()
+
+		p.clearErrors()
+		assertFalse "should not have errors", p.hasErrors()
+		assertEquals "should have no errors", 0, p.errors.errorCount
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.codehaus.groovy.grails.plugins.couchdb.test
+
+import org.acme.Project
+
+/**
+ * Test the view result cache (only used with the cache: true option, as it isn't enabled in DataSource.groovy).
+ *
+ * @author Cory Hacking
+ */
+class ViewCacheTests extends GroovyTestCase {
+
+    void testCache() {
+        def p = new Project(name: "gorm-couchdb view cache")
+        p.save()
+
+        def stats = Project.viewCacheStatistics
+        long hits = stats.hits
+        long misses = stats.misses
+
+        // queries without the cache option don't use it
+        Project.queryView("count")
+        assertEquals "should not have used the cache", misses, Project.viewCacheStatistics.misses
+
+        def rows = Project.queryView("count", [cache: true])
+        assertEquals "first query should be a miss", misses + 1, Project.viewCacheStatistics.misses
+
+        def rows2 = Project.queryView("count", [cache: true])
+        assertEquals "second query should be a hit", hits + 1, Project.viewCacheStatistics.hits
+        assertNotSame "every caller should get its own rows", rows[0], rows2[0]
+        assertEquals "second query should return the cached rows", rows[0].value, rows2[0].value
+
+        // the options are part of the key
+        Project.queryView("count", [cache: true, group: true])
+        assertEquals "query with other options should be a miss", misses + 2, Project.viewCacheStatistics.misses
+
+        // count finders use the cache too (and share the result of the same query)
+        long count = Project.count(cache: true)
+        assertEquals "count should be a hit", hits + 2, Project.viewCacheStatistics.hits
+        assertEquals "should have counted the project", rows[0].value as Long, count
+
+        // writes invalidate the cache, so the new project should be counted
+        def p2 = new Project(name: "gorm-couchdb view cache 2")
+        p2.save()
+        assertEquals "should have counted the new project", count + 1, Project.count(cache: true)
+
+        p.delete()
+        p2.delete()
+    }
+}